@@ -193,11 +193,26 @@ public abstract class AbstractAnalyzer {
      *                   and extreme points will be added.
      */
     protected void samplesFromBuffer(short[] data, List<Sample> outSamples) {
+        samplesFromBuffer(data, 0, data.length, outSamples);
+    }
+
+    /**
+     * Extracts zero, high and low sample from a range of the buffer. Buffer indexes of the
+     * extracted samples are relative to the start of the buffer, not of the range.
+     *
+     * @param data       Buffer to analyze.
+     * @param fromIndex  Start position of the range, inclusive.
+     * @param toIndex    End position of the range, exclusive.
+     * @param outSamples {@link java.util.List} of samples to which samples containing only zero
+     *                   and extreme points will be added.
+     */
+    protected void samplesFromBuffer(short[] data, int fromIndex, int toIndex,
+                                     List<Sample> outSamples) {
         Sample previousZeroSample = null;
 
-        int previousZeroIndex = 0;
+        int previousZeroIndex = fromIndex;
 
-        for (int sampleIndex = 1; sampleIndex < data.length; sampleIndex++) {
+        for (int sampleIndex = fromIndex + 1; sampleIndex < toIndex; sampleIndex++) {
             short currentSampleAmplitude = data[sampleIndex];
             short previousSampleAmplitude = data[sampleIndex - 1];
 
@@ -300,6 +315,32 @@ public abstract class AbstractAnalyzer {
         return Float.NaN;
     }
 
+    /**
+     * Sets the rate at which the analyzed data is recorded. Called before the first buffer of a
+     * recording is analyzed, as the recording rate may differ from the rate of the played signal.
+     *
+     * @param sampleRate The recording sample rate, in Hertz.
+     */
+    public void setSampleRate(int sampleRate) {
+    }
+
+    /**
+     * Finds the resistance of the thermistor at the specified temperature. This is the inverse of
+     * {@link #temperatureFromResistance(float)}.
+     *
+     * @return The resistance, in the units of {@link #NTC100K_VALUES}. {@code Float.NaN} if the
+     * temperature is outside of the supported range.
+     */
+    static float resistanceFromTemperature(float temperature) {
+        float position = (float) ((temperature - MIN_TEMP) / TEMPERATURE_INTERVAL);
+        int index = (int) Math.floor(position);
+        if (index < 0 || index >= NTC100K_VALUES.length - 1)
+            return Float.NaN;
+
+        float ratio = position - index;
+        return NTC100K_VALUES[index] + (NTC100K_VALUES[index + 1] - NTC100K_VALUES[index]) * ratio;
+    }
+
 	/**
 	 * Obtain an analysis result from the provided data.
 	 *
@@ -0,0 +1,322 @@
+package com.robocatapps.thermodosdk;
+
+import com.robocatapps.thermodosdk.model.AnalyzerResult;
+import com.robocatapps.thermodosdk.model.Cell;
+import com.robocatapps.thermodosdk.model.Trendline;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * Keeps the intermediates of the last analyses of a {@link DefaultSignalAnalyzer} for field
+ * diagnostics: the frames found, their cell amplitudes after the inversion at the lowest cell,
+ * the trendline and intersection of each frame, and the median intersection the temperature was
+ * computed from. They are stored in a ring of preallocated primitive arrays, which doesn't grow
+ * over a session, and can be dumped as binary or JSON on demand or when an anomaly is reported.
+ * <p/>
+ * An analyzer without a flight recorder only pays a null check per buffer. With a {@link
+ * CascadedSignalAnalyzer}, both the fast path and the fallback analysis are recorded.
+ * <p/>
+ * Anomalies are checked by {@link #checkResult(AnalyzerResult)} for final results: errors, NaN
+ * temperatures and jumps of the temperature between consecutive valid results.
+ */
+public class AnalyzerFlightRecorder {
+
+    /**
+     * Notified of an anomalous result, on the thread that analyzed it. A dump can be written from
+     * the callback.
+     */
+    public interface OnAnomalyListener {
+
+        void onAnomaly(AnalyzerFlightRecorder recorder, String reason);
+    }
+
+    public static final int OUTCOME_OK = 0;
+    public static final int OUTCOME_NO_FRAMES = 1;
+    public static final int OUTCOME_CLIPPED = 2;
+    public static final int OUTCOME_ERROR = 3;
+    public static final int OUTCOME_NAN = 4;
+
+    private static final int BINARY_MAGIC = 0x54465231; // "TFR1"
+
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final int DEFAULT_MAX_FRAMES = 16;
+    private static final int DEFAULT_MAX_CELLS = 16;
+    private static final float DEFAULT_MAX_JUMP = 5f;
+
+    private final int mCapacity;
+    private final int mMaxFrames;
+    private final int mMaxCells;
+
+    // Per analysis
+    private final long[] mTimestamps;
+    private final int[] mBufferLengths;
+    private final float[] mMaxSamples;
+    private final int[] mDetectedFrames;
+    private final int[] mRecordedFrames;
+    private final float[] mMedians;
+    private final float[] mTemperatures;
+    private final float[] mClippedFrameRatios;
+    private final byte[] mOutcomes;
+
+    // Per frame, mMaxFrames for each analysis
+    private final boolean[] mFrameClipped;
+    private final float[] mSlopes;
+    private final float[] mIntercepts;
+    private final float[] mIntersections;
+    private final float[] mFits;
+    private final int[] mCellCounts;
+
+    // Per cell, mMaxCells for each frame
+    private final byte[] mCellIndexes;
+    private final short[] mCellAmplitudes;
+
+    private int mNext;
+    private int mCount;
+
+    private float mMaxJump = DEFAULT_MAX_JUMP;
+    private float mLastTemperature = Float.NaN;
+    private volatile OnAnomalyListener mAnomalyListener;
+
+    public AnalyzerFlightRecorder() {
+        this(DEFAULT_CAPACITY, DEFAULT_MAX_FRAMES, DEFAULT_MAX_CELLS);
+    }
+
+    /**
+     * @param capacity  Number of analyses kept.
+     * @param maxFrames Frames kept per analysis, further frames aren't recorded.
+     * @param maxCells  Cells kept per frame, further cells aren't recorded.
+     */
+    public AnalyzerFlightRecorder(int capacity, int maxFrames, int maxCells) {
+        if (capacity <= 0 || maxFrames <= 0 || maxCells <= 0)
+            throw new IllegalArgumentException("Capacity, frames and cells must be positive");
+
+        mCapacity = capacity;
+        mMaxFrames = maxFrames;
+        mMaxCells = maxCells;
+
+        mTimestamps = new long[capacity];
+        mBufferLengths = new int[capacity];
+        mMaxSamples = new float[capacity];
+        mDetectedFrames = new int[capacity];
+        mRecordedFrames = new int[capacity];
+        mMedians = new float[capacity];
+        mTemperatures = new float[capacity];
+        mClippedFrameRatios = new float[capacity];
+        mOutcomes = new byte[capacity];
+
+        mFrameClipped = new boolean[capacity * maxFrames];
+        mSlopes = new float[capacity * maxFrames];
+        mIntercepts = new float[capacity * maxFrames];
+        mIntersections = new float[capacity * maxFrames];
+        mFits = new float[capacity * maxFrames];
+        mCellCounts = new int[capacity * maxFrames];
+
+        mCellIndexes = new byte[capacity * maxFrames * maxCells];
+        mCellAmplitudes = new short[capacity * maxFrames * maxCells];
+    }
+
+    public void setOnAnomalyListener(OnAnomalyListener listener) {
+        mAnomalyListener = listener;
+    }
+
+    /**
+     * Sets the largest change of the temperature between consecutive valid results, in degrees
+     * Celsius, which isn't reported as an anomaly. 5 degrees by default.
+     */
+    public synchronized void setMaxJump(float maxJump) {
+        mMaxJump = maxJump;
+    }
+
+    /**
+     * Starts recording an analysis, overwriting the oldest one if the ring is full. Must be
+     * followed by the frames and {@link #endAnalysis(int, int, AnalyzerResult)} while holding the
+     * lock of this recorder.
+     *
+     * @return The slot of the analysis.
+     */
+    int beginAnalysis(int bufferLength) {
+        int slot = mNext;
+        mNext = (mNext + 1) % mCapacity;
+        mCount = Math.min(mCount + 1, mCapacity);
+
+        mTimestamps[slot] = System.currentTimeMillis();
+        mBufferLengths[slot] = bufferLength;
+        mRecordedFrames[slot] = 0;
+        return slot;
+    }
+
+    void addFrame(int slot, boolean clipped, List<Cell> cells, Trendline trendline,
+                  float intersection, float fit) {
+        int frames = mRecordedFrames[slot];
+        if (frames == mMaxFrames)
+            return;
+        mRecordedFrames[slot] = frames + 1;
+
+        int frame = slot * mMaxFrames + frames;
+        mFrameClipped[frame] = clipped;
+        mSlopes[frame] = trendline.slope;
+        mIntercepts[frame] = trendline.intersection;
+        mIntersections[frame] = intersection;
+        mFits[frame] = fit;
+
+        int cellCount = Math.min(cells.size(), mMaxCells);
+        mCellCounts[frame] = cellCount;
+        for (int i = 0; i < cellCount; i++) {
+            Cell cell = cells.get(i);
+            mCellIndexes[frame * mMaxCells + i] = (byte) cell.cellIndex;
+            mCellAmplitudes[frame * mMaxCells + i] = cell.amplitude;
+        }
+    }
+
+    void endAnalysis(int slot, int detectedFrames, AnalyzerResult result) {
+        mDetectedFrames[slot] = detectedFrames;
+        mMaxSamples[slot] = result.maxSample;
+        mMedians[slot] = result.intersection;
+        mTemperatures[slot] = result.temperature;
+        mClippedFrameRatios[slot] = result.clippedFrameRatio;
+        mOutcomes[slot] = (byte) outcomeOf(result);
+    }
+
+    private static int outcomeOf(AnalyzerResult result) {
+        if (result.clipped)
+            return OUTCOME_CLIPPED;
+        if (result.error != null)
+            return result.numberOfFrames == 0 ? OUTCOME_NO_FRAMES : OUTCOME_ERROR;
+        if (Float.isNaN(result.temperature))
+            return OUTCOME_NAN;
+        return OUTCOME_OK;
+    }
+
+    /**
+     * Checks a final result for an anomaly, notifying the listener if there is one.
+     *
+     * @return True, if the result is anomalous.
+     */
+    public boolean checkResult(AnalyzerResult result) {
+        String reason = null;
+        synchronized (this) {
+            if (result.error != null) {
+                reason = "Error: " + result.error.getMessage();
+            } else if (Float.isNaN(result.temperature)) {
+                reason = "Temperature is NaN";
+            } else {
+                if (Math.abs(result.temperature - mLastTemperature) > mMaxJump)
+                    reason = "Temperature jumped from " + mLastTemperature + " to "
+                            + result.temperature;
+                mLastTemperature = result.temperature;
+            }
+        }
+
+        OnAnomalyListener listener = mAnomalyListener;
+        if (reason != null && listener != null)
+            listener.onAnomaly(this, reason);
+        return reason != null;
+    }
+
+    /**
+     * @return The number of analyses recorded, at most the capacity.
+     */
+    public synchronized int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Removes the recorded analyses.
+     */
+    public synchronized void clear() {
+        mNext = 0;
+        mCount = 0;
+        mLastTemperature = Float.NaN;
+    }
+
+    /**
+     * Writes the recorded analyses, oldest first, in a compact big-endian binary format: a header
+     * of the magic {@code "TFR1"} and the number of analyses, then for each analysis its
+     * timestamp, buffer length, largest sample, outcome, temperature, median intersection,
+     * clipped frame ratio, detected and recorded frame counts, followed by each recorded frame:
+     * whether it clipped, slope, intercept, intersection, fit, cell count and the index and
+     * amplitude of each cell.
+     */
+    public synchronized void writeBinary(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(BINARY_MAGIC);
+        data.writeInt(mCount);
+        for (int n = 0; n < mCount; n++) {
+            int slot = (mNext - mCount + n + mCapacity) % mCapacity;
+            data.writeLong(mTimestamps[slot]);
+            data.writeInt(mBufferLengths[slot]);
+            data.writeFloat(mMaxSamples[slot]);
+            data.writeByte(mOutcomes[slot]);
+            data.writeFloat(mTemperatures[slot]);
+            data.writeFloat(mMedians[slot]);
+            data.writeFloat(mClippedFrameRatios[slot]);
+            data.writeShort(mDetectedFrames[slot]);
+            data.writeShort(mRecordedFrames[slot]);
+            for (int f = 0; f < mRecordedFrames[slot]; f++) {
+                int frame = slot * mMaxFrames + f;
+                data.writeBoolean(mFrameClipped[frame]);
+                data.writeFloat(mSlopes[frame]);
+                data.writeFloat(mIntercepts[frame]);
+                data.writeFloat(mIntersections[frame]);
+                data.writeFloat(mFits[frame]);
+                data.writeByte(mCellCounts[frame]);
+                for (int c = 0; c < mCellCounts[frame]; c++) {
+                    data.writeByte(mCellIndexes[frame * mMaxCells + c]);
+                    data.writeShort(mCellAmplitudes[frame * mMaxCells + c]);
+                }
+            }
+        }
+        data.flush();
+    }
+
+    /**
+     * Writes the recorded analyses, oldest first, as JSON. Unknown values are {@code null}.
+     */
+    public synchronized void writeJson(Writer out) throws IOException {
+        StringBuilder b = new StringBuilder();
+        b.append("{\"analyses\": [");
+        for (int n = 0; n < mCount; n++) {
+            int slot = (mNext - mCount + n + mCapacity) % mCapacity;
+            b.append(n == 0 ? "\n" : ",\n");
+            b.append("  {\"timestamp\": ").append(mTimestamps[slot])
+                    .append(", \"bufferLength\": ").append(mBufferLengths[slot])
+                    .append(", \"maxSample\": ").append(jsonNumber(mMaxSamples[slot]))
+                    .append(", \"outcome\": ").append(mOutcomes[slot])
+                    .append(", \"temperature\": ").append(jsonNumber(mTemperatures[slot]))
+                    .append(", \"medianIntersection\": ").append(jsonNumber(mMedians[slot]))
+                    .append(", \"clippedFrameRatio\": ")
+                    .append(jsonNumber(mClippedFrameRatios[slot]))
+                    .append(", \"detectedFrames\": ").append(mDetectedFrames[slot])
+                    .append(", \"frames\": [");
+            for (int f = 0; f < mRecordedFrames[slot]; f++) {
+                int frame = slot * mMaxFrames + f;
+                b.append(f == 0 ? "\n" : ",\n");
+                b.append("    {\"clipped\": ").append(mFrameClipped[frame])
+                        .append(", \"slope\": ").append(jsonNumber(mSlopes[frame]))
+                        .append(", \"intercept\": ").append(jsonNumber(mIntercepts[frame]))
+                        .append(", \"intersection\": ").append(jsonNumber(mIntersections[frame]))
+                        .append(", \"fit\": ").append(jsonNumber(mFits[frame]))
+                        .append(", \"cells\": [");
+                for (int c = 0; c < mCellCounts[frame]; c++) {
+                    if (c > 0)
+                        b.append(", ");
+                    b.append('[').append(mCellIndexes[frame * mMaxCells + c]).append(", ")
+                            .append(mCellAmplitudes[frame * mMaxCells + c]).append(']');
+                }
+                b.append("]}");
+            }
+            b.append(mRecordedFrames[slot] == 0 ? "]}" : "\n  ]}");
+        }
+        b.append("\n]}\n");
+        out.write(b.toString());
+        out.flush();
+    }
+
+    private static String jsonNumber(float value) {
+        return Float.isNaN(value) || Float.isInfinite(value) ? "null" : Float.toString(value);
+    }
+}
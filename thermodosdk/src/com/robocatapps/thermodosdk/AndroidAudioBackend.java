@@ -0,0 +1,363 @@
+package com.robocatapps.thermodosdk;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioRecord;
+import android.media.AudioTimestamp;
+import android.media.AudioTrack;
+import android.media.MediaRecorder;
+import android.util.Log;
+
+import java.lang.reflect.Method;
+
+import static com.robocatapps.thermodosdk.Constants.DEFAULT_AUDIO_RECORD_SOURCE;
+
+/**
+ * The {@link AudioBackend} using {@link android.media.AudioRecord} and {@link
+ * android.media.AudioTrack}.
+ * <p/>
+ * Recording is done at the device's native sample rate when it is known, reading small chunks
+ * of the native buffer size, so the platform doesn't have to resample the captured audio.
+ */
+public class AndroidAudioBackend implements AudioBackend {
+
+    private static final String LOG_TAG = "AndroidAudioBackend";
+
+    /**
+     * {@code MediaRecorder.AudioSource.UNPROCESSED}, available from API level 24.
+     */
+    private static final int AUDIO_SOURCE_UNPROCESSED = 9;
+
+    /**
+     * Chunk duration used when the native buffer size is not known, in seconds.
+     */
+    private static final float DEFAULT_CHUNK_SECONDS = 0.01f;
+
+    /**
+     * {@code AudioRecord.getTimestamp(AudioTimestamp, int)}, available from API level 24, or
+     * {@code null} if it isn't.
+     */
+    private static final Method sGetTimestamp = findGetTimestamp();
+
+    /**
+     * {@code AudioTimestamp.TIMEBASE_MONOTONIC}, the {@link System#nanoTime()} clock.
+     */
+    private static final int TIMEBASE_MONOTONIC = 0;
+
+    /**
+     * {@code AudioRecord.SUCCESS}.
+     */
+    private static final int TIMESTAMP_SUCCESS = 0;
+
+    /**
+     * Provides the properties of the device's audio hardware used to configure the recording.
+     */
+    public interface AudioPropertiesProvider {
+
+        /**
+         * @return The native sample rate of the device, in Hertz, or 0 if it is not known.
+         */
+        int getNativeSampleRate();
+
+        /**
+         * @return The native buffer size of the device, in frames, or 0 if it is not known.
+         */
+        int getNativeFramesPerBuffer();
+
+        /**
+         * @return True, if the device supports recording from the unprocessed audio source.
+         */
+        boolean isUnprocessedSourceSupported();
+    }
+
+    private final AudioPropertiesProvider mPropertiesProvider;
+    private volatile int mPreferredAudioSource = -1;
+    private volatile int mLastAudioSource = -1;
+
+    public AndroidAudioBackend(AudioPropertiesProvider propertiesProvider) {
+        mPropertiesProvider = propertiesProvider;
+    }
+
+    /**
+     * Sets an audio source tried before all others, e.g. the one which worked last time, saving
+     * the initialization of the sources which are expected to fail.
+     *
+     * @param audioSource One of {@link android.media.MediaRecorder.AudioSource}, or -1 to only
+     *                    use the default order of preference.
+     */
+    public void setPreferredAudioSource(int audioSource) {
+        mPreferredAudioSource = audioSource;
+    }
+
+    /**
+     * @return The audio source of the last opened input, or -1 if no input was opened yet.
+     */
+    public int getLastAudioSource() {
+        return mLastAudioSource;
+    }
+
+    @Override
+    public AudioInput openInput(SignalProfile profile) {
+        AudioRecord audioRecord = null;
+        int nativeSampleRate = mPropertiesProvider.getNativeSampleRate();
+        if (nativeSampleRate > 0)
+            audioRecord = openAudioRecord(profile, nativeSampleRate);
+        // Fall back to the profile's rate if the native one isn't known or can't be used
+        if (audioRecord == null)
+            audioRecord = openAudioRecord(profile, profile.sampleRate);
+        if (audioRecord == null)
+            audioRecord = createAudioRecord(DEFAULT_AUDIO_RECORD_SOURCE, profile.sampleRate,
+                    profile);
+
+        mLastAudioSource = audioRecord.getAudioSource();
+        int sampleRate = audioRecord.getSampleRate();
+        int framesPerBuffer = mPropertiesProvider.getNativeFramesPerBuffer();
+        if (framesPerBuffer <= 0 || sampleRate != nativeSampleRate)
+            framesPerBuffer = (int) (DEFAULT_CHUNK_SECONDS * sampleRate);
+
+        Log.i(LOG_TAG, "Recording from source " + audioRecord.getAudioSource() + " at " +
+                sampleRate + " Hz in chunks of " + framesPerBuffer + " frames");
+
+        return new AndroidAudioInput(audioRecord, framesPerBuffer);
+    }
+
+    @Override
+    public AudioOutput openOutput(short[] samples, int sampleRate) {
+        return new AndroidAudioOutput(samples, sampleRate);
+    }
+
+    /**
+     * Opens an {@link android.media.AudioRecord} at the specified rate, trying the audio sources
+     * in order of preference.
+     *
+     * @return The initialized AudioRecord or {@code null} if none of the sources could be used.
+     */
+    private AudioRecord openAudioRecord(SignalProfile profile, int sampleRate) {
+        int preferredSource = mPreferredAudioSource;
+        if (preferredSource >= 0) {
+            AudioRecord audioRecord = createAudioRecord(preferredSource, sampleRate, profile);
+            if (audioRecord.getState() == AudioRecord.STATE_INITIALIZED)
+                return audioRecord;
+            audioRecord.release();
+        }
+
+        for (int source : getPreferredAudioSources()) {
+            if (source == preferredSource)
+                continue;
+
+            AudioRecord audioRecord = createAudioRecord(source, sampleRate, profile);
+            if (audioRecord.getState() == AudioRecord.STATE_INITIALIZED)
+                return audioRecord;
+            audioRecord.release();
+        }
+        return null;
+    }
+
+    private static AudioRecord createAudioRecord(int source, int sampleRate,
+                                                 SignalProfile profile) {
+        return new AudioRecord(source, sampleRate, AudioFormat.CHANNEL_IN_MONO,
+                AudioFormat.ENCODING_PCM_16BIT, getBufferSize(profile, sampleRate));
+    }
+
+    /**
+     * Returns the audio sources to try, best first. The unprocessed and voice recognition sources
+     * bypass most of the platform's gain control and noise suppression. Models with a specific
+     * default source (see {@link Constants#DEFAULT_AUDIO_RECORD_SOURCE}) keep it.
+     */
+    int[] getPreferredAudioSources() {
+        boolean unprocessed = mPropertiesProvider.isUnprocessedSourceSupported();
+        if (DEFAULT_AUDIO_RECORD_SOURCE != MediaRecorder.AudioSource.MIC)
+            return unprocessed
+                    ? new int[]{AUDIO_SOURCE_UNPROCESSED, DEFAULT_AUDIO_RECORD_SOURCE}
+                    : new int[]{DEFAULT_AUDIO_RECORD_SOURCE};
+
+        return unprocessed
+                ? new int[]{AUDIO_SOURCE_UNPROCESSED, MediaRecorder.AudioSource.VOICE_RECOGNITION,
+                DEFAULT_AUDIO_RECORD_SOURCE}
+                : new int[]{MediaRecorder.AudioSource.VOICE_RECOGNITION,
+                DEFAULT_AUDIO_RECORD_SOURCE};
+    }
+
+    /**
+     * @return The buffer size, in bytes, to use for recording Audio.
+     */
+    private static int getBufferSize(SignalProfile profile, int sampleRate) {
+        // Size should be enough to hold the profile's buffer duration, or more if the system
+        // requires a larger buffer. Reads are done in much smaller chunks, so this only protects
+        // against overruns while a buffer is being analyzed.
+        int minBufferSize = AudioRecord.getMinBufferSize(sampleRate,
+                AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
+        return Math.max(minBufferSize, profile.getBufferSamples(sampleRate) * 2);
+    }
+
+    private static Method findGetTimestamp() {
+        try {
+            return AudioRecord.class.getMethod("getTimestamp", AudioTimestamp.class, int.class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (NoClassDefFoundError e) {
+            return null;
+        }
+    }
+
+    private static class AndroidAudioInput implements AudioInput {
+
+        private final AudioRecord mAudioRecord;
+        private final int mChunkSize;
+        private AudioTimestamp mTimestamp;
+
+        AndroidAudioInput(AudioRecord audioRecord, int chunkSize) {
+            mAudioRecord = audioRecord;
+            mChunkSize = chunkSize;
+        }
+
+        @Override
+        public int getSampleRate() {
+            return mAudioRecord.getSampleRate();
+        }
+
+        @Override
+        public int getChunkSize() {
+            return mChunkSize;
+        }
+
+        @Override
+        public void start() {
+            mAudioRecord.startRecording();
+        }
+
+        @Override
+        public int read(short[] buffer, int offset, int length) {
+            return mAudioRecord.read(buffer, offset, length);
+        }
+
+        @Override
+        public long getCaptureNanos(long framePosition) {
+            if (sGetTimestamp == null)
+                return 0;
+
+            if (mTimestamp == null)
+                mTimestamp = new AudioTimestamp();
+            try {
+                Object status = sGetTimestamp.invoke(mAudioRecord, mTimestamp, TIMEBASE_MONOTONIC);
+                if (!Integer.valueOf(TIMESTAMP_SUCCESS).equals(status))
+                    return 0;
+            } catch (Exception e) {
+                return 0;
+            }
+
+            // The timestamp is of the last captured frame, extrapolate to the requested one
+            return mTimestamp.nanoTime + Math.round((framePosition - mTimestamp.framePosition)
+                    * 1e9 / mAudioRecord.getSampleRate());
+        }
+
+        @Override
+        public void stop() {
+            mAudioRecord.stop();
+        }
+
+        @Override
+        public void release() {
+            mAudioRecord.release();
+        }
+    }
+
+    private static class AndroidAudioOutput implements AudioOutput {
+
+        private final short[] mSamples;
+        private final int mSampleRate;
+        private AudioTrack mTrack;
+        private boolean mPlaying;
+        private boolean mPaused;
+        private float mGain = 1;
+
+        AndroidAudioOutput(short[] samples, int sampleRate) {
+            mSamples = samples;
+            mSampleRate = sampleRate;
+        }
+
+        @Override
+        public void prepare() {
+            if (mTrack == null) {
+                mTrack = getAudioTrack();
+                if (mGain != 1)
+                    mTrack.setStereoVolume(mGain, mGain);
+            }
+        }
+
+        @Override
+        public void setGain(float gain) {
+            mGain = gain;
+            if (mTrack != null)
+                mTrack.setStereoVolume(gain, gain);
+        }
+
+        @Override
+        public void play(int loopCount) {
+            prepare();
+            if (mPlaying)
+                stop();
+
+            mTrack.setLoopPoints(0, mSamples.length / Sound.CHANNELS_COUNT, loopCount);
+            mTrack.play();
+            mPlaying = true;
+            mPaused = false;
+        }
+
+        @Override
+        public void pause() {
+            if (!mPlaying || mPaused)
+                return;
+
+            mTrack.pause();
+            mPaused = true;
+        }
+
+        @Override
+        public void resume() {
+            if (!mPaused)
+                return;
+
+            mTrack.play();
+            mPaused = false;
+        }
+
+        @Override
+        public void stop() {
+            if (mTrack == null || !mPlaying)
+                return;
+
+            // Keep the static track, rewinding it for the next playback
+            mTrack.stop();
+            mTrack.reloadStaticData();
+            mPlaying = false;
+            mPaused = false;
+        }
+
+        @Override
+        public void release() {
+            if (mTrack == null)
+                return;
+
+            mTrack.stop();
+            mTrack.release();
+            mTrack = null;
+            mPlaying = false;
+            mPaused = false;
+        }
+
+        /**
+         * Creates an {@link android.media.AudioTrack} from the stored sound data.
+         *
+         * @return Resulting AudioTrack object.
+         */
+        private AudioTrack getAudioTrack() {
+            AudioTrack track = new AudioTrack(AudioManager.STREAM_MUSIC, mSampleRate,
+                    AudioFormat.CHANNEL_OUT_STEREO, AudioFormat.ENCODING_PCM_16BIT,
+                    mSamples.length * Sound.BYTES_PER_SAMPLE, AudioTrack.MODE_STATIC);
+            track.write(mSamples, 0, mSamples.length);
+
+            return track;
+        }
+    }
+}
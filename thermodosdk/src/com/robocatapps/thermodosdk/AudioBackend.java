@@ -0,0 +1,23 @@
+package com.robocatapps.thermodosdk;
+
+/**
+ * Creates the audio inputs and outputs used by the measurement pipeline. The default backend
+ * ({@link AndroidAudioBackend}) uses the platform's audio classes; other backends allow the
+ * pipeline to run off-device.
+ */
+public interface AudioBackend {
+
+    /**
+     * Opens an input for recording the signal described by the profile. The input may record at
+     * a rate other than the profile's; see {@link AudioInput#getSampleRate()}.
+     */
+    AudioInput openInput(SignalProfile profile);
+
+    /**
+     * Opens an output playing the specified sound.
+     *
+     * @param samples    Interleaved stereo samples.
+     * @param sampleRate The sample rate of the sound, in Hertz.
+     */
+    AudioOutput openOutput(short[] samples, int sampleRate);
+}
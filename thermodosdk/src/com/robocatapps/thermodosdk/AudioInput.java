@@ -0,0 +1,48 @@
+package com.robocatapps.thermodosdk;
+
+/**
+ * A source of recorded mono 16-bit audio, as provided by an {@link AudioBackend}.
+ */
+public interface AudioInput {
+
+    /**
+     * @return The rate at which the audio is recorded, in Hertz.
+     */
+    int getSampleRate();
+
+    /**
+     * @return The preferred number of samples to request in a single {@link #read(short[], int,
+     * int)} call.
+     */
+    int getChunkSize();
+
+    /**
+     * Starts recording. Audio is available through {@link #read(short[], int, int)} afterwards.
+     */
+    void start();
+
+    /**
+     * Reads recorded audio, blocking until the requested amount is available.
+     *
+     * @return The number of samples read or a negative error code.
+     */
+    int read(short[] buffer, int offset, int length);
+
+    /**
+     * Returns when a frame was captured, if the input knows it.
+     *
+     * @param framePosition Index of the frame since the recording was started.
+     * @return The capture time on the {@link System#nanoTime()} clock, or 0 if it is unknown.
+     */
+    long getCaptureNanos(long framePosition);
+
+    /**
+     * Stops recording. Can be called from any thread to unblock a pending read.
+     */
+    void stop();
+
+    /**
+     * Releases all the resources held by this input. It can't be used anymore afterwards.
+     */
+    void release();
+}
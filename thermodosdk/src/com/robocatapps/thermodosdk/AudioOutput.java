@@ -0,0 +1,46 @@
+package com.robocatapps.thermodosdk;
+
+/**
+ * A player for a fixed interleaved stereo 16-bit sound, as provided by an {@link AudioBackend}.
+ */
+public interface AudioOutput {
+
+    /**
+     * Allocates the platform resources and loads the sound, so a following {@link #play(int)}
+     * starts without delay. Called by {@link #play(int)} if needed.
+     */
+    void prepare();
+
+    /**
+     * Starts the playback from the beginning of the sound.
+     *
+     * @param loopCount Sets the number of times the sound will be played. -1 results in an
+     *                  infinite loop. 0 disables looping.
+     */
+    void play(int loopCount);
+
+    /**
+     * Sets the digital gain applied to the sound, between 0 and 1. Can be changed while playing.
+     */
+    void setGain(float gain);
+
+    /**
+     * Pauses the playback, keeping its position. Does nothing if not playing.
+     */
+    void pause();
+
+    /**
+     * Resumes a paused playback from its position. Does nothing if not paused.
+     */
+    void resume();
+
+    /**
+     * Stops the playback and rewinds the sound. The output can be played again afterwards.
+     */
+    void stop();
+
+    /**
+     * Releases all the resources held by this output. It can't be used anymore afterwards.
+     */
+    void release();
+}
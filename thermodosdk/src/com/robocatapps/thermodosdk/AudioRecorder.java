@@ -1,15 +1,14 @@
 package com.robocatapps.thermodosdk;
 
-import android.media.AudioFormat;
-import android.media.AudioRecord;
-
-import static com.robocatapps.thermodosdk.Constants.DEFAULT_AUDIO_RECORD_SOURCE;
-import static com.robocatapps.thermodosdk.Constants.SAMPLE_RATE;
-import static com.robocatapps.thermodosdk.Constants.SECONDS;
+import java.util.Arrays;
 
 /**
- * A class that wraps {@link android.media.AudioRecord} class. It reads data from the recorder in
- * the separate {@link Thread} and passes read data to the listener.
+ * A class that records audio from an {@link AudioInput} provided by an {@link AudioBackend}. It
+ * reads data from the input in the separate {@link Thread} and passes read data to the listener.
+ * <p/>
+ * Data is read in chunks of the input's preferred size and accumulated until a buffer of the
+ * listener's duration, by default the profile's, is filled. The listener can be switched while
+ * recording, handing the live capture over without restarting it.
  */
 public class AudioRecorder {
 
@@ -19,6 +18,14 @@ public class AudioRecorder {
      */
     public interface OnBufferFilledListener {
 
+        /**
+         * Called before the first buffer is delivered to this listener, either when the recording
+         * starts or when the recording is handed over to it.
+         *
+         * @param sampleRate The rate at which the audio is actually being recorded, in Hertz.
+         */
+        void onRecordingStarted(int sampleRate);
+
         /**
          * Called when the buffer has been filled.
          *
@@ -33,17 +40,85 @@ public class AudioRecorder {
 	     * <p/>
 	     * This method will be called from a background thread.
 	     *
-	     * @param what The value returned from {@link android.media.AudioRecord#read(short[], int,
-	     * int)}
+	     * @param what The value returned from {@link AudioInput#read(short[], int, int)}
 	     */
 	    void onRecorderError(int what);
     }
 
-    private final OnBufferFilledListener mBufferListener;
-    private RecorderThread mRecordingThread;
+    private final AudioBackend mBackend;
+    private volatile RecorderThread mRecordingThread;
+    private AudioInput mPreparedInput;
+    private SignalProfile mProfile;
+    private Target mTarget;
+    private boolean mPaused;
+
+    public AudioRecorder(OnBufferFilledListener onBufferListener, SignalProfile profile,
+                         AudioBackend backend) {
+        mProfile = profile;
+        mBackend = backend;
+        mTarget = new Target(onBufferListener, profile.seconds, 0, 0);
+    }
+
+    /**
+     * Switches the listener receiving the recorded buffers and the duration of the buffers it
+     * receives. If recording, the switch happens on the recording thread at the next read, so the
+     * capture continues uninterrupted. Audio accumulated for the previous listener is discarded.
+     *
+     * @param bufferSeconds Duration of the delivered buffers, in seconds.
+     */
+    public void setListener(OnBufferFilledListener listener, float bufferSeconds) {
+        setListener(listener, bufferSeconds, 0, 0);
+    }
+
+    /**
+     * Switches the listener like {@link #setListener(OnBufferFilledListener, float)}, delivering
+     * to it from a capture position, see {@link #getCapturePosition()}. Audio captured before it
+     * is discarded.
+     *
+     * @param fromPosition       Position of the first sample delivered to the listener.
+     * @param firstBufferSamples Length of the first buffer delivered to the listener, if shorter
+     *                           than the others, so it is delivered sooner. 0 for the others'.
+     */
+    public void setListener(OnBufferFilledListener listener, float bufferSeconds,
+                            long fromPosition, int firstBufferSamples) {
+        mTarget = new Target(listener, bufferSeconds, fromPosition, firstBufferSamples);
+        RecorderThread thread = mRecordingThread;
+        if (thread != null)
+            thread.setTarget(mTarget);
+    }
+
+    /**
+     * Sets the profile used to size the recorded buffers. Takes effect the next time recording is
+     * started.
+     */
+    public synchronized void setSignalProfile(SignalProfile profile) {
+        mProfile = profile;
+        releasePreparedInput();
+    }
+
+    /**
+     * Opens the input ahead of time, so a following {@link #startRecording()} only has to start
+     * it. Can be called from a background thread. The input is held until recording or {@link
+     * #release()}.
+     */
+    public synchronized void prepare() {
+        if (mPreparedInput == null && !isRecording())
+            mPreparedInput = mBackend.openInput(mProfile);
+    }
+
+    /**
+     * Stops recording and releases the input opened by {@link #prepare()}, if any.
+     */
+    public synchronized void release() {
+        stopRecording();
+        releasePreparedInput();
+    }
 
-    public AudioRecorder(OnBufferFilledListener onBufferListener) {
-        mBufferListener = onBufferListener;
+    private void releasePreparedInput() {
+        if (mPreparedInput != null) {
+            mPreparedInput.release();
+            mPreparedInput = null;
+        }
     }
 
     /**
@@ -51,11 +126,14 @@ public class AudioRecorder {
      * <p><b>Note:<b/> It most likely recording will not start right after calling this method due
      * to the native layer latencies.</p>
      */
-    public void startRecording() {
+    public synchronized void startRecording() {
         if (isRecording())
             return;
 
-        mRecordingThread = new RecorderThread(mBufferListener);
+        AudioInput input = mPreparedInput != null ? mPreparedInput : mBackend.openInput(mProfile);
+        mPreparedInput = null;
+        mRecordingThread = new RecorderThread(mTarget, input);
+        mRecordingThread.setPaused(mPaused);
         mRecordingThread.setName("AudioRecorder");
         mRecordingThread.start();
     }
@@ -63,7 +141,7 @@ public class AudioRecorder {
     /**
      * Stops recording and all underlying threads.
      */
-    public void stopRecording() {
+    public synchronized void stopRecording() {
         if (!isRecording())
             return;
 
@@ -71,33 +149,211 @@ public class AudioRecorder {
         mRecordingThread = null;
     }
 
-    private boolean isRecording() {
+    /**
+     * Pauses the delivery of buffers while recording continues. Audio recorded while paused is
+     * discarded, as is the partially filled buffer.
+     */
+    public synchronized void pause() {
+        mPaused = true;
+        if (mRecordingThread != null)
+            mRecordingThread.setPaused(true);
+    }
+
+    /**
+     * Resumes the delivery of buffers. The next delivered buffer only holds audio recorded after
+     * this call.
+     */
+    public synchronized void resume() {
+        resume(0, 0);
+    }
+
+    /**
+     * Resumes the delivery of buffers from a capture position, see {@link #getCapturePosition()}.
+     * The audio captured before it is discarded and the next buffer starts right at it.
+     *
+     * @param fromPosition       Position of the first sample delivered.
+     * @param firstBufferSamples Length of the next delivered buffer, if shorter than the
+     *                           listener's, so it is delivered sooner. 0 for the listener's.
+     */
+    public synchronized void resume(long fromPosition, int firstBufferSamples) {
+        mPaused = false;
+        if (mRecordingThread != null)
+            mRecordingThread.resume(fromPosition, firstBufferSamples);
+    }
+
+    /**
+     * @return The number of samples read since the recording was started, including the ones
+     * discarded while paused, or 0 if not recording.
+     */
+    public long getPosition() {
+        RecorderThread thread = mRecordingThread;
+        return thread != null ? thread.mPosition : 0;
+    }
+
+    /**
+     * @return The estimated position of the sample being captured now, see {@link
+     * #getPosition()}, or 0 if not recording. It is ahead of the read position by the audio
+     * waiting in the input to be read.
+     */
+    public long getCapturePosition() {
+        RecorderThread thread = mRecordingThread;
+        return thread != null ? thread.getCapturePosition(System.nanoTime()) : 0;
+    }
+
+    /**
+     * @return The position of the first sample of the last delivered buffer, see {@link
+     * #getPosition()}. Called from {@link OnBufferFilledListener#onBufferFilled(short[])}, it
+     * tells when the buffer being delivered was recorded.
+     */
+    public long getBufferStartPosition() {
+        RecorderThread thread = mRecordingThread;
+        return thread != null ? thread.mBufferStartPosition : 0;
+    }
+
+    /**
+     * @return When the last sample of the last delivered buffer was captured, on the {@link
+     * System#nanoTime()} clock, or 0 if not recording. Called from {@link
+     * OnBufferFilledListener#onBufferFilled(short[])}, it tells how old the buffer being delivered
+     * is.
+     * @see #isBufferCaptureTimeFromInput()
+     */
+    public long getBufferCaptureNanos() {
+        RecorderThread thread = mRecordingThread;
+        return thread != null ? thread.mBufferCaptureNanos : 0;
+    }
+
+    /**
+     * @return True, if the capture time of the last delivered buffer was reported by the input,
+     * false if it was derived from the number of samples read, which makes it later by the
+     * latency of the fastest read.
+     */
+    public boolean isBufferCaptureTimeFromInput() {
+        RecorderThread thread = mRecordingThread;
+        return thread != null && thread.mBufferCaptureTimeFromInput;
+    }
+
+    /**
+     * @return True, if the recording has been started and not stopped yet.
+     */
+    public boolean isRecording() {
         return mRecordingThread != null;
     }
 
+    /**
+     * A listener together with the duration of the buffers delivered to it.
+     */
+    private static class Target {
+
+        final OnBufferFilledListener listener;
+        final float bufferSeconds;
+        final long fromPosition;
+        final int firstBufferSamples;
+
+        Target(OnBufferFilledListener listener, float bufferSeconds, long fromPosition,
+               int firstBufferSamples) {
+            this.listener = listener;
+            this.bufferSeconds = bufferSeconds;
+            this.fromPosition = fromPosition;
+            this.firstBufferSamples = firstBufferSamples;
+        }
+    }
+
     /**
      * Thread in which all recording operations are actually performed.
      */
     private static class RecorderThread extends Thread {
 
-        private final short[] mBuffer;
-        private final OnBufferFilledListener mListener;
-        private final AudioRecord mAudioRecord;
+        private final AudioInput mInput;
+        private final int mSampleRate;
+        private volatile Target mPendingTarget;
+        private volatile boolean mPaused;
+        private volatile long mResumePosition;
+        private volatile int mFirstBufferSize;
+        private short[] mBuffer;
+        private int mChunkSize;
+        private OnBufferFilledListener mListener;
+        private volatile long mPosition;
+        private volatile long mBufferStartPosition;
+        private volatile long mBufferCaptureNanos;
+        private volatile boolean mBufferCaptureTimeFromInput;
+        // Earliest time the recording can have started, judging by when the samples were read
+        private volatile long mStartNanos = Long.MAX_VALUE;
+        // When the sample at position 0 was captured, according to the last delivered buffer
+        private volatile long mCaptureOriginNanos = Long.MAX_VALUE;
+
+        public RecorderThread(Target target, AudioInput input) {
+            mInput = input;
+            mSampleRate = input.getSampleRate();
+            mPendingTarget = target;
+        }
+
+        void setTarget(Target target) {
+            mPendingTarget = target;
+        }
+
+        void setPaused(boolean paused) {
+            mPaused = paused;
+        }
+
+        void resume(long fromPosition, int firstBufferSize) {
+            mResumePosition = fromPosition;
+            mFirstBufferSize = firstBufferSize;
+            mPaused = false;
+        }
+
+        long getCapturePosition(long nanos) {
+            long position = mPosition;
+            long originNanos = mCaptureOriginNanos;
+            if (originNanos == Long.MAX_VALUE)
+                originNanos = mStartNanos;
+            if (originNanos == Long.MAX_VALUE || nanos <= originNanos)
+                return position;
+            return Math.max(position, (long) ((nanos - originNanos) * 1e-9 * mSampleRate));
+        }
 
-        public RecorderThread(OnBufferFilledListener listener) {
+        /**
+         * Starts delivering to the pending target, if there is one.
+         *
+         * @return True, if the target has changed.
+         */
+        private boolean applyPendingTarget() {
+            Target target = mPendingTarget;
+            if (target == null)
+                return false;
+            mPendingTarget = null;
 
-            int bufferSize = getBufferSize();
-            mBuffer = new short[bufferSize / 2];
-            mListener = listener;
-            mAudioRecord = new AudioRecord(DEFAULT_AUDIO_RECORD_SOURCE, SAMPLE_RATE,
-                    AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT,
-                    bufferSize);
+            int bufferSize = Math.max(1, (int) (target.bufferSeconds * mSampleRate));
+            if (mBuffer == null || mBuffer.length != bufferSize)
+                mBuffer = new short[bufferSize];
+            mChunkSize = Math.max(1, Math.min(mInput.getChunkSize(), bufferSize));
+            mListener = target.listener;
+            mResumePosition = Math.max(mResumePosition, target.fromPosition);
+            mFirstBufferSize = target.firstBufferSamples;
+
+            if (mListener != null)
+                mListener.onRecordingStarted(mSampleRate);
+            return true;
         }
 
         @Override
         public void run() {
+            int filled = 0;
+            long bufferStart = 0;
             while (!isInterrupted()) {
-                int read = mAudioRecord.read(mBuffer, 0, mBuffer.length);
+                if (applyPendingTarget())
+                    filled = 0;
+                if (filled == 0)
+                    bufferStart = mPosition;
+
+                // The buffer after a resume may be shorter, unless more has been filled already
+                int firstBufferSize = mFirstBufferSize;
+                int bufferSize = firstBufferSize > filled && firstBufferSize < mBuffer.length
+                        ? firstBufferSize : mBuffer.length;
+
+                // Read in small native-sized chunks until the delivered buffer is full
+                boolean paused = mPaused;
+                int read = mInput.read(mBuffer, filled, Math.min(mChunkSize,
+                        bufferSize - filled));
 
                 // Check for interruption
                 if (isInterrupted())
@@ -110,35 +366,69 @@ public class AudioRecorder {
                         mListener.onRecorderError(read);
                     break;
                 }
+                mPosition += read;
+
+                // A sample can't be read before it was captured, so the read which waited the
+                // least for its samples dates the recording best
+                mStartNanos = Math.min(mStartNanos, System.nanoTime() - samplesToNanos(mPosition));
+
+                // Keep reading while paused, discarding the audio. A chunk is discarded as well
+                // if the pause started while reading it.
+                if (paused || mPaused) {
+                    filled = 0;
+                    continue;
+                }
+
+                filled += read;
+
+                // Discard the audio captured before the position delivery was resumed from
+                long resumePosition = mResumePosition;
+                if (resumePosition > bufferStart) {
+                    int skip = (int) Math.min(filled, resumePosition - bufferStart);
+                    System.arraycopy(mBuffer, skip, mBuffer, 0, filled - skip);
+                    filled -= skip;
+                    bufferStart += skip;
+                }
+
+                if (filled < bufferSize)
+                    continue;
+                filled = 0;
+                mBufferStartPosition = bufferStart;
+                updateBufferCaptureNanos(mPosition - 1);
+                mFirstBufferSize = 0;
 
                 // Fire obtained data to the listener
+                short[] data = bufferSize < mBuffer.length ? Arrays.copyOf(mBuffer, bufferSize)
+                        : mBuffer;
                 if (mListener != null && !isInterrupted())
-                    mListener.onBufferFilled(mBuffer);
+                    mListener.onBufferFilled(data);
             }
 
-            mAudioRecord.release();
+            mInput.release();
+        }
+
+        private void updateBufferCaptureNanos(long lastPosition) {
+            long captureNanos = mInput.getCaptureNanos(lastPosition);
+            mBufferCaptureTimeFromInput = captureNanos != 0;
+            if (captureNanos == 0)
+                captureNanos = mStartNanos + samplesToNanos(lastPosition);
+            mBufferCaptureNanos = captureNanos;
+            mCaptureOriginNanos = captureNanos - samplesToNanos(lastPosition);
+        }
+
+        private long samplesToNanos(long samples) {
+            return (long) (samples * 1e9 / mSampleRate);
         }
 
         @Override
         public synchronized void start() {
-            mAudioRecord.startRecording();
+            mInput.start();
             super.start();
         }
 
-        public void stopRecording() {
-            mAudioRecord.stop();
-            interrupt(); // Background thread will release the AudioRecord object
-        }
-
-        /**
-         * @return The buffer size, in bytes, to use for recording Audio.
-         */
-        private static int getBufferSize() {
-            // Size should be enough to hold half a second of audio, or more if the system requires
-            // a larger buffer.
-            int minBufferSize = AudioRecord.getMinBufferSize(SAMPLE_RATE,
-                    AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
-            return Math.max(minBufferSize, (int) (SECONDS * SAMPLE_RATE) * 2);
+        public synchronized void stopRecording() {
+            mInput.stop();
+            interrupt(); // Background thread will release the input
         }
     }
 }
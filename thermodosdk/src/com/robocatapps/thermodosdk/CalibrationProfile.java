@@ -0,0 +1,150 @@
+package com.robocatapps.thermodosdk;
+
+import java.util.Arrays;
+
+/**
+ * The audio settings that work best for a device model: the audio source to record from, the
+ * output volume and the noise floor of the input. Optionally holds the measured curve of the
+ * recorded signal amplitude versus the output volume.
+ * <p/>
+ * Profiles come from the bundled {@link CalibrationTable} or from a self-calibration (see {@link
+ * Calibrator}) cached by a {@link CalibrationStore}. Unknown values are -1 or NaN.
+ */
+public final class CalibrationProfile {
+
+    private static final String FORMAT_VERSION = "1";
+    private static final String FIELD_SEPARATOR = "|";
+    private static final String POINT_SEPARATOR = ",";
+    private static final String VALUE_SEPARATOR = ":";
+
+    public final String model;
+    // One of MediaRecorder.AudioSource, or -1 if not known
+    public final int audioSource;
+    // Output volume as a fraction of the maximum stream volume, or NaN if not known
+    public final float volumeFraction;
+    // Robust maximum of the recorded silence, or -1 if not known
+    public final int noiseFloor;
+
+    private final float[] mCurveVolumes;
+    private final float[] mCurveAmplitudes;
+
+    /**
+     * @param curveVolumes    Output volumes of the curve, as fractions of the maximum, ascending.
+     * @param curveAmplitudes Largest recorded sample at each of the volumes.
+     */
+    public CalibrationProfile(String model, int audioSource, float volumeFraction, int noiseFloor,
+                              float[] curveVolumes, float[] curveAmplitudes) {
+        if (curveVolumes.length != curveAmplitudes.length)
+            throw new IllegalArgumentException("Curve volumes and amplitudes differ in length");
+
+        this.model = model;
+        this.audioSource = audioSource;
+        this.volumeFraction = volumeFraction;
+        this.noiseFloor = noiseFloor;
+        mCurveVolumes = curveVolumes.clone();
+        mCurveAmplitudes = curveAmplitudes.clone();
+    }
+
+    /**
+     * @return The output volume fraction, or the specified default if not known.
+     */
+    public float getVolumeFraction(float defaultValue) {
+        return Float.isNaN(volumeFraction) ? defaultValue : volumeFraction;
+    }
+
+    public int getCurveSize() {
+        return mCurveVolumes.length;
+    }
+
+    public float getCurveVolume(int index) {
+        return mCurveVolumes[index];
+    }
+
+    public float getCurveAmplitude(int index) {
+        return mCurveAmplitudes[index];
+    }
+
+    /**
+     * Returns the recorded amplitude expected at the specified output volume, interpolating the
+     * curve linearly and clamping it at its ends.
+     *
+     * @return The amplitude, or NaN if there is no curve.
+     */
+    public float amplitudeAtVolume(float volumeFraction) {
+        int size = mCurveVolumes.length;
+        if (size == 0)
+            return Float.NaN;
+        if (volumeFraction <= mCurveVolumes[0])
+            return mCurveAmplitudes[0];
+        for (int i = 1; i < size; i++) {
+            if (volumeFraction <= mCurveVolumes[i]) {
+                float t = (volumeFraction - mCurveVolumes[i - 1])
+                        / (mCurveVolumes[i] - mCurveVolumes[i - 1]);
+                return mCurveAmplitudes[i - 1] + t * (mCurveAmplitudes[i] - mCurveAmplitudes[i - 1]);
+            }
+        }
+        return mCurveAmplitudes[size - 1];
+    }
+
+    /**
+     * Encodes the profile, apart from the model, to a compact string, e.g. {@code
+     * "1|5|0.8|40|0.5:9000,0.6:12000"}.
+     */
+    public String encode() {
+        StringBuilder b = new StringBuilder();
+        b.append(FORMAT_VERSION).append(FIELD_SEPARATOR)
+                .append(audioSource).append(FIELD_SEPARATOR)
+                .append(volumeFraction).append(FIELD_SEPARATOR)
+                .append(noiseFloor).append(FIELD_SEPARATOR);
+        for (int i = 0; i < mCurveVolumes.length; i++) {
+            if (i > 0)
+                b.append(POINT_SEPARATOR);
+            b.append(mCurveVolumes[i]).append(VALUE_SEPARATOR).append(mCurveAmplitudes[i]);
+        }
+        return b.toString();
+    }
+
+    /**
+     * Decodes a profile encoded by {@link #encode()}.
+     *
+     * @return The profile, or {@code null} if the string is malformed or of another version.
+     */
+    public static CalibrationProfile decode(String model, String encoded) {
+        if (encoded == null)
+            return null;
+
+        String[] fields = encoded.split("\\" + FIELD_SEPARATOR, -1);
+        if (fields.length != 5 || !FORMAT_VERSION.equals(fields[0]))
+            return null;
+
+        try {
+            int audioSource = Integer.parseInt(fields[1]);
+            float volumeFraction = Float.parseFloat(fields[2]);
+            int noiseFloor = Integer.parseInt(fields[3]);
+
+            String[] points = fields[4].isEmpty() ? new String[0] : fields[4].split(POINT_SEPARATOR);
+            float[] volumes = new float[points.length];
+            float[] amplitudes = new float[points.length];
+            for (int i = 0; i < points.length; i++) {
+                String[] values = points[i].split(VALUE_SEPARATOR);
+                if (values.length != 2)
+                    return null;
+                volumes[i] = Float.parseFloat(values[0]);
+                amplitudes[i] = Float.parseFloat(values[1]);
+            }
+
+            return new CalibrationProfile(model, audioSource, volumeFraction, noiseFloor, volumes,
+                    amplitudes);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CalibrationProfile{" + model + ": source " + audioSource + ", volume "
+                + volumeFraction + ", noise floor " + noiseFloor + ", curve "
+                + Arrays.toString(mCurveVolumes) + " -> " + Arrays.toString(mCurveAmplitudes)
+                + "}";
+    }
+}
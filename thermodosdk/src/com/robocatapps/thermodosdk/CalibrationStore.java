@@ -0,0 +1,41 @@
+package com.robocatapps.thermodosdk;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Caches the self-calibrated {@link CalibrationProfile}s in the app's private preferences, one
+ * compact string per device model.
+ */
+public class CalibrationStore {
+
+    private static final String PREFERENCES_NAME = "com.robocatapps.thermodosdk.calibration";
+
+    private final SharedPreferences mPreferences;
+
+    public CalibrationStore(Context context) {
+        mPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return The cached profile for the model, or {@code null} if there is none.
+     */
+    public CalibrationProfile load(String model) {
+        return CalibrationProfile.decode(model, mPreferences.getString(model, null));
+    }
+
+    /**
+     * Caches the profile, replacing the one of the same model. Written asynchronously, so it can
+     * be called from any thread.
+     */
+    public void save(CalibrationProfile profile) {
+        mPreferences.edit().putString(profile.model, profile.encode()).apply();
+    }
+
+    /**
+     * Removes the cached profile of the model, so it is calibrated again.
+     */
+    public void remove(String model) {
+        mPreferences.edit().remove(model).apply();
+    }
+}
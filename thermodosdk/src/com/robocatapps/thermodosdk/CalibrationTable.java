@@ -0,0 +1,57 @@
+package com.robocatapps.thermodosdk;
+
+import android.media.MediaRecorder;
+
+/**
+ * Calibration profiles bundled with the SDK for device models known to need specific settings.
+ * Looked up by prefixes of {@link android.os.Build#MODEL}.
+ */
+public class CalibrationTable {
+
+    private static final float UNKNOWN_VOLUME = Float.NaN;
+    private static final int UNKNOWN_NOISE_FLOOR = -1;
+
+    private static final float[] NO_CURVE = new float[0];
+
+    // Prefixes of Build.MODEL and the profile for them
+    private static final String[] MODEL_PREFIXES;
+    private static final CalibrationProfile[] PROFILES;
+
+    static {
+        // Better readings are done when using the CAMCORDER AudioSource on the Galaxy S3
+        // Source: http://en.wikipedia.org/wiki/Samsung_Galaxy_S_III
+        CalibrationProfile galaxyS3 = bundled("Samsung Galaxy S3",
+                MediaRecorder.AudioSource.CAMCORDER, UNKNOWN_VOLUME);
+
+        MODEL_PREFIXES = new String[]{
+                "GT-I9300", "GT-I9305", // Samsung Galaxy S3 International
+                "SGH-T999", // Samsung Galaxy S3 T-Mobile
+                "SGH-I747", // Samsung Galaxy S3 AT&T
+                "SCH-R530", // Samsung Galaxy S3 Cricket Wireless, U.S. Cellular, MetroPCS
+                "SCH-I535", // Samsung Galaxy S3 Verizon
+                "SPH-L710", "SCH-960L", // Samsung Galaxy S3 Sprint, Boost Mobile, Virgin Mobile
+                "SCH-S968C", // Samsung Galaxy S3 Straight Talk
+        };
+        PROFILES = new CalibrationProfile[MODEL_PREFIXES.length];
+        for (int i = 0; i < PROFILES.length; i++)
+            PROFILES[i] = galaxyS3;
+    }
+
+    private static CalibrationProfile bundled(String model, int audioSource,
+                                              float volumeFraction) {
+        return new CalibrationProfile(model, audioSource, volumeFraction, UNKNOWN_NOISE_FLOOR,
+                NO_CURVE, NO_CURVE);
+    }
+
+    /**
+     * @return The bundled profile for the model, or {@code null} if there is none.
+     */
+    public static CalibrationProfile lookup(String model) {
+        String upperCaseModel = model.toUpperCase();
+        for (int i = 0; i < MODEL_PREFIXES.length; i++)
+            if (upperCaseModel.startsWith(MODEL_PREFIXES[i]))
+                return PROFILES[i];
+
+        return null;
+    }
+}
@@ -0,0 +1,277 @@
+package com.robocatapps.thermodosdk;
+
+import com.robocatapps.thermodosdk.model.AnalyzerResult;
+
+import java.util.logging.Logger;
+
+/**
+ * Self-calibrates the audio settings of a device with a Thermodo plugged in. Each candidate audio
+ * source is tried at the default volume and the one with the best signal to noise ratio is kept.
+ * For that source the output volume is swept, recording the curve of the signal amplitude versus
+ * the volume, and the loudest volume which leaves headroom below clipping is chosen.
+ * <p/>
+ * Calibration blocks for several seconds, so {@link #calibrate(String)} has to be called on a
+ * background thread. It can be cancelled from any thread, and changes no settings once {@link
+ * #cancel()} has returned. The changed settings are restored by {@link #restoreSettings()}, on the
+ * thread owning them.
+ */
+public class Calibrator {
+
+    private static Logger sLog = Logger.getLogger(Calibrator.class.getName());
+
+    /**
+     * Controls the output volume during the calibration, e.g. the music stream volume.
+     */
+    public interface VolumeControl {
+
+        int getMaxVolume();
+
+        int getVolume();
+
+        void setVolume(int volume);
+    }
+
+    /**
+     * Volume fraction at which the audio sources are compared.
+     */
+    private static final float SOURCE_TEST_VOLUME_FRACTION = 0.85f;
+
+    /**
+     * The volume sweep goes from this fraction of the maximum volume to the maximum.
+     */
+    private static final float MIN_VOLUME_FRACTION = 0.5f;
+    private static final int VOLUME_STEPS = 6;
+
+    /**
+     * Largest accepted signal amplitude, as a fraction of the full scale, leaving headroom for
+     * temperature changes.
+     */
+    private static final float MAX_AMPLITUDE_FRACTION = 0.8f;
+
+    private static final float NOISE_WINDOW_SECONDS = 0.3f;
+
+    /**
+     * Audio discarded after starting the playback or changing the volume, in seconds.
+     */
+    private static final float SETTLE_SECONDS = 0.15f;
+
+    private final AudioBackend mBackend;
+    private final VolumeControl mVolumeControl;
+    private final SignalProfile mProfile;
+    private final DefaultSignalAnalyzer mAnalyzer;
+    private final SignalLevelMeter mMeter = new SignalLevelMeter();
+    private final Sound mSignal;
+
+    private volatile boolean mCancelled;
+    private volatile AudioInput mInput;
+    private volatile int mPreviousVolume = -1;
+
+    public Calibrator(AudioBackend backend, VolumeControl volumeControl, SignalProfile profile) {
+        mBackend = backend;
+        mVolumeControl = volumeControl;
+        mProfile = profile;
+        mAnalyzer = new DefaultSignalAnalyzer(profile);
+        mSignal = SoundGenerator.generateSweepSignal(profile);
+    }
+
+    /**
+     * Runs the calibration. The output volume and the audio source are left as the calibration
+     * set them, see {@link #restoreSettings()}.
+     *
+     * @param model The device model the profile is for.
+     * @return The calibrated profile, or {@code null} if the calibration failed or was cancelled.
+     */
+    public CalibrationProfile calibrate(String model) {
+        int maxVolume = mVolumeControl.getMaxVolume();
+        mPreviousVolume = mVolumeControl.getVolume();
+        try {
+            return calibrate(model, maxVolume);
+        } finally {
+            mSignal.release();
+        }
+    }
+
+    /**
+     * Restores the output volume the calibration started with and lets the backend choose the
+     * audio source again. Called after {@link #calibrate(String)} returned or after {@link
+     * #cancel()}, so the calibration can't change the settings back.
+     */
+    public void restoreSettings() {
+        int previousVolume = mPreviousVolume;
+        if (previousVolume >= 0)
+            mVolumeControl.setVolume(previousVolume);
+        if (mBackend instanceof AndroidAudioBackend)
+            ((AndroidAudioBackend) mBackend).setPreferredAudioSource(-1);
+    }
+
+    private CalibrationProfile calibrate(String model, int maxVolume) {
+        // Select the source with the best signal to noise ratio
+        int[] sources = mBackend instanceof AndroidAudioBackend
+                ? ((AndroidAudioBackend) mBackend).getPreferredAudioSources() : new int[]{-1};
+        int[] testVolume = {(int) (maxVolume * SOURCE_TEST_VOLUME_FRACTION)};
+        float[] amplitude = new float[1];
+        boolean[] valid = new boolean[1];
+
+        int bestSource = -1;
+        float bestScore = -1;
+        for (int source : sources) {
+            int noiseFloor = measure(source, testVolume, amplitude, valid);
+            if (mCancelled)
+                return null;
+            if (noiseFloor < 0 || !valid[0])
+                continue;
+
+            float score = amplitude[0] / Math.max(1, noiseFloor);
+            sLog.info("Audio source " + source + ": amplitude " + amplitude[0] + ", noise floor "
+                    + noiseFloor);
+            if (score > bestScore) {
+                bestScore = score;
+                bestSource = source;
+            }
+        }
+        if (bestScore < 0)
+            return null;
+
+        // Sweep the volume with the selected source
+        int minVolume = (int) Math.ceil(maxVolume * MIN_VOLUME_FRACTION);
+        int steps = Math.max(1, Math.min(VOLUME_STEPS, maxVolume - minVolume + 1));
+        int[] volumes = new int[steps];
+        for (int i = 0; i < steps; i++)
+            volumes[i] = steps == 1 ? maxVolume
+                    : minVolume + Math.round((float) i * (maxVolume - minVolume) / (steps - 1));
+
+        float[] amplitudes = new float[steps];
+        boolean[] validSteps = new boolean[steps];
+        int noiseFloor = measure(bestSource, volumes, amplitudes, validSteps);
+        if (mCancelled || noiseFloor < 0)
+            return null;
+
+        // The loudest volume with a valid, unclipped signal and some headroom
+        int chosen = -1;
+        for (int i = 0; i < steps; i++)
+            if (validSteps[i] && amplitudes[i] <= MAX_AMPLITUDE_FRACTION * Sound.MAX_AMPLITUDE)
+                chosen = i;
+        if (chosen < 0)
+            return null;
+
+        float[] fractions = new float[steps];
+        for (int i = 0; i < steps; i++)
+            fractions[i] = maxVolume > 0 ? (float) volumes[i] / maxVolume : 1;
+
+        CalibrationProfile profile = new CalibrationProfile(model, bestSource, fractions[chosen],
+                noiseFloor, fractions, amplitudes);
+        sLog.info("Calibrated " + profile);
+        return profile;
+    }
+
+    /**
+     * Cancels a running calibration. It returns {@code null} shortly afterwards, without changing
+     * any setting after this call.
+     */
+    public void cancel() {
+        synchronized (this) {
+            mCancelled = true;
+        }
+        AudioInput input = mInput;
+        if (input != null)
+            input.stop();
+    }
+
+    /**
+     * Records the noise floor from the source, then plays the signal at each of the volumes,
+     * storing the largest recorded sample and whether the signal could be analyzed.
+     *
+     * @return The noise floor, or -1 if the source couldn't be used.
+     */
+    private int measure(int source, int[] volumes, float[] outAmplitudes, boolean[] outValid) {
+        AudioInput input = openInput(source);
+        if (input == null)
+            return -1;
+
+        mInput = input;
+        try {
+            int sampleRate = input.getSampleRate();
+            mAnalyzer.setSampleRate(sampleRate);
+            short[] buffer = new short[mProfile.getBufferSamples(sampleRate)];
+            input.start();
+
+            // Noise floor, the 99th percentile of the recorded silence
+            int noiseSamples = Math.min(buffer.length, (int) (NOISE_WINDOW_SECONDS * sampleRate));
+            if (!readFully(input, buffer, noiseSamples))
+                return -1;
+            mMeter.reset(mProfile.frequency, sampleRate);
+            mMeter.add(buffer, 0, noiseSamples);
+            int noiseFloor = mMeter.robustMaximum(noiseSamples / 100);
+
+            int settleSamples = Math.min(buffer.length, (int) (SETTLE_SECONDS * sampleRate));
+            mSignal.play(mBackend, -1);
+            for (int i = 0; i < volumes.length; i++) {
+                if (!setVolume(volumes[i])
+                        || !readFully(input, buffer, settleSamples)
+                        || !readFully(input, buffer, buffer.length))
+                    return -1;
+
+                AnalyzerResult result = mAnalyzer.resultFromAnalyzingData(buffer);
+                outValid[i] = result.error == null && result.numberOfFrames > 0;
+                outAmplitudes[i] = result.error != null ? Sound.MAX_AMPLITUDE : result.maxSample;
+            }
+            return noiseFloor;
+        } finally {
+            mSignal.stop();
+            input.stop();
+            input.release();
+            mInput = null;
+        }
+    }
+
+    /**
+     * Opens an input, recording from the specified source if the backend supports choosing it.
+     *
+     * @return The input, or {@code null} if the source couldn't be used.
+     */
+    private AudioInput openInput(int source) {
+        if (!(mBackend instanceof AndroidAudioBackend))
+            return mBackend.openInput(mProfile);
+
+        AndroidAudioBackend backend = (AndroidAudioBackend) mBackend;
+        synchronized (this) {
+            if (mCancelled)
+                return null;
+            backend.setPreferredAudioSource(source);
+        }
+        AudioInput input = backend.openInput(mProfile);
+        if (backend.getLastAudioSource() == source)
+            return input;
+
+        // Another source was used as a fallback
+        input.release();
+        return null;
+    }
+
+    /**
+     * Sets the output volume, unless cancelled.
+     *
+     * @return False, if cancelled.
+     */
+    private synchronized boolean setVolume(int volume) {
+        if (mCancelled)
+            return false;
+        mVolumeControl.setVolume(volume);
+        return true;
+    }
+
+    private boolean readFully(AudioInput input, short[] buffer, int length) {
+        int filled = 0;
+        int chunkSize = Math.max(1, input.getChunkSize());
+        while (filled < length) {
+            if (mCancelled)
+                return false;
+
+            int read = input.read(buffer, filled, Math.min(chunkSize, length - filled));
+            if (read < 0)
+                return false;
+            filled += read;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,622 @@
+package com.robocatapps.thermodosdk;
+
+import java.io.IOException;
+
+/**
+ * Lossless coding of a block of recorded samples, shared by {@link CaptureWriter} and {@link
+ * CaptureReader}. Each block is predicted on its own, so it can be decoded without the blocks
+ * before it.
+ * <p/>
+ * A block is predicted either by a fixed polynomial predictor of order 0 to 3 or by a quantized
+ * linear predictor of order 1 to {@link #MAX_LPC_ORDER}, whichever codes it smallest. A linear
+ * predictor of order 2 already models a sine exactly, so the carrier is predicted down to the
+ * noise, but the sync cells at twice the frequency and the amplitude steps between the cells are
+ * not. As the sweep repeats every frame, partitions of the block can instead be predicted by the
+ * sample a frame earlier, or by the mean of the samples one and two frames earlier, whichever
+ * codes them smallest. The prediction residuals are zigzag mapped and Rice coded in partitions
+ * with their own parameter.
+ * <p/>
+ * Layout of the bit packed block payload, most significant bit first:
+ * <pre>
+ * 2 bits    predictor type, {@link #PREDICTOR_FIXED} or {@link #PREDICTOR_LPC}, or {@link
+ *           #PREDICTOR_VERBATIM} followed by the 16 bit samples for blocks which don't compress
+ * 4 bits    predictor order
+ * LPC only: 4 bits coefficient precision - 1, 5 bits shift, order signed coefficients
+ * 16 bits   lag of the long-term prediction, 0 if it isn't used
+ * order     16 bit warm-up samples
+ * per partition of {@link #PARTITION_SIZE} residuals:
+ *           if it starts at or after the lag, 1 bit long-term prediction flag
+ *           if predicted long-term and it starts at or after twice the lag, 1 bit two frame flag
+ *           5 bits Rice parameter, residuals
+ * </pre>
+ */
+final class CaptureCodec {
+
+    static final int FILE_MAGIC = 0x54434150; // "TCAP"
+    static final int BLOCK_MAGIC = 0x54424C4B; // "TBLK"
+    static final int VERSION = 1;
+
+    /**
+     * Size of the block header written before the payload: magic, sample rate, first sample
+     * index, sample count and payload length.
+     */
+    static final int BLOCK_HEADER_SIZE = 4 + 4 + 8 + 4 + 4;
+
+    /**
+     * Largest number of samples in a block, about 24 s at 44.1 kHz, so a corrupt block header
+     * can't make a reader allocate much.
+     */
+    static final int MAX_BLOCK_SIZE = 1 << 20;
+
+    static final int PREDICTOR_FIXED = 0;
+    static final int PREDICTOR_LPC = 1;
+    static final int PREDICTOR_VERBATIM = 2;
+
+    static final int MAX_FIXED_ORDER = 3;
+    static final int MAX_LPC_ORDER = 8;
+
+    /**
+     * Precision of the quantized linear predictor coefficients, in bits including the sign.
+     */
+    private static final int LPC_PRECISION = 16;
+    private static final int MAX_LPC_SHIFT = 31;
+
+    static final int PARTITION_SIZE = 64;
+
+    static final int MAX_LAG = 0xFFFF;
+
+    private static final int MAX_RICE_PARAMETER = 16;
+
+    /**
+     * Quotients from this value on are escaped: the residual follows in {@link #ESCAPE_BITS} bits.
+     */
+    private static final int ESCAPE_QUOTIENT = 24;
+
+    /**
+     * Bits of an escaped residual. Predictions are clamped to 16 bits, so residuals fit in 17 bits
+     * and their zigzag mapping in 18.
+     */
+    private static final int ESCAPE_BITS = 18;
+
+    private CaptureCodec() {
+    }
+
+    /**
+     * @return The largest payload of a block of the sample count, the one of a verbatim block.
+     */
+    static int maxPayloadLength(int count) {
+        return 2 * count + 1;
+    }
+
+    /**
+     * Encodes blocks, reusing its buffers. NOTE: This class is not thread-safe.
+     */
+    static final class Encoder {
+
+        private final BitWriter mWriter = new BitWriter();
+        private int[] mResidual = new int[0];
+        private int[] mLongTermResidual = new int[0];
+        private int[] mTwoFrameResidual = new int[0];
+        private double[] mWindowed = new double[0];
+        private final double[][] mLpc = new double[MAX_LPC_ORDER + 1][MAX_LPC_ORDER];
+        private final int[] mCoefficients = new int[MAX_LPC_ORDER];
+        private final int[] mBestCoefficients = new int[MAX_LPC_ORDER];
+
+        /**
+         * Encodes the samples into the payload of a block.
+         *
+         * @param period Period of the recorded signal in samples, e.g. the frame of the sweep, or
+         *               0 if it isn't periodic.
+         * @return The payload, valid until the next call. Its length is {@link #getLength()}.
+         */
+        byte[] encode(short[] samples, int count, float period) {
+            if (mResidual.length < count) {
+                mResidual = new int[count];
+                mLongTermResidual = new int[count];
+                mTwoFrameResidual = new int[count];
+                mWindowed = new double[count];
+            }
+
+            // Fixed predictors
+            int bestType = PREDICTOR_FIXED;
+            int bestOrder = 0;
+            int bestShift = 0;
+            long bestBits = Long.MAX_VALUE;
+            for (int order = 0; order <= MAX_FIXED_ORDER && order < count; order++) {
+                fixedResidual(samples, count, order, mResidual);
+                long bits = residualBits(mResidual, order, count) + 16 * order;
+                if (bits < bestBits) {
+                    bestBits = bits;
+                    bestOrder = order;
+                }
+            }
+
+            // Linear predictors of all orders from one recursion
+            int maxLpcOrder = Math.min(MAX_LPC_ORDER, count / 4);
+            if (maxLpcOrder > 0) {
+                maxLpcOrder = levinsonDurbin(samples, count, maxLpcOrder);
+                for (int order = 1; order <= maxLpcOrder; order++) {
+                    int shift = quantize(mLpc[order], order, mCoefficients);
+                    if (shift < 0)
+                        continue;
+                    lpcResidual(samples, count, mCoefficients, order, shift, mResidual);
+                    long bits = residualBits(mResidual, order, count)
+                            + (16 + LPC_PRECISION) * order + 9;
+                    if (bits < bestBits) {
+                        bestBits = bits;
+                        bestType = PREDICTOR_LPC;
+                        bestOrder = order;
+                        bestShift = shift;
+                        System.arraycopy(mCoefficients, 0, mBestCoefficients, 0, order);
+                    }
+                }
+            }
+
+            BitWriter writer = mWriter;
+            writer.reset();
+            writer.write(bestType, 2);
+            writer.write(bestOrder, 4);
+            if (bestType == PREDICTOR_LPC) {
+                writer.write(LPC_PRECISION - 1, 4);
+                writer.write(bestShift, 5);
+                for (int i = 0; i < bestOrder; i++)
+                    writer.write(mBestCoefficients[i], LPC_PRECISION);
+                lpcResidual(samples, count, mBestCoefficients, bestOrder, bestShift, mResidual);
+            } else {
+                fixedResidual(samples, count, bestOrder, mResidual);
+            }
+
+            // Long-term predictions from the sample a frame earlier, and from the mean of the
+            // samples one and two frames earlier, which averages out some of the noise
+            int lag = findLag(samples, count, period);
+            writer.write(lag, 16);
+            if (lag > 0) {
+                for (int i = lag; i < count; i++)
+                    mLongTermResidual[i] = samples[i] - samples[i - lag];
+                for (int i = 2 * lag; i < count; i++)
+                    mTwoFrameResidual[i] = samples[i]
+                            - ((samples[i - lag] + samples[i - 2 * lag]) >> 1);
+            }
+
+            for (int i = 0; i < bestOrder; i++)
+                writer.write(samples[i], 16);
+            for (int start = bestOrder; start < count; start += PARTITION_SIZE) {
+                int end = Math.min(count, start + PARTITION_SIZE);
+                int[] residual = mResidual;
+                if (lag > 0 && start >= lag) {
+                    long bits = bestPartitionBits(mResidual, start, end);
+                    long longTermBits = bestPartitionBits(mLongTermResidual, start, end);
+                    long twoFrameBits = start >= 2 * lag
+                            ? bestPartitionBits(mTwoFrameResidual, start, end) : Long.MAX_VALUE;
+                    if (Math.min(longTermBits, twoFrameBits) < bits)
+                        residual = twoFrameBits < longTermBits ? mTwoFrameResidual
+                                : mLongTermResidual;
+
+                    writer.write(residual != mResidual ? 1 : 0, 1);
+                    if (residual != mResidual && start >= 2 * lag)
+                        writer.write(residual == mTwoFrameResidual ? 1 : 0, 1);
+                }
+                writePartition(writer, residual, start, end);
+            }
+            writer.finish();
+
+            if (writer.getLength() > 2 * count + 1) {
+                writer.reset();
+                writer.write(PREDICTOR_VERBATIM, 2);
+                for (int i = 0; i < count; i++)
+                    writer.write(samples[i], 16);
+                writer.finish();
+            }
+            return writer.getBuffer();
+        }
+
+        /**
+         * Finds the lag within a sample of the period at which the block matches itself best.
+         *
+         * @return The lag, or 0 if the block is too short for the period.
+         */
+        private int findLag(short[] samples, int count, float period) {
+            if (period <= 0)
+                return 0;
+
+            int bestLag = 0;
+            long bestDifference = Long.MAX_VALUE;
+            int nearest = Math.round(period);
+            for (int lag = nearest - 1; lag <= nearest + 1; lag++) {
+                if (lag <= 0 || lag > MAX_LAG || lag + PARTITION_SIZE > count)
+                    continue;
+                long difference = 0;
+                for (int i = lag; i < count; i++)
+                    difference += Math.abs(samples[i] - samples[i - lag]);
+                if (difference < bestDifference) {
+                    bestDifference = difference;
+                    bestLag = lag;
+                }
+            }
+            return bestLag;
+        }
+
+        int getLength() {
+            return mWriter.getLength();
+        }
+
+        /**
+         * Computes the linear predictors of all orders up to the maximum from the autocorrelation
+         * of the windowed block.
+         *
+         * @return The highest order computed, lower than requested if a lower order already
+         * predicts the block exactly, or 0 if the block is silent.
+         */
+        private int levinsonDurbin(short[] samples, int count, int maxOrder) {
+            // Welch window, which keeps the block edges from dominating the autocorrelation
+            double[] x = mWindowed;
+            double half = (count + 1) / 2.0;
+            double centre = (count - 1) / 2.0;
+            for (int i = 0; i < count; i++) {
+                double t = (i - centre) / half;
+                x[i] = samples[i] * (1 - t * t);
+            }
+
+            double[] r = new double[maxOrder + 1];
+            for (int lag = 0; lag <= maxOrder; lag++) {
+                double sum = 0;
+                for (int i = lag; i < count; i++)
+                    sum += x[i] * x[i - lag];
+                r[lag] = sum;
+            }
+            if (r[0] == 0)
+                return 0;
+
+            double[] a = new double[maxOrder];
+            double[] previous = new double[maxOrder];
+            double error = r[0] * (1 + 1e-9);
+            for (int order = 1; order <= maxOrder; order++) {
+                double acc = r[order];
+                for (int j = 0; j < order - 1; j++)
+                    acc -= a[j] * r[order - 1 - j];
+                double k = acc / error;
+
+                System.arraycopy(a, 0, previous, 0, order - 1);
+                a[order - 1] = k;
+                for (int j = 0; j < order - 1; j++)
+                    a[j] = previous[j] - k * previous[order - 2 - j];
+                error *= 1 - k * k;
+
+                System.arraycopy(a, 0, mLpc[order], 0, order);
+                if (error <= 0)
+                    return order;
+            }
+            return maxOrder;
+        }
+    }
+
+    /**
+     * Quantizes the linear predictor coefficients to {@link #LPC_PRECISION} bits.
+     *
+     * @return The shift of the quantized coefficients, or -1 if they can't be represented.
+     */
+    private static int quantize(double[] lpc, int order, int[] outCoefficients) {
+        double max = 0;
+        for (int i = 0; i < order; i++)
+            max = Math.max(max, Math.abs(lpc[i]));
+        if (max == 0 || Double.isNaN(max) || Double.isInfinite(max))
+            return -1;
+
+        int shift = LPC_PRECISION - 2 - Math.getExponent(max);
+        if (shift < 0)
+            return -1;
+        shift = Math.min(shift, MAX_LPC_SHIFT);
+
+        // Carries the rounding error over to the next coefficient
+        int limit = (1 << (LPC_PRECISION - 1)) - 1;
+        double error = 0;
+        for (int i = 0; i < order; i++) {
+            error += lpc[i] * (double) (1L << shift);
+            long q = Math.round(error);
+            q = Math.max(-limit - 1, Math.min(limit, q));
+            outCoefficients[i] = (int) q;
+            error -= q;
+        }
+        return shift;
+    }
+
+    private static int clamp(long prediction) {
+        return (int) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, prediction));
+    }
+
+    private static int fixedPrediction(short[] s, int i, int order) {
+        switch (order) {
+            case 0:
+                return 0;
+            case 1:
+                return s[i - 1];
+            case 2:
+                return clamp(2 * s[i - 1] - s[i - 2]);
+            default:
+                return clamp(3 * s[i - 1] - 3 * s[i - 2] + s[i - 3]);
+        }
+    }
+
+    private static void fixedResidual(short[] samples, int count, int order, int[] outResidual) {
+        for (int i = order; i < count; i++)
+            outResidual[i] = samples[i] - fixedPrediction(samples, i, order);
+    }
+
+    private static void lpcResidual(short[] samples, int count, int[] coefficients, int order,
+                                    int shift, int[] outResidual) {
+        for (int i = order; i < count; i++) {
+            long sum = 0;
+            for (int j = 0; j < order; j++)
+                sum += (long) coefficients[j] * samples[i - 1 - j];
+            outResidual[i] = samples[i] - clamp(sum >> shift);
+        }
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    /**
+     * Returns the coded size of a partition of residuals with the Rice parameter, in bits.
+     */
+    private static long partitionBits(int[] residual, int start, int end, int k) {
+        long bits = 5;
+        for (int i = start; i < end; i++) {
+            int quotient = zigzag(residual[i]) >>> k;
+            bits += quotient < ESCAPE_QUOTIENT ? quotient + 1 + k
+                    : ESCAPE_QUOTIENT + 1 + ESCAPE_BITS;
+        }
+        return bits;
+    }
+
+    /**
+     * Picks the Rice parameter coding a partition smallest. The parameter matching the mean of
+     * the residuals is lowered while that helps, as the amplitude steps between the cells of the
+     * sweep leave a few large residuals which are cheaper to escape.
+     */
+    private static int riceParameter(int[] residual, int start, int end) {
+        long sum = 0;
+        for (int i = start; i < end; i++)
+            sum += zigzag(residual[i]);
+        int k = 0;
+        while (k < MAX_RICE_PARAMETER && ((long) (end - start) << (k + 1)) < sum)
+            k++;
+
+        long bits = partitionBits(residual, start, end, k);
+        while (k > 0) {
+            long lower = partitionBits(residual, start, end, k - 1);
+            if (lower >= bits)
+                break;
+            bits = lower;
+            k--;
+        }
+        return k;
+    }
+
+    private static long bestPartitionBits(int[] residual, int start, int end) {
+        return partitionBits(residual, start, end, riceParameter(residual, start, end));
+    }
+
+    /**
+     * Returns the coded size of the residuals, in bits.
+     */
+    private static long residualBits(int[] residual, int from, int to) {
+        long bits = 0;
+        for (int start = from; start < to; start += PARTITION_SIZE) {
+            int end = Math.min(to, start + PARTITION_SIZE);
+            bits += bestPartitionBits(residual, start, end);
+        }
+        return bits;
+    }
+
+    private static void writePartition(BitWriter writer, int[] residual, int start, int end) {
+        int k = riceParameter(residual, start, end);
+        writer.write(k, 5);
+
+        for (int i = start; i < end; i++) {
+            int value = zigzag(residual[i]);
+            int quotient = value >>> k;
+            if (quotient < ESCAPE_QUOTIENT) {
+                writer.write(1, quotient + 1);
+                writer.write(value, k);
+            } else {
+                writer.write(1, ESCAPE_QUOTIENT + 1);
+                writer.write(value, ESCAPE_BITS);
+            }
+        }
+    }
+
+    /**
+     * Decodes the payload of a block.
+     *
+     * @param outSamples Receives the samples, at least {@code count} long.
+     * @throws IOException If the payload is corrupt.
+     */
+    static void decode(byte[] payload, int length, int count, short[] outSamples)
+            throws IOException {
+        BitReader reader = new BitReader(payload, length);
+        int type = reader.read(2);
+        if (type == PREDICTOR_VERBATIM) {
+            for (int i = 0; i < count; i++)
+                outSamples[i] = (short) reader.read(16);
+            return;
+        }
+        int order = reader.read(4);
+        if (order > count)
+            throw new IOException("Corrupt capture block");
+
+        int shift = 0;
+        int[] coefficients = null;
+        if (type == PREDICTOR_LPC) {
+            int precision = reader.read(4) + 1;
+            shift = reader.read(5);
+            coefficients = new int[order];
+            for (int i = 0; i < order; i++)
+                coefficients[i] = (reader.read(precision) << (32 - precision)) >> (32 - precision);
+        } else if (type != PREDICTOR_FIXED || order > MAX_FIXED_ORDER) {
+            throw new IOException("Corrupt capture block");
+        }
+
+        int lag = reader.read(16);
+        if (lag >= count)
+            throw new IOException("Corrupt capture block");
+
+        for (int i = 0; i < order; i++)
+            outSamples[i] = (short) reader.read(16);
+
+        for (int start = order; start < count; start += PARTITION_SIZE) {
+            int end = Math.min(count, start + PARTITION_SIZE);
+            boolean longTerm = lag > 0 && start >= lag && reader.read(1) == 1;
+            boolean twoFrame = longTerm && start >= 2 * lag && reader.read(1) == 1;
+            int k = reader.read(5);
+            for (int i = start; i < end; i++) {
+                int quotient = reader.readUnary();
+                int value = quotient == ESCAPE_QUOTIENT ? reader.read(ESCAPE_BITS)
+                        : (quotient << k) | reader.read(k);
+                int residual = (value >>> 1) ^ -(value & 1);
+
+                int prediction;
+                if (twoFrame) {
+                    prediction = (outSamples[i - lag] + outSamples[i - 2 * lag]) >> 1;
+                } else if (longTerm) {
+                    prediction = outSamples[i - lag];
+                } else if (coefficients == null) {
+                    prediction = fixedPrediction(outSamples, i, order);
+                } else {
+                    long sum = 0;
+                    for (int j = 0; j < order; j++)
+                        sum += (long) coefficients[j] * outSamples[i - 1 - j];
+                    prediction = clamp(sum >> shift);
+                }
+                outSamples[i] = (short) (prediction + residual);
+            }
+        }
+    }
+
+    /**
+     * Writes bits most significant first into a growing buffer.
+     */
+    private static final class BitWriter {
+
+        private byte[] mBuffer = new byte[4096];
+        private int mLength;
+        private long mAccumulator;
+        private int mBits;
+
+        void reset() {
+            mLength = 0;
+            mAccumulator = 0;
+            mBits = 0;
+        }
+
+        /**
+         * Writes the low bits of the value, at most 32.
+         */
+        void write(int value, int bits) {
+            if (bits == 0)
+                return;
+            mAccumulator = (mAccumulator << bits) | (value & (0xFFFFFFFFL >>> (32 - bits)));
+            mBits += bits;
+            while (mBits >= 8) {
+                mBits -= 8;
+                put((byte) (mAccumulator >>> mBits));
+            }
+        }
+
+        void finish() {
+            if (mBits > 0) {
+                put((byte) (mAccumulator << (8 - mBits)));
+                mBits = 0;
+            }
+        }
+
+        byte[] getBuffer() {
+            return mBuffer;
+        }
+
+        int getLength() {
+            return mLength;
+        }
+
+        private void put(byte value) {
+            if (mLength == mBuffer.length) {
+                byte[] buffer = new byte[mBuffer.length * 2];
+                System.arraycopy(mBuffer, 0, buffer, 0, mLength);
+                mBuffer = buffer;
+            }
+            mBuffer[mLength++] = value;
+        }
+    }
+
+    /**
+     * Reads bits most significant first from a buffer through a 64 bit cache.
+     */
+    private static final class BitReader {
+
+        private final byte[] mBuffer;
+        private final int mLength;
+        private int mPosition;
+        // Unread bits, aligned to the most significant bit
+        private long mCache;
+        private int mCacheBits;
+
+        BitReader(byte[] buffer, int length) {
+            mBuffer = buffer;
+            mLength = length;
+        }
+
+        private void refill() throws IOException {
+            while (mCacheBits <= 56) {
+                if (mPosition == mLength) {
+                    if (mCacheBits == 0)
+                        throw new IOException("Truncated capture block");
+                    return;
+                }
+                mCache |= (long) (mBuffer[mPosition++] & 0xFF) << (56 - mCacheBits);
+                mCacheBits += 8;
+            }
+        }
+
+        /**
+         * Reads an unsigned value of at most 32 bits.
+         */
+        int read(int bits) throws IOException {
+            if (bits == 0)
+                return 0;
+            if (mCacheBits < bits) {
+                refill();
+                if (mCacheBits < bits)
+                    throw new IOException("Truncated capture block");
+            }
+            int value = (int) (mCache >>> (64 - bits));
+            mCache <<= bits;
+            mCacheBits -= bits;
+            return value;
+        }
+
+        /**
+         * Reads the zeros before the next one bit, at most {@link #ESCAPE_QUOTIENT}.
+         */
+        int readUnary() throws IOException {
+            int zeros = 0;
+            while (true) {
+                if (mCacheBits == 0)
+                    refill();
+                int leading = mCache == 0 ? 64 : Long.numberOfLeadingZeros(mCache);
+                if (leading < mCacheBits) {
+                    zeros += leading;
+                    mCache <<= leading + 1;
+                    mCacheBits -= leading + 1;
+                    if (zeros > ESCAPE_QUOTIENT)
+                        throw new IOException("Corrupt capture block");
+                    return zeros;
+                }
+                zeros += mCacheBits;
+                mCache = 0;
+                mCacheBits = 0;
+                if (zeros > ESCAPE_QUOTIENT)
+                    throw new IOException("Corrupt capture block");
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.robocatapps.thermodosdk;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Writes recorded buffers to a {@link CaptureWriter} on a background thread, so encoding the
+ * blocks and writing them to storage never hold up the recording.
+ * <p/>
+ * At most the queue capacity of buffers wait to be written. The copies are taken from a fixed
+ * pool, and a buffer is dropped when the pool is exhausted, leaving a gap of its length in the
+ * capture, see {@link CaptureWriter#skip(long)}. Writing stops at the first failure.
+ */
+class CaptureQueue {
+
+    private static Logger sLog = Logger.getLogger(CaptureQueue.class.getName());
+
+    private static final int DEFAULT_QUEUE_CAPACITY = 4;
+
+    /**
+     * A copy of a buffer queued for the writer, with the samples dropped right before it.
+     */
+    private class Job implements Runnable {
+
+        short[] data = new short[0];
+        int sampleRate;
+        long droppedBefore;
+
+        @Override
+        public void run() {
+            try {
+                write(this);
+            } finally {
+                mFreeJobs.offer(this);
+            }
+        }
+    }
+
+    private final CaptureWriter mWriter;
+    private final BlockingQueue<Job> mFreeJobs;
+    private final ThreadPoolExecutor mExecutor;
+    // Samples dropped since the last queued buffer, only used on the recording thread
+    private long mPendingDropped;
+    private volatile int mDropped;
+    private volatile boolean mFailed;
+
+    CaptureQueue(CaptureWriter writer) {
+        this(writer, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param queueCapacity Maximum number of buffers waiting to be written.
+     */
+    CaptureQueue(CaptureWriter writer, int queueCapacity) {
+        if (queueCapacity <= 0)
+            throw new IllegalArgumentException("Queue capacity must be positive");
+
+        mWriter = writer;
+        // One more buffer than queued is being written
+        mFreeJobs = new ArrayBlockingQueue<Job>(queueCapacity + 1);
+        for (int i = 0; i <= queueCapacity; i++)
+            mFreeJobs.offer(new Job());
+
+        mExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ThermodoCapture");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+                // A job returned to the pool can be submitted again before the writer thread
+                // took the next one off the queue, and jobs are rejected after finishing
+                Job job = (Job) runnable;
+                drop(job.droppedBefore + job.data.length);
+                mFreeJobs.offer(job);
+            }
+        });
+    }
+
+    /**
+     * Queues a copy of a recorded buffer to be written, or drops it if the queue is full. Called
+     * on the recording thread.
+     *
+     * @param sampleRate The rate of the buffer, in Hertz, or 0 if it isn't known yet.
+     * @return True, if the buffer was queued.
+     */
+    boolean submit(short[] data, int sampleRate) {
+        if (mFailed)
+            return false;
+
+        Job job = mFreeJobs.poll();
+        if (job == null) {
+            drop(data.length);
+            return false;
+        }
+        // Allocated once for each pooled copy, as long as the buffer size doesn't change
+        if (job.data.length != data.length)
+            job.data = new short[data.length];
+        System.arraycopy(data, 0, job.data, 0, data.length);
+        job.sampleRate = sampleRate;
+        job.droppedBefore = mPendingDropped;
+        mPendingDropped = 0;
+        mExecutor.execute(job);
+        return true;
+    }
+
+    private void drop(long samples) {
+        mPendingDropped += samples;
+        mDropped++;
+    }
+
+    /**
+     * @return The number of buffers dropped because the queue was full.
+     */
+    int getDroppedCount() {
+        return mDropped;
+    }
+
+    /**
+     * Stops taking buffers and waits for the queued ones to be written, at most the timeout.
+     *
+     * @return True, if all queued buffers were written.
+     */
+    boolean finish(long timeoutMillis) {
+        mExecutor.shutdown();
+        try {
+            return mExecutor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void write(Job job) {
+        if (mFailed)
+            return;
+
+        try {
+            if (job.sampleRate > 0)
+                mWriter.setSampleRate(job.sampleRate);
+            mWriter.skip(job.droppedBefore);
+            mWriter.write(job.data);
+        } catch (IOException e) {
+            sLog.warning("Capture failed, stopped capturing: " + e);
+            mFailed = true;
+        }
+    }
+}
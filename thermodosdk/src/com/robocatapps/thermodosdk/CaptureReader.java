@@ -0,0 +1,197 @@
+package com.robocatapps.thermodosdk;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a capture written by {@link CaptureWriter}, decoding a single block at a time, so a
+ * capture of any length can be streamed into an analyzer:
+ * <pre>
+ * short[] buffer = new short[profile.getBufferSamples(reader.getSampleRate())];
+ * while (reader.read(buffer, 0, buffer.length) == buffer.length)
+ *     analyzer.resultFromAnalyzingData(buffer);
+ * </pre>
+ * Blocks which are skipped over aren't decoded. Where samples were left out of the capture, see
+ * {@link CaptureWriter#skip(long)}, the position jumps over the gap.
+ * <p/>
+ * NOTE: This class is not thread-safe.
+ */
+public class CaptureReader implements Closeable {
+
+    private final DataInputStream mIn;
+
+    private byte[] mPayload = new byte[0];
+    private int mPayloadLength;
+    private short[] mBlock = new short[0];
+    // Samples of the current block, and the position of the next one to read
+    private int mBlockCount;
+    private int mBlockPosition;
+    // Whether the payload of the current block was read from the stream, and decoded
+    private boolean mPayloadRead;
+    private boolean mBlockDecoded;
+
+    private int mSampleRate;
+    private long mPosition;
+    // Index of the first sample of the current block, after the position if there is a gap
+    private long mBlockFirstSample;
+    private boolean mEnded;
+
+    /**
+     * Creates a reader and reads the capture header.
+     *
+     * @throws IOException If the stream isn't a capture of a supported version.
+     */
+    public CaptureReader(InputStream in) throws IOException {
+        mIn = new DataInputStream(in);
+        if (mIn.readInt() != CaptureCodec.FILE_MAGIC)
+            throw new IOException("Not a capture");
+        int version = mIn.readUnsignedByte();
+        if (version != CaptureCodec.VERSION)
+            throw new IOException("Unsupported capture version " + version);
+        nextBlock();
+    }
+
+    /**
+     * @return The rate of the next sample, in Hertz, or 0 at the end of the capture.
+     */
+    public int getSampleRate() {
+        return mEnded ? 0 : mSampleRate;
+    }
+
+    /**
+     * @return The index of the next sample in the capture, or of the first sample left out if a
+     * gap comes next.
+     */
+    public long getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * Reads samples, decoding the blocks as needed. Samples of different rates and samples on both
+     * sides of a gap aren't mixed: the read stops early where the sample rate changes or a gap
+     * follows, and the next read starts after the gap.
+     *
+     * @return The number of samples read, less than requested at the end of the capture, where
+     * the sample rate changes or before a gap, or -1 if there are no more samples.
+     * @throws IOException If the capture is corrupt.
+     */
+    public int read(short[] buffer, int offset, int length) throws IOException {
+        if (mEnded)
+            return -1;
+
+        mPosition = mBlockFirstSample + mBlockPosition;
+        int sampleRate = mSampleRate;
+        int read = 0;
+        while (read < length && !mEnded && mSampleRate == sampleRate
+                && mBlockFirstSample + mBlockPosition == mPosition) {
+            if (!mBlockDecoded) {
+                readPayload();
+                CaptureCodec.decode(mPayload, mPayloadLength, mBlockCount, mBlock);
+                mBlockDecoded = true;
+            }
+
+            int count = Math.min(length - read, mBlockCount - mBlockPosition);
+            System.arraycopy(mBlock, mBlockPosition, buffer, offset + read, count);
+            mBlockPosition += count;
+            mPosition += count;
+            read += count;
+            if (mBlockPosition == mBlockCount)
+                nextBlock();
+        }
+        return read;
+    }
+
+    /**
+     * Skips samples, counting the ones of gaps. Whole blocks are skipped without reading their
+     * payload.
+     *
+     * @return The number of samples skipped, less than requested at the end of the capture.
+     */
+    public long skip(long samples) throws IOException {
+        long skipped = 0;
+        while (skipped < samples && !mEnded) {
+            long gap = mBlockFirstSample + mBlockPosition - mPosition;
+            if (gap > 0) {
+                long count = Math.min(samples - skipped, gap);
+                mPosition += count;
+                skipped += count;
+                continue;
+            }
+
+            long count = Math.min(samples - skipped, mBlockCount - mBlockPosition);
+            mBlockPosition += count;
+            mPosition += count;
+            skipped += count;
+            if (mBlockPosition == mBlockCount)
+                nextBlock();
+        }
+        return skipped;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mEnded = true;
+        mIn.close();
+    }
+
+    private void readPayload() throws IOException {
+        if (mPayloadRead)
+            return;
+        if (mPayload.length < mPayloadLength)
+            mPayload = new byte[mPayloadLength];
+        mIn.readFully(mPayload, 0, mPayloadLength);
+        mPayloadRead = true;
+    }
+
+    /**
+     * Skips the rest of the current block and reads the header of the next one. Its payload is
+     * read and decoded on its first read.
+     */
+    private void nextBlock() throws IOException {
+        if (!mPayloadRead) {
+            int skipped = 0;
+            while (skipped < mPayloadLength) {
+                int count = mIn.skipBytes(mPayloadLength - skipped);
+                if (count <= 0) {
+                    mIn.readByte();
+                    count = 1;
+                }
+                skipped += count;
+            }
+        }
+
+        int magic;
+        try {
+            magic = mIn.readInt();
+        } catch (EOFException e) {
+            mEnded = true;
+            return;
+        }
+        if (magic != CaptureCodec.BLOCK_MAGIC)
+            throw new IOException("Corrupt capture block at sample " + mPosition);
+
+        int sampleRate = mIn.readInt();
+        long firstSample = mIn.readLong();
+        int count = mIn.readInt();
+        int length = mIn.readInt();
+        long blockEnd = mBlockFirstSample + mBlockCount;
+        if (sampleRate <= 0 || firstSample < blockEnd || count <= 0
+                || count > CaptureCodec.MAX_BLOCK_SIZE || length < 0
+                || length > CaptureCodec.maxPayloadLength(count))
+            throw new IOException("Corrupt capture block at sample " + blockEnd);
+
+        if (mBlock.length < count)
+            mBlock = new short[count];
+
+        mSampleRate = sampleRate;
+        mBlockFirstSample = firstSample;
+        mPayloadLength = length;
+        mPayloadRead = false;
+        mBlockCount = count;
+        mBlockPosition = 0;
+        mBlockDecoded = false;
+    }
+}
@@ -0,0 +1,201 @@
+package com.robocatapps.thermodosdk;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes recorded mono 16-bit audio to a losslessly compressed capture, e.g. to keep the
+ * recording of a problem session for analysis. A capture of the sweep signal with a noise of a
+ * few steps, and its {@link SignalProfile} set, is 3 to 5 times smaller than the raw samples.
+ * <p/>
+ * A capture starts with a header of the magic "TCAP" and the version, followed by blocks of at
+ * most the block size. Each block starts with a header holding its sample rate, the index of its
+ * first sample in the capture, its sample count and the length of its payload, and is coded on its
+ * own by {@link CaptureCodec}, so a reader can skip to any block. See {@link CaptureReader}.
+ * <p/>
+ * The samples are collected until a block is full and it is written as a whole. Samples which
+ * weren't written, e.g. dropped, are left out by {@link #skip(long)}: the next block starts at a
+ * later sample index.
+ */
+public class CaptureWriter implements Closeable {
+
+    /**
+     * Default number of samples in a block, about 370 ms at 44.1 kHz, several frames of the
+     * sweep.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 32768;
+
+    private final DataOutputStream mOut;
+    private final CaptureCodec.Encoder mEncoder = new CaptureCodec.Encoder();
+    private final short[] mBlock;
+    private int mBlockCount;
+    private int mSampleRate;
+    private SignalProfile mSignalProfile;
+    private long mSampleCount;
+    private long mBytesWritten;
+    private boolean mClosed;
+
+    public CaptureWriter(OutputStream out, int sampleRate) throws IOException {
+        this(out, sampleRate, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Creates a writer and writes the capture header.
+     *
+     * @param sampleRate Rate of the written samples, in Hertz.
+     * @param blockSize  Maximum number of samples in a block, up to 1048576.
+     */
+    public CaptureWriter(OutputStream out, int sampleRate, int blockSize) throws IOException {
+        if (sampleRate <= 0 || blockSize <= 0)
+            throw new IllegalArgumentException("Sample rate and block size must be positive");
+        if (blockSize > CaptureCodec.MAX_BLOCK_SIZE)
+            throw new IllegalArgumentException("Block size must be at most "
+                    + CaptureCodec.MAX_BLOCK_SIZE);
+
+        mOut = new DataOutputStream(out);
+        mBlock = new short[blockSize];
+        mSampleRate = sampleRate;
+
+        mOut.writeInt(CaptureCodec.FILE_MAGIC);
+        mOut.writeByte(CaptureCodec.VERSION);
+        mBytesWritten = 5;
+    }
+
+    /**
+     * Sets the rate of the samples written from now on, e.g. when a recording is restarted at
+     * another rate. The collected samples are written first if the rate changes.
+     */
+    public synchronized void setSampleRate(int sampleRate) throws IOException {
+        if (sampleRate <= 0)
+            throw new IllegalArgumentException("Sample rate must be positive");
+        if (sampleRate == mSampleRate)
+            return;
+
+        writeBlock();
+        mSampleRate = sampleRate;
+    }
+
+    public synchronized int getSampleRate() {
+        return mSampleRate;
+    }
+
+    /**
+     * Sets the profile of the recorded signal, or {@code null} if it is unknown. Samples are
+     * predicted from the ones a frame of the sweep earlier where that helps, so a capture of a
+     * known signal is smaller.
+     */
+    public synchronized void setSignalProfile(SignalProfile profile) {
+        mSignalProfile = profile;
+    }
+
+    /**
+     * Returns the length of a frame of the sweep at the sample rate, or 0 if the signal is
+     * unknown.
+     */
+    private float getPeriod() {
+        SignalProfile profile = mSignalProfile;
+        if (profile == null)
+            return 0;
+        return (float) profile.numberOfCells * profile.samplesPerCell(profile.sampleRate)
+                * mSampleRate / profile.sampleRate;
+    }
+
+    public void write(short[] data) throws IOException {
+        write(data, 0, data.length);
+    }
+
+    /**
+     * Writes a range of the samples, writing a block to the stream whenever one is full.
+     *
+     * @param fromIndex Start position of the range, inclusive.
+     * @param toIndex   End position of the range, exclusive.
+     */
+    public synchronized void write(short[] data, int fromIndex, int toIndex) throws IOException {
+        if (mClosed)
+            throw new IOException("Capture is closed");
+
+        while (fromIndex < toIndex) {
+            int count = Math.min(toIndex - fromIndex, mBlock.length - mBlockCount);
+            System.arraycopy(data, fromIndex, mBlock, mBlockCount, count);
+            mBlockCount += count;
+            fromIndex += count;
+            if (mBlockCount == mBlock.length)
+                writeBlock();
+        }
+    }
+
+    /**
+     * Leaves a gap of samples which weren't written, e.g. because they were dropped. The collected
+     * samples are written first, and the following ones get indexes after the gap.
+     */
+    public synchronized void skip(long samples) throws IOException {
+        if (mClosed)
+            throw new IOException("Capture is closed");
+        if (samples <= 0)
+            return;
+
+        writeBlock();
+        mSampleCount += samples;
+    }
+
+    /**
+     * Writes the collected samples as a block, even if it isn't full, and flushes the stream.
+     */
+    public synchronized void flush() throws IOException {
+        if (mClosed)
+            return;
+        writeBlock();
+        mOut.flush();
+    }
+
+    /**
+     * Writes the collected samples and closes the stream.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (mClosed)
+            return;
+        try {
+            writeBlock();
+        } finally {
+            mClosed = true;
+            mOut.close();
+        }
+    }
+
+    /**
+     * @return The number of samples written, including the ones not written to the stream yet and
+     * the skipped ones.
+     */
+    public synchronized long getSampleCount() {
+        return mSampleCount + mBlockCount;
+    }
+
+    /**
+     * @return The number of bytes written to the stream.
+     */
+    public synchronized long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    private void writeBlock() throws IOException {
+        if (mBlockCount == 0)
+            return;
+
+        byte[] payload = mEncoder.encode(mBlock, mBlockCount, getPeriod());
+        int length = mEncoder.getLength();
+
+        mOut.writeInt(CaptureCodec.BLOCK_MAGIC);
+        mOut.writeInt(mSampleRate);
+        mOut.writeLong(mSampleCount);
+        mOut.writeInt(mBlockCount);
+        mOut.writeInt(length);
+        mOut.write(payload, 0, length);
+
+        mBytesWritten += CaptureCodec.BLOCK_HEADER_SIZE + length;
+        mSampleCount += mBlockCount;
+        mBlockCount = 0;
+    }
+}
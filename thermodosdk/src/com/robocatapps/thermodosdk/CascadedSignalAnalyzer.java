@@ -0,0 +1,173 @@
+package com.robocatapps.thermodosdk;
+
+import com.robocatapps.thermodosdk.model.AnalyzerResult;
+
+import static com.robocatapps.thermodosdk.Constants.CLIPPING_THRESHOLD;
+
+/**
+ * Analyzes the sweep signal in two stages. A fast path runs the {@link DefaultSignalAnalyzer} on
+ * just enough of the buffer to find a couple of frames. The whole buffer is analyzed only when
+ * the fast result isn't trusted: when its trendlines fit poorly, when it found too few frames, or
+ * when it moves away from the last trusted reading by more than a threshold.
+ * <p/>
+ * The largest sample and the clipping are always judged on the whole buffer, as they steer the
+ * output level: a fast result gets the peak of the whole buffer, and a buffer with a clipped
+ * sample anywhere is analyzed as a whole, so its clipped frames are counted.
+ * <p/>
+ * The fallback rate and the time spent per buffer are tracked, so the gain can be measured.
+ * NOTE: This class is not re-entrant.
+ */
+public class CascadedSignalAnalyzer extends AbstractAnalyzer {
+
+    /**
+     * Lowest trendline fit accepted from the fast path.
+     */
+    private static final float MIN_FIT_QUALITY = 0.98f;
+
+    /**
+     * Frames analyzed by the fast path. Finding a frame requires the sync cells on both sides of
+     * it, so the window is one frame and a couple of cells longer than this.
+     */
+    private static final int FAST_PATH_FRAMES = 1;
+
+    private static final float DEFAULT_MAX_DEVIATION = 1.0f;
+
+    private final DefaultSignalAnalyzer mAnalyzer;
+    private final SignalProfile mProfile;
+    private final float mMaxDeviation;
+    private int mFastPathSamples;
+
+    private float mLastTrustedTemperature = Float.NaN;
+
+    private volatile long mBufferCount;
+    private volatile long mFallbackCount;
+    private volatile long mTotalNanos;
+
+    public CascadedSignalAnalyzer(SignalProfile profile) {
+        this(profile, DEFAULT_MAX_DEVIATION);
+    }
+
+    /**
+     * @param maxDeviation Largest difference from the last trusted temperature, in degrees
+     *                     Celsius, for which the fast result is used without a fallback.
+     */
+    public CascadedSignalAnalyzer(SignalProfile profile, float maxDeviation) {
+        mProfile = profile;
+        mMaxDeviation = maxDeviation;
+        mAnalyzer = new DefaultSignalAnalyzer(profile);
+        mFastPathSamples = fastPathSamples(profile.samplesPerCell);
+    }
+
+    @Override
+    public void setSampleRate(int sampleRate) {
+        mAnalyzer.setSampleRate(sampleRate);
+        mFastPathSamples = fastPathSamples(mProfile.samplesPerCell(sampleRate));
+    }
+
+    private int fastPathSamples(int samplesPerCell) {
+        return samplesPerCell * ((FAST_PATH_FRAMES + 1) * mProfile.numberOfCells + 2);
+    }
+
+    /**
+     * Sets the recorder keeping the intermediates of the analyses, both of the fast path and of
+     * the fallback, or {@code null} to stop recording them.
+     */
+    public void setFlightRecorder(AnalyzerFlightRecorder flightRecorder) {
+        mAnalyzer.setFlightRecorder(flightRecorder);
+    }
+
+    /**
+     * Sets the last trusted temperature, e.g. a recent reading from a previous session, so the
+     * fast path can be used from the first buffer.
+     */
+    public void setLastTrustedTemperature(float temperature) {
+        mLastTrustedTemperature = temperature;
+    }
+
+    @Override
+    public AnalyzerResult resultFromAnalyzingData(short[] data) {
+        long startNanos = System.nanoTime();
+
+        AnalyzerResult result = null;
+        if (mFastPathSamples < data.length && !Float.isNaN(mLastTrustedTemperature)) {
+            result = mAnalyzer.resultFromAnalyzingData(data, 0, mFastPathSamples);
+            if (isTrusted(result)) {
+                int peak = peakOfBuffer(data);
+                if (peak == Integer.MAX_VALUE)
+                    result = null;
+                else
+                    result.maxSample = peak;
+            } else {
+                result = null;
+            }
+        }
+
+        if (result == null) {
+            result = mAnalyzer.resultFromAnalyzingData(data);
+            mFallbackCount++;
+        }
+
+        if (result.error == null && result.numberOfFrames > 0 && !Float.isNaN(result.temperature))
+            mLastTrustedTemperature = result.temperature;
+
+        mTotalNanos += System.nanoTime() - startNanos;
+        mBufferCount++;
+
+        return result;
+    }
+
+    private boolean isTrusted(AnalyzerResult result) {
+        return result.error == null
+                && result.numberOfFrames >= FAST_PATH_FRAMES
+                && result.fitQuality >= MIN_FIT_QUALITY
+                && !Float.isNaN(result.temperature)
+                && Math.abs(result.temperature - mLastTrustedTemperature) <= mMaxDeviation;
+    }
+
+    /**
+     * Returns the largest sample value of the buffer, or <b>Integer.MAX_VALUE</b> if any sample is
+     * beyond the clipping threshold, in either direction.
+     */
+    private static int peakOfBuffer(short[] data) {
+        int maxSample = 0;
+        for (short sample : data) {
+            if (sample > CLIPPING_THRESHOLD || sample < -CLIPPING_THRESHOLD)
+                return Integer.MAX_VALUE;
+            if (sample > maxSample)
+                maxSample = sample;
+        }
+        return maxSample;
+    }
+
+    /**
+     * @return The fraction of buffers, between 0 and 1, for which the whole buffer was analyzed.
+     */
+    public float getFallbackRate() {
+        long buffers = mBufferCount;
+        return buffers == 0 ? 0 : (float) mFallbackCount / buffers;
+    }
+
+    /**
+     * @return The average time spent analyzing a buffer, in nanoseconds.
+     */
+    public long getAverageNanosPerBuffer() {
+        long buffers = mBufferCount;
+        return buffers == 0 ? 0 : mTotalNanos / buffers;
+    }
+
+    /**
+     * @return The number of buffers analyzed since creation or the last statistics reset.
+     */
+    public long getBufferCount() {
+        return mBufferCount;
+    }
+
+    /**
+     * Resets the fallback and timing statistics.
+     */
+    public void resetStatistics() {
+        mBufferCount = 0;
+        mFallbackCount = 0;
+        mTotalNanos = 0;
+    }
+}
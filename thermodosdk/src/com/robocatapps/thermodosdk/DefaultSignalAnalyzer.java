@@ -11,12 +11,6 @@ import java.util.Collections;
 import java.util.List;
 
 import static com.robocatapps.thermodosdk.Constants.CLIPPING_THRESHOLD;
-import static com.robocatapps.thermodosdk.Constants.LOWER_AMPLITUDE;
-import static com.robocatapps.thermodosdk.Constants.PERIODS_PER_CELL;
-import static com.robocatapps.thermodosdk.Constants.REFERENCE_AMPLITUDE;
-import static com.robocatapps.thermodosdk.Constants.SAMPLES_PER_CELL;
-import static com.robocatapps.thermodosdk.Constants.SAMPLES_PER_FRAME;
-import static com.robocatapps.thermodosdk.Constants.UPPER_AMPLITUDE;
 
 /**
  * Analyzes an audio signal, calculating an {@link com.robocatapps.thermodosdk.model.AnalyzerResult}
@@ -24,6 +18,16 @@ import static com.robocatapps.thermodosdk.Constants.UPPER_AMPLITUDE;
  */
 public class DefaultSignalAnalyzer extends AbstractAnalyzer {
 
+    /**
+     * Fewest frames without clipped samples a result is computed from when other frames of the
+     * buffer were clipped. The clean frames must also outnumber the clipped ones.
+     */
+    private static final int MIN_CLEAN_FRAMES = 3;
+
+    private final SignalProfile mProfile;
+    private int mSamplesPerCell;
+    private int mSamplesPerFrame;
+
     // Arrays used in resultFromAnalyzingData and framesWithCellsInSamples.
     // Allocated here to avoid constant re-allocation
     List<Sample> mSamples = new ArrayList<Sample>();
@@ -32,38 +36,105 @@ public class DefaultSignalAnalyzer extends AbstractAnalyzer {
     List<Float> mAmplitudesInCell = new ArrayList<Float>();
     List<Float> mIntersectionValues = new ArrayList<Float>();
 
+    private volatile AnalyzerFlightRecorder mFlightRecorder;
+
+    public DefaultSignalAnalyzer() {
+        this(SignalProfile.DEFAULT);
+    }
+
+    public DefaultSignalAnalyzer(SignalProfile profile) {
+        mProfile = profile;
+        mSamplesPerCell = profile.samplesPerCell;
+        mSamplesPerFrame = profile.samplesPerFrame;
+    }
+
+    /**
+     * Recomputes the cell and frame sizes for the recording rate, as the carrier period in
+     * samples depends on it.
+     */
+    @Override
+    public void setSampleRate(int sampleRate) {
+        mSamplesPerCell = mProfile.samplesPerCell(sampleRate);
+        mSamplesPerFrame = (mProfile.numberOfCells - 1) * mSamplesPerCell;
+    }
+
     @Override
     public AnalyzerResult resultFromAnalyzingData(short[] data) {
+        return resultFromAnalyzingData(data, 0, data.length);
+    }
+
+    /**
+     * Obtains an analysis result from a range of the provided data.
+     *
+     * @param fromIndex Start position of the range, inclusive.
+     * @param toIndex   End position of the range, exclusive.
+     */
+    public AnalyzerResult resultFromAnalyzingData(short[] data, int fromIndex, int toIndex) {
 
         AnalyzerResult result = new AnalyzerResult();
+        AnalyzerFlightRecorder flightRecorder = mFlightRecorder;
 
-        int maxSample = clippingDetectedInBuffer(data);
+        result.maxSample = maxSampleInBuffer(data, fromIndex, toIndex);
 
-        if (maxSample > Short.MAX_VALUE) {
-            result.error = new Exception("Clipping occurred");
-            return result;
-        }
-
-        samplesFromBuffer(data, mSamples);
+        samplesFromBuffer(data, fromIndex, toIndex, mSamples);
         framesFromSamples(mSamples, mFrames);
 
-        result.numberOfFrames = mFrames.size();
-
         int nFrames = mFrames.size();
 
         if (nFrames == 0) {
-            result.error = new Exception("No Frames were found");
+            // Without frames, clipping can only be told from the whole buffer
+            if (clippingDetectedInBuffer(data, fromIndex, toIndex) > Short.MAX_VALUE) {
+                result.error = new Exception("Clipping occurred");
+                result.clipped = true;
+            } else {
+                result.error = new Exception("No Frames were found");
+            }
+            if (flightRecorder != null)
+                recordFlight(flightRecorder, data, toIndex - fromIndex, result);
+            recycle();
             return result;
         }
 
+        float lowestIntersection = Float.POSITIVE_INFINITY;
+        float highestIntersection = Float.NEGATIVE_INFINITY;
+        float lowestFit = 1;
+        int clippedFrames = 0;
+
         mIntersectionValues.clear();
         for (int i = 0; i < nFrames; i++) {
-            List<Cell> cells = mFrames.get(i).cells;
+            Frame frame = mFrames.get(i);
+
+            // Clipping flattens the cells, so frames containing clipped samples are left out
+            if (frameIsClipped(data, frame)) {
+                clippedFrames++;
+                continue;
+            }
+
+            List<Cell> cells = frame.cells;
 
             Trendline trendline = getTrendlineFromCells(cells);
 
             float intersection = xAxisIntersectionOfTrendline(trendline);
             mIntersectionValues.add(intersection);
+
+            lowestIntersection = Math.min(lowestIntersection, intersection);
+            highestIntersection = Math.max(highestIntersection, intersection);
+            lowestFit = Math.min(lowestFit, coefficientOfDetermination(cells, trendline));
+        }
+
+        result.numberOfFrames = nFrames - clippedFrames;
+        result.clippedFrameRatio = (float) clippedFrames / nFrames;
+
+        // A partially clipped buffer is only salvaged if enough frames remain for a median
+        if (clippedFrames > 0 && (result.numberOfFrames < MIN_CLEAN_FRAMES
+                || result.numberOfFrames <= clippedFrames)) {
+            result.error = new Exception("Clipping occurred");
+            result.clipped = true;
+            result.numberOfFrames = 0;
+            if (flightRecorder != null)
+                recordFlight(flightRecorder, data, toIndex - fromIndex, result);
+            recycle();
+            return result;
         }
 
         //Get all needed values
@@ -74,26 +145,104 @@ public class DefaultSignalAnalyzer extends AbstractAnalyzer {
 
         result.temperature = temperatureFromResistance(resistance);
         result.resistance = resistance;
+        result.intersection = medianIntersection;
+        result.intersectionSpread = highestIntersection - lowestIntersection;
+        result.fitQuality = lowestFit;
+
+        if (flightRecorder != null)
+            recordFlight(flightRecorder, data, toIndex - fromIndex, result);
+        recycle();
 
+        return result;
+    }
+
+    /**
+     * Sets the recorder keeping the intermediates of the analyses, or {@code null} to stop
+     * recording them.
+     */
+    public void setFlightRecorder(AnalyzerFlightRecorder flightRecorder) {
+        mFlightRecorder = flightRecorder;
+    }
+
+    public AnalyzerFlightRecorder getFlightRecorder() {
+        return mFlightRecorder;
+    }
+
+    /**
+     * Records the frames of the current analysis and its result. The trendlines are computed
+     * again, so the analysis itself doesn't depend on whether it is recorded.
+     */
+    private void recordFlight(AnalyzerFlightRecorder recorder, short[] data, int bufferLength,
+                              AnalyzerResult result) {
+        synchronized (recorder) {
+            int slot = recorder.beginAnalysis(bufferLength);
+            for (int i = 0; i < mFrames.size(); i++) {
+                Frame frame = mFrames.get(i);
+                Trendline trendline = getTrendlineFromCells(frame.cells);
+                recorder.addFrame(slot, frameIsClipped(data, frame), frame.cells, trendline,
+                        xAxisIntersectionOfTrendline(trendline),
+                        coefficientOfDetermination(frame.cells, trendline));
+            }
+            recorder.endAnalysis(slot, mFrames.size(), result);
+        }
+    }
+
+    /**
+     * Releases the samples and clears the lists used during the analysis, so nothing is carried
+     * over to the next buffer.
+     */
+    private void recycle() {
         // Don't hold on to memory
         mSamplePool.recycleSamples(mSamples);
         mSamplePool.recycleSamples(mMinMaxSamples);
         mFrames.clear();
         mAmplitudesInCell.clear();
         mIntersectionValues.clear();
+    }
 
-        return result;
+    /**
+     * Returns true if any sample within the frame is beyond the clipping threshold, in either
+     * direction.
+     */
+    private static boolean frameIsClipped(short[] data, Frame frame) {
+        for (int i = frame.startIndex; i < frame.endIndex; i++) {
+            short sampleAmplitude = data[i];
+            if (sampleAmplitude > CLIPPING_THRESHOLD || sampleAmplitude < -CLIPPING_THRESHOLD)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the largest sample value in the range [fromIndex, toIndex) of the buffer.
+     */
+    private static int maxSampleInBuffer(short[] data, int fromIndex, int toIndex) {
+        int maxSample = 0;
+        for (int i = fromIndex; i < toIndex; i++) {
+            if (data[i] > maxSample)
+                maxSample = data[i];
+        }
+        return maxSample;
     }
 
     /**
      * Returns the largest sample value or <b>Integer.MAX_VALUE</b> if clipping occurred.
      */
     public static int clippingDetectedInBuffer(short[] data) {
+        return clippingDetectedInBuffer(data, 0, data.length);
+    }
+
+    /**
+     * Returns the largest sample value in the range [fromIndex, toIndex) of the buffer or
+     * <b>Integer.MAX_VALUE</b> if clipping occurred.
+     */
+    public static int clippingDetectedInBuffer(short[] data, int fromIndex, int toIndex) {
         int clippedSamples = 0;
 
         int maxSample = 0;
 
-        for (short sampleAmplitude : data) {
+        for (int i = fromIndex; i < toIndex; i++) {
+            short sampleAmplitude = data[i];
             if (sampleAmplitude > maxSample)
                 maxSample = sampleAmplitude;
 
@@ -115,7 +264,7 @@ public class DefaultSignalAnalyzer extends AbstractAnalyzer {
      */
     private void framesFromSamples(List<Sample> samples, List<Frame> outFrames) {
         outFrames.clear();
-        int syncSamplesPerHalfPeriod = SAMPLES_PER_CELL / PERIODS_PER_CELL / 4;
+        int syncSamplesPerHalfPeriod = mSamplesPerCell / mProfile.periodsPerCell / 4;
 
         int syncSamplesCount = 0;
         int frameStartIndex = 0;
@@ -142,7 +291,7 @@ public class DefaultSignalAnalyzer extends AbstractAnalyzer {
                 // If the difference between expected and detected number
                 // of sync periods is less than 3 samples, we can mark the start of the new frame
                 // and start cells recognition for the previous frame if its end was marked.
-                if (Math.abs(syncSamplesCount - PERIODS_PER_CELL * 4) < 3) {
+                if (Math.abs(syncSamplesCount - mProfile.periodsPerCell * 4) < 3) {
                     if (frameEndIndex > 0) {
                         Frame frame = frameWithCellsFromSamples(samples, frameStartIndex,
                             frameEndIndex);
@@ -170,6 +319,7 @@ public class DefaultSignalAnalyzer extends AbstractAnalyzer {
         // Create a sublist with samples of the current frame, remove all zero samples and set
         // buffer indexes relative to the startIndex.
         int fromIndex = samples.get(startIndex).getBufferIndex();
+        int toIndex = samples.get(endIndex).getBufferIndex();
         mMinMaxSamples.clear();
         for (int i = startIndex; i <= endIndex; i++) {
             Sample sample = samples.get(i);
@@ -188,13 +338,13 @@ public class DefaultSignalAnalyzer extends AbstractAnalyzer {
         mAmplitudesInCell.clear();
 
         // We don't analyze sync cells, so using NUMBER_OF_CELLS - 1
-        for (int cellIndex = 0; cellIndex < Constants.NUMBER_OF_CELLS - 1; cellIndex++) {
+        for (int cellIndex = 0; cellIndex < mProfile.numberOfCells - 1; cellIndex++) {
             mAmplitudesInCell.clear();
 
             for (; pointIndex < mMinMaxSamples.size(); pointIndex++) {
                 Sample sample = mMinMaxSamples.get(pointIndex);
 
-                if (sample.getBufferIndex() > (cellIndex + 1) * SAMPLES_PER_CELL) {
+                if (sample.getBufferIndex() > (cellIndex + 1) * mSamplesPerCell) {
                     pointIndex--;
                     break;
                 }
@@ -232,7 +382,7 @@ public class DefaultSignalAnalyzer extends AbstractAnalyzer {
         // Remove the cell with the lowest amplitude
         cells.remove(lowestIndex);
 
-        return new Frame(cells);
+        return new Frame(cells, fromIndex, toIndex);
     }
 
 
@@ -240,7 +390,7 @@ public class DefaultSignalAnalyzer extends AbstractAnalyzer {
      * Creates {@link com.robocatapps.thermodosdk.model.Trendline} object from the specified {@link
      * java.util.List} of {@link com.robocatapps.thermodosdk.model.Cell}'s.
      */
-    private static Trendline getTrendlineFromCells(List<Cell> cells) {
+    private Trendline getTrendlineFromCells(List<Cell> cells) {
         int numberOfCells = cells.size();
 
         float sumX = 0;
@@ -251,7 +401,7 @@ public class DefaultSignalAnalyzer extends AbstractAnalyzer {
         for (int cellIndex = 0; cellIndex < numberOfCells; cellIndex++) {
             Cell cell = cells.get(cellIndex);
 
-            int x = cell.cellIndex * SAMPLES_PER_CELL + (SAMPLES_PER_CELL / 2);
+            int x = cell.cellIndex * mSamplesPerCell + (mSamplesPerCell / 2);
             int y = cell.amplitude;
 
             sumX += x;
@@ -268,27 +418,61 @@ public class DefaultSignalAnalyzer extends AbstractAnalyzer {
     }
 
 
+    /**
+     * Returns the coefficient of determination of the trendline for the cells it was fitted to.
+     * Cell amplitudes of a clean frame lie on a line, so values close to 1 mean a reliable frame.
+     */
+    private float coefficientOfDetermination(List<Cell> cells, Trendline trendline) {
+        int numberOfCells = cells.size();
+        if (numberOfCells == 0)
+            return 0;
+
+        float meanY = 0;
+        for (int cellIndex = 0; cellIndex < numberOfCells; cellIndex++)
+            meanY += cells.get(cellIndex).amplitude;
+        meanY /= numberOfCells;
+
+        float residualSum = 0;
+        float totalSum = 0;
+        for (int cellIndex = 0; cellIndex < numberOfCells; cellIndex++) {
+            Cell cell = cells.get(cellIndex);
+
+            int x = cell.cellIndex * mSamplesPerCell + (mSamplesPerCell / 2);
+            float residual = cell.amplitude - (trendline.slope * x + trendline.intersection);
+            float deviation = cell.amplitude - meanY;
+
+            residualSum += residual * residual;
+            totalSum += deviation * deviation;
+        }
+
+        return totalSum == 0 ? 0 : 1 - residualSum / totalSum;
+    }
+
     /**
      * Finds an intersection of the specified {@link com.robocatapps.thermodosdk.model.Trendline}
      * with the abscissa axis.
      */
-    private static float xAxisIntersectionOfTrendline(Trendline trendLine) {
+    private float xAxisIntersectionOfTrendline(Trendline trendLine) {
 
         float intersection = -trendLine.intersection / trendLine.slope;
 
-        float intersectionLocal = intersection / SAMPLES_PER_FRAME;
-        //TODO figure out what these magic numbers mean
-        intersectionLocal = (float) ((intersectionLocal - 1.0 / 18.0) / (1 - 1.0 / 9.0));
+        float intersectionLocal = intersection / mSamplesPerFrame;
+        // Map the centre of the first cell to 0 and the centre of the last one to 1. With the
+        // default 9 cells per frame this is (x - 1/18) / (1 - 1/9).
+        double cellsPerFrame = mProfile.numberOfCells - 1;
+        intersectionLocal = (float) ((intersectionLocal - 0.5 / cellsPerFrame) /
+                (1 - 1.0 / cellsPerFrame));
 
         return intersectionLocal;
     }
 
-    private static float cancellationAmplitudeFromAbscissaIntersection(float intersection) {
-        return UPPER_AMPLITUDE - intersection * (UPPER_AMPLITUDE - LOWER_AMPLITUDE);
+    private float cancellationAmplitudeFromAbscissaIntersection(float intersection) {
+        return mProfile.upperAmplitude - intersection * (mProfile.upperAmplitude -
+                mProfile.lowerAmplitude);
     }
 
-    private static float resistanceFromCancellationAmplitude(float cancellationAmplitude) {
-        return (float) ((cancellationAmplitude / REFERENCE_AMPLITUDE) * REF_RESISTANCE);
+    private float resistanceFromCancellationAmplitude(float cancellationAmplitude) {
+        return (float) ((cancellationAmplitude / mProfile.referenceAmplitude) * REF_RESISTANCE);
     }
 
     /**
@@ -1,170 +1,334 @@
 package com.robocatapps.thermodosdk;
 
-import android.os.Handler;
-import android.util.Log;
-
-import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Manages Thermodo detection process.
+ * <p/>
+ * Detection runs as a state machine over one continuous capture of the shared {@link
+ * AudioRecorder}: a window of silence is recorded, then the test tone is started and, after a
+ * lead-in covering the playback latency, a window of the tone is recorded. Windows are located by
+ * their sample position in the capture, so the recording is never stopped or restarted and can be
+ * handed over to the measurement as soon as the Thermodo is detected.
+ * <p/>
+ * The windows are measured in one pass by a {@link SignalLevelMeter}, leaving the recorded
+ * buffers untouched.
  */
 public class DeviceDetector implements AudioRecorder.OnBufferFilledListener {
 
-	private static final String LOG_TAG = "DeviceDetector";
+	private static Logger sLog = Logger.getLogger(DeviceDetector.class.getName());
+
 	private static final int TEST_TONE_DURATION = 700;
 	private static final int TEST_TONE_FREQUENCY = 200;
 	private static final short SILENCE_THRESHOLD = 150;
 	private static final short TONE_THRESHOLD = 1000;
 	private static final short TONE_TO_SILENCE_RATIO = 10;
-	private static final int CUT_SAMPLES_COUNT = 800;
+
+	/**
+	 * Lowest fraction of the tone window's energy which has to be at the test tone frequency, so
+	 * loud broadband noise isn't taken for the tone.
+	 */
+	private static final float MIN_TONE_ENERGY_FRACTION = 0.5f;
+
+	/**
+	 * Fraction of the loudest samples of a window ignored as noise. Matches the 800 samples cut
+	 * from the half second buffers used originally.
+	 */
+	private static final float CUT_SAMPLES_FRACTION = 800f / 22050;
+
+	/**
+	 * Duration of the chunks received from the recorder, in seconds. Bounds how late the tone
+	 * starts after the silence window.
+	 */
+	private static final float CHUNK_SECONDS = 0.02f;
+	private static final float SILENCE_WINDOW_SECONDS = 0.2f;
+	private static final float TONE_LEAD_IN_SECONDS = 0.2f;
+	private static final float TONE_WINDOW_SECONDS = 0.3f;
+
+	/**
+	 * Tone window of a device known from an earlier connection whose silence level matches, in
+	 * seconds.
+	 */
+	private static final float KNOWN_TONE_WINDOW_SECONDS = 0.1f;
+
+	/**
+	 * A silence level matches the one of an earlier connection if it is within this factor of it,
+	 * give or take the margin, which covers the noise of low levels.
+	 */
+	private static final float SILENCE_MATCH_FACTOR = 2f;
+	private static final int SILENCE_MATCH_MARGIN = 10;
+
+	private enum State {
+		IDLE, SILENCE, TONE, DONE
+	}
 
 	private OnDetectionResultListener mListener;
 
 	private Sound mSound;
 	private AudioRecorder mRecorder;
-	private Handler mHandler;
+	private AudioBackend mBackend;
+	private Executor mCallbackExecutor;
+
+	private volatile State mState = State.IDLE;
+	private volatile int mDetection;
+	private volatile int mExpectedSilenceLevel = -1;
+	private volatile int mSilenceLevel = -1;
+	private volatile float mToneRatio;
 
-	private volatile boolean mDetectByTone = false;
-	private short mSilenceMaxLevel;
+	// Accessed on the recording thread only
+	private final SignalLevelMeter mMeter = new SignalLevelMeter();
+	private int mSampleRate;
+	private long mPosition;
+	private long mToneWindowStart;
+	private int mSilenceWindowSize;
+	private int mToneLeadInSize;
+	private int mToneWindowSize;
+	private int mKnownToneWindowSize;
+	private int mSilenceMaxLevel;
+	private int mCurrentToneWindowSize;
 
-	public DeviceDetector(OnDetectionResultListener listener) {
+	/**
+	 * @param recorder         Recorder shared with the measurement. Detection switches its
+	 *                         listener and starts it, if not already recording.
+	 * @param callbackExecutor Executor on which the listener is invoked, usually posting to the
+	 *                         main thread.
+	 */
+	public DeviceDetector(OnDetectionResultListener listener, SignalProfile profile,
+						  AudioRecorder recorder, AudioBackend backend,
+						  Executor callbackExecutor) {
 		mListener = listener;
-		mRecorder = new AudioRecorder(this);
-		mHandler = new Handler();
-		mSound = SoundGenerator.generateWave(TEST_TONE_DURATION, TEST_TONE_FREQUENCY, true, true);
+		mBackend = backend;
+		mRecorder = recorder;
+		mCallbackExecutor = callbackExecutor;
+		mSound = SoundGenerator.generateWave(profile.sampleRate, TEST_TONE_DURATION,
+				TEST_TONE_FREQUENCY, true, true);
 	}
 
 	/**
-	 * Starts the device detection process. A listener method will be invoked on the main thread
-	 * passing results to the caller.
+	 * Starts the device detection process. A listener method will be invoked through the callback
+	 * executor passing results to the caller.
+	 * <p/>
+	 * The recorder is left recording when the detection finishes. On success the caller should
+	 * switch its listener to the measurement, otherwise stop it.
 	 */
 	public void startDetection() {
+		startDetection(-1);
+	}
+
+	/**
+	 * Starts the device detection process for a device which may be known from an earlier
+	 * connection, see {@link WarmStartStore}. The headset plug extras don't tell a Thermodo from
+	 * another headset, so the tone is always checked, but only for a short window when the
+	 * silence level matches the one of the earlier connection.
+	 *
+	 * @param expectedSilenceLevel The silence level measured on the earlier connection, or -1 if
+	 *                             the device isn't known.
+	 */
+	public void startDetection(int expectedSilenceLevel) {
+		mDetection++;
+		mExpectedSilenceLevel = expectedSilenceLevel;
+		mSilenceLevel = -1;
+		mToneRatio = 0;
+		mState = State.IDLE;
+		mRecorder.setListener(this, CHUNK_SECONDS);
 		mRecorder.startRecording();
 	}
 
+	/**
+	 * Cancels a running detection and stops the test tone. No result is delivered for it
+	 * afterwards. The recorder is not stopped.
+	 */
+	public void cancelDetection() {
+		mDetection++;
+		mState = State.DONE;
+		stopTone();
+	}
+
+	/**
+	 * Prepares the playback of the test tone, so starting it doesn't delay the detection.
+	 */
+	public void prepare() {
+		mSound.prepare(mBackend);
+	}
+
+	/**
+	 * Releases the test tone's output. It is prepared again when needed.
+	 */
+	public void release() {
+		mSound.release();
+	}
+
+	@Override
+	public void onRecordingStarted(int sampleRate) {
+		mSilenceWindowSize = (int) (SILENCE_WINDOW_SECONDS * sampleRate);
+		mToneLeadInSize = (int) (TONE_LEAD_IN_SECONDS * sampleRate);
+		mToneWindowSize = (int) (TONE_WINDOW_SECONDS * sampleRate);
+		mKnownToneWindowSize = (int) (KNOWN_TONE_WINDOW_SECONDS * sampleRate);
+		mSampleRate = sampleRate;
+
+		mPosition = 0;
+		mMeter.reset(TEST_TONE_FREQUENCY, sampleRate);
+		if (mState == State.IDLE)
+			mState = State.SILENCE;
+	}
+
 	@Override
 	public void onBufferFilled(short[] data) {
-		mRecorder.stopRecording();
-
-		if (mDetectByTone) {
-			invokeListener(isDetectedByTone(data));
-			mDetectByTone = false;
-		} else {
-			if (!isDetectedBySilence(data))
-				invokeListener(false);
-			else {
-				mDetectByTone = true;
-				mSound.play(0);
-
-				// As this code runs in the recording thread, tone recording won't be delayed and
-				// InterruptedException will be thrown if current thread is interrupted. So
-				// saving current state to restore it later.
-				// TODO: Consider better solution
-				boolean isInterrupted = Thread.interrupted();
-
-				// In most cases playback starts later than recording and half of the
-				// recorded buffer contains noise or silence. Short delay between playback and
-				// recording start helps to avoid such situations.
-				try {
-					Thread.sleep(200);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
+		long chunkStart = mPosition;
+		mPosition += data.length;
 
-				if (isInterrupted)
-					Thread.currentThread().interrupt();
+		switch (mState) {
+			case SILENCE:
+				if (collect(data, chunkStart, 0, mSilenceWindowSize)) {
+					if (!isDetectedBySilence()) {
+						finish(false);
+					} else {
+						mCurrentToneWindowSize = silenceMatchesExpected() ? mKnownToneWindowSize
+								: mToneWindowSize;
 
-				mRecorder.startRecording();
-			}
+						// The tone starts playing at about the current capture position
+						playTone();
+						mToneWindowStart = mPosition + mToneLeadInSize;
+						mMeter.reset(TEST_TONE_FREQUENCY, mSampleRate);
+						mState = State.TONE;
+					}
+				}
+				break;
+			case TONE:
+				if (collect(data, chunkStart, mToneWindowStart, mCurrentToneWindowSize))
+					finish(isDetectedByTone());
+				break;
+			default:
+				// Idle or done, the captured audio isn't used
+				break;
 		}
 	}
 
+	/**
+	 * Adds the part of the chunk overlapping the window starting at the specified capture
+	 * position to the level meter.
+	 *
+	 * @return True, if the whole window has been measured.
+	 */
+	private boolean collect(short[] data, long chunkStart, long windowStart, int windowSize) {
+		long from = Math.max(chunkStart, windowStart + mMeter.getCount());
+		long to = Math.min(chunkStart + data.length, windowStart + windowSize);
+		if (from < to)
+			mMeter.add(data, (int) (from - chunkStart), (int) (to - chunkStart));
+		return mMeter.getCount() == windowSize;
+	}
+
+	private void finish(boolean detected) {
+		mState = State.DONE;
+		stopTone();
+		invokeListener(detected);
+	}
+
+	private synchronized void playTone() {
+		if (mState != State.DONE)
+			mSound.play(mBackend, 0);
+	}
+
+	private synchronized void stopTone() {
+		mSound.stop();
+	}
+
 	@Override
 	public void onRecorderError(int what) {
-		Log.w(LOG_TAG, "Recording error: " + what);
-		invokeListener(false);
+		sLog.warning("Recording error: " + what);
+		finish(false);
 	}
 
 	/**
-	 * Preforms Thermodo detection by assuming that the sound was recorded while not playing
-	 * anything.
+	 * Preforms Thermodo detection by assuming that the measured window was recorded while not
+	 * playing anything.
 	 *
-	 * @param data Raw recorded sound data array.
 	 * @return true if Thermodo was detected, false otherwise.
 	 */
-	private boolean isDetectedBySilence(short[] data) {
-		Log.d(LOG_TAG, "Detecting by silence...");
-
-		//OPTION 1: The median of the absolutes need to be under a certain level
-		//convertArrayToAbsoluteValues(data);
-		//Arrays.sort(data);
-		//short median = data[data.length / 2];
-		//boolean detected = median < SILENCE_THRESHOLD;
+	private boolean isDetectedBySilence() {
+		sLog.fine("Detecting by silence...");
 
-		//OPTION 2: The maximum (after a noise cut) needs to be below a certain level
-		convertArrayToAbsoluteValues(data);
-		Arrays.sort(data);
-		mSilenceMaxLevel = data[data.length - CUT_SAMPLES_COUNT];
+		// The maximum (after a noise cut) needs to be below a certain level
+		mSilenceMaxLevel = mMeter.robustMaximum(cutSamplesCount(mMeter.getCount()));
 		boolean detected = mSilenceMaxLevel < SILENCE_THRESHOLD;
+		mSilenceLevel = mSilenceMaxLevel;
 
-		if (Log.isLoggable(LOG_TAG, Log.INFO)) {
-			Log.d(LOG_TAG, "Last elems: " + stringifyLastElements(data, 0, 150));
-			Log.d(LOG_TAG, "Almost Last elems: " + stringifyLastElements(data, CUT_SAMPLES_COUNT - 150, 150));
-			Log.d(LOG_TAG, "Silence max level: " + mSilenceMaxLevel);
-		}
-		Log.i(LOG_TAG, "Thermodo detected by silence: " + detected);
+		if (sLog.isLoggable(Level.FINE))
+			sLog.fine("Silence max level: " + mSilenceMaxLevel);
+		sLog.info("Thermodo detected by silence: " + detected);
 
 		return detected;
 	}
 
 	/**
-	 * Performs Thermodo detection by assuming that the sound was recorded while playing a tone.
+	 * @return True, if the measured silence level matches the expected one of a known device.
+	 */
+	private boolean silenceMatchesExpected() {
+		int expected = mExpectedSilenceLevel;
+		boolean matches = expected >= 0
+				&& mSilenceMaxLevel <= expected * SILENCE_MATCH_FACTOR + SILENCE_MATCH_MARGIN
+				&& mSilenceMaxLevel >= expected / SILENCE_MATCH_FACTOR - SILENCE_MATCH_MARGIN;
+		if (expected >= 0)
+			sLog.info("Silence level " + mSilenceMaxLevel + (matches ? " matches" : " differs from")
+					+ " the known device's " + expected);
+		return matches;
+	}
+
+	/**
+	 * Performs Thermodo detection by assuming that the measured window was recorded while playing
+	 * a tone.
 	 *
-	 * @param data Raw recorded sound data array.
 	 * @return true if Thermodo was detected, false otherwise.
 	 */
-	private boolean isDetectedByTone(short[] data) {
-		Log.d(LOG_TAG, "Detecting by test tone...");
+	private boolean isDetectedByTone() {
+		sLog.fine("Detecting by test tone...");
 
-		// OPTION 2: The maximum (after a noise cut) needs to be above a certain level, compared to
-		// the silence level
-		convertArrayToAbsoluteValues(data);
-		Arrays.sort(data);
-		short max = data[data.length - CUT_SAMPLES_COUNT];
-		boolean detected = max / mSilenceMaxLevel > TONE_TO_SILENCE_RATIO;
+		// The maximum (after a noise cut) needs to be above a certain level, compared to the
+		// silence level, and most of the energy needs to be at the tone frequency. A perfectly
+		// silent line counts as a level of 1.
+		int max = mMeter.robustMaximum(cutSamplesCount(mMeter.getCount()));
+		float toneFraction = mMeter.toneEnergyFraction();
+		mToneRatio = (float) max / Math.max(1, mSilenceMaxLevel);
+		boolean detected = max / Math.max(1, mSilenceMaxLevel) > TONE_TO_SILENCE_RATIO
+				&& toneFraction >= MIN_TONE_ENERGY_FRACTION;
 
-		if (Log.isLoggable(LOG_TAG, Log.INFO)) {
-			Log.d(LOG_TAG, "Last elems: " + stringifyLastElements(data, 0, 150));
-			Log.d(LOG_TAG, "Almost Last elems: " + stringifyLastElements(data, CUT_SAMPLES_COUNT - 150, 150));
-			Log.d(LOG_TAG, "Tone max level: " + max);
-		}
-		Log.i(LOG_TAG, "Thermodo detected by tone: " + detected);
+		if (sLog.isLoggable(Level.FINE))
+			sLog.fine("Tone max level: " + max + ", tone energy fraction: " + toneFraction);
+		sLog.info("Thermodo detected by tone: " + detected);
 
 		return detected;
 	}
 
 	/**
-	 * Utility method to create a string with the last {@code count} elements, with an {@code
-	 * offset} from the end.
+	 * @return The silence level measured by the last detection, or -1 if it wasn't measured.
+	 */
+	public int getSilenceLevel() {
+		return mSilenceLevel;
+	}
+
+	/**
+	 * @return The ratio of the tone to the silence level measured by the last detection, or 0 if
+	 * the tone wasn't measured.
 	 */
-	private String stringifyLastElements(short[] data, int offset, int count) {
-		StringBuffer b = new StringBuffer();
-		for (int i = data.length - count - offset; i < data.length - offset; i++)
-			b.append(data[i]).append(", ");
-		return b.toString();
+	public float getToneRatio() {
+		return mToneRatio;
 	}
 
-	private void convertArrayToAbsoluteValues(short[] data) {
-		for (int i = 0; i < data.length; i++)
-			data[i] = (short) Math.abs(data[i]);
+	private static int cutSamplesCount(int length) {
+		return Math.max(1, (int) (length * CUT_SAMPLES_FRACTION));
 	}
 
 	private void invokeListener(final boolean detected) {
+		final int detection = mDetection;
 		if (mListener != null)
-			mHandler.post(new Runnable() {
+			mCallbackExecutor.execute(new Runnable() {
 				@Override
 				public void run() {
-					mListener.onDetectionResult(detected);
+					// Drop results of cancelled or restarted detections
+					if (detection == mDetection)
+						mListener.onDetectionResult(detected);
 				}
 			});
 	}
@@ -175,8 +339,8 @@ public class DeviceDetector implements AudioRecorder.OnBufferFilledListener {
 	public static interface OnDetectionResultListener {
 
 		/**
-		 * Method called when a detection result is obtained. This method will be called from the
-		 * main thread by the {@link com.robocatapps.thermodosdk.DeviceDetector}.
+		 * Method called when a detection result is obtained. This method will be called through the
+		 * callback executor of the {@link com.robocatapps.thermodosdk.DeviceDetector}.
 		 */
 		public void onDetectionResult(boolean thermodoDetected);
 	}
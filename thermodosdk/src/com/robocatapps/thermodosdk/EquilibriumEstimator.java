@@ -0,0 +1,362 @@
+package com.robocatapps.thermodosdk;
+
+/**
+ * Predicts the temperature the probe will settle at from the readings while it is still moving,
+ * so the final temperature is known before the curve flattens. The probe is modelled as a first
+ * order system approaching the equilibrium temperature exponentially,
+ * dT/dt = (T<sub>eq</sub> - T) / tau, which is linear in the temperature: dT/dt = c0 + c1 * T.
+ * <p/>
+ * Every reading adds the average slope and temperature over the last few readings to a recursive
+ * least squares fit of the coefficients, which forgets old readings exponentially, so adding a
+ * reading costs the same regardless of how many were added. The equilibrium temperature is
+ * -c0 / c1, with an uncertainty propagated from the covariance of the fit, and the time constant
+ * is -1 / c1.
+ * <p/>
+ * When a reading is far off the fit several times in a row, e.g. when the probe is moved to
+ * another object, the fit starts over from the following readings.
+ * <p/>
+ * While the readings are too flat for the fit, e.g. once the probe settled, the mean of the last
+ * readings is reported, if they are steady. Steady readings aren't added to the fit, and once the
+ * readings move away from where the probe settled, the fit starts over.
+ */
+public class EquilibriumEstimator {
+
+    /**
+     * Number of reading intervals the slope is averaged over, which keeps the noise of single
+     * readings from dominating it.
+     */
+    private static final int SLOPE_INTERVALS = 4;
+
+    private static final double DEFAULT_FORGETTING_FACTOR = 0.97;
+
+    /**
+     * Default distance from the equilibrium temperature at which the probe is settled, in degrees
+     * Celsius.
+     */
+    private static final float DEFAULT_TOLERANCE = 0.5f;
+
+    /**
+     * Slopes below which the readings are steady, in degrees Celsius per second.
+     */
+    private static final double STEADY_SLOPE = 0.02;
+
+    /**
+     * Distance of the readings from the temperature the probe settled at, in tolerances, from
+     * which the probe is moving again.
+     */
+    private static final float MOVE_TOLERANCES = 2;
+
+    /**
+     * Range of plausible time constants of the probe, in seconds.
+     */
+    private static final double MIN_TIME_CONSTANT = 0.5;
+    private static final double MAX_TIME_CONSTANT = 600;
+
+    /**
+     * Fits added before an estimate is reported.
+     */
+    private static final int MIN_FITS = 4;
+
+    /**
+     * Standard deviations a slope must be off the fit, for a number of fits in a row, before the
+     * fit starts over.
+     */
+    private static final double CHANGE_DEVIATIONS = 5;
+    private static final int CHANGE_FITS = 2;
+
+    /**
+     * Lower bound of the standard deviation of the slopes from the fit, in degrees Celsius per
+     * second, which keeps rounding from being taken for a change.
+     */
+    private static final double MIN_SLOPE_DEVIATION = 0.01;
+
+    /**
+     * Gap between readings after which the estimator starts over, in milliseconds.
+     */
+    private static final long MAX_GAP_MILLIS = 10 * 1000;
+
+    /**
+     * Initial variance of the coefficients, large for a fit led by the readings. It also bounds
+     * the variance, which otherwise grows without limit while the temperature barely changes.
+     */
+    private static final double INITIAL_VARIANCE = 1e4;
+
+    private final double mForgettingFactor;
+    private float mTolerance = DEFAULT_TOLERANCE;
+
+    // The last readings, oldest first from mNext
+    private final long[] mTimestamps = new long[SLOPE_INTERVALS + 1];
+    private final float[] mTemperatures = new float[SLOPE_INTERVALS + 1];
+    private int mNext;
+    private int mCount;
+
+    // Fit of the slope against the temperature relative to the first reading, for conditioning:
+    // slope = mC0 + mC1 * (temperature - mReference)
+    private double mReference;
+    private double mC0;
+    private double mC1;
+    private double mP00;
+    private double mP01;
+    private double mP11;
+    // Weighted sum of the squared prediction errors, and the weighted number of fits
+    private double mSquaredErrors;
+    private double mWeight;
+    private int mFits;
+    private int mChangeFits;
+    // The temperature the probe last settled at, NaN while it approaches one
+    private double mSettledTemperature;
+
+    // The last estimate
+    private float mEquilibrium = Float.NaN;
+    private float mUncertainty = Float.NaN;
+    private float mTimeConstant = Float.NaN;
+    private float mSettleSeconds = Float.NaN;
+
+    public EquilibriumEstimator() {
+        this(DEFAULT_FORGETTING_FACTOR);
+    }
+
+    /**
+     * @param forgettingFactor Weight of the previous fit for each reading, between 0 and 1. Lower
+     *                         values follow changes of the equilibrium faster, higher ones are
+     *                         less noisy.
+     */
+    public EquilibriumEstimator(double forgettingFactor) {
+        if (!(forgettingFactor > 0 && forgettingFactor <= 1))
+            throw new IllegalArgumentException("Forgetting factor must be in (0, 1]");
+        mForgettingFactor = forgettingFactor;
+        reset();
+    }
+
+    /**
+     * Sets the distance from the equilibrium temperature at which the probe is considered
+     * settled, in degrees Celsius.
+     */
+    public synchronized void setTolerance(float tolerance) {
+        mTolerance = tolerance;
+    }
+
+    /**
+     * Forgets all readings, e.g. when the probe is moved to another object.
+     */
+    public synchronized void reset() {
+        mNext = 0;
+        mCount = 0;
+        mC0 = 0;
+        mC1 = 0;
+        mSettledTemperature = Double.NaN;
+        restartFit();
+        clearEstimate();
+    }
+
+    /**
+     * Adds a reading and updates the estimate. Readings with an unknown temperature are ignored.
+     *
+     * @param timestamp Time of the reading in milliseconds on a monotonic clock, e.g. {@link
+     *                  android.os.SystemClock#elapsedRealtime()}. Readings not after the previous
+     *                  one are ignored.
+     * @return True, if an estimate is available.
+     */
+    public synchronized boolean add(long timestamp, float temperature) {
+        if (Float.isNaN(temperature))
+            return !Float.isNaN(mEquilibrium);
+
+        if (mCount > 0) {
+            long previous = mTimestamps[(mNext + mTimestamps.length - 1) % mTimestamps.length];
+            if (timestamp <= previous)
+                return !Float.isNaN(mEquilibrium);
+            if (timestamp - previous > MAX_GAP_MILLIS)
+                reset();
+        }
+        if (mCount == 0)
+            mReference = temperature;
+
+        mTimestamps[mNext] = timestamp;
+        mTemperatures[mNext] = temperature;
+        mNext = (mNext + 1) % mTimestamps.length;
+        mCount = Math.min(mCount + 1, mTimestamps.length);
+        if (mCount < mTimestamps.length)
+            return false;
+
+        // Average slope and temperature over the intervals, from the trapezoidal integral. For an
+        // exponential approach the average slope is exactly c0 + c1 * average temperature.
+        int oldest = mNext;
+        int newest = (mNext + mTimestamps.length - 1) % mTimestamps.length;
+        double seconds = (mTimestamps[newest] - mTimestamps[oldest]) / 1000.0;
+        double integral = 0;
+        for (int i = 0; i < SLOPE_INTERVALS; i++) {
+            int a = (oldest + i) % mTimestamps.length;
+            int b = (a + 1) % mTimestamps.length;
+            integral += (mTemperatures[a] + mTemperatures[b]) / 2.0
+                    * (mTimestamps[b] - mTimestamps[a]) / 1000.0;
+        }
+        double average = integral / seconds;
+        double slope = (mTemperatures[newest] - mTemperatures[oldest]) / seconds;
+
+        // Readings moving away from where the probe settled start a new approach. Steady readings
+        // carry nothing about the approach and would only let the variance of the fit grow.
+        if (Math.abs(average - mSettledTemperature) > MOVE_TOLERANCES * mTolerance)
+            restartApproach();
+        else if (Math.abs(slope) >= STEADY_SLOPE)
+            update(average - mReference, slope);
+        estimate(mTemperatures[newest], average, slope);
+        if (mSettleSeconds == 0)
+            mSettledTemperature = mEquilibrium;
+        else if (mSettleSeconds > 0)
+            mSettledTemperature = Double.NaN;
+        return !Float.isNaN(mEquilibrium);
+    }
+
+    /**
+     * @return The predicted temperature the probe settles at, in degrees Celsius, or NaN if there
+     * is no estimate yet.
+     */
+    public synchronized float getPredictedTemperature() {
+        return mEquilibrium;
+    }
+
+    /**
+     * @return The standard deviation of the predicted temperature, in degrees Celsius, or NaN if
+     * there is no estimate yet.
+     */
+    public synchronized float getUncertainty() {
+        return mUncertainty;
+    }
+
+    /**
+     * @return The time constant of the probe's approach, in seconds, or NaN if it is unknown, e.g.
+     * once the readings are steady.
+     */
+    public synchronized float getTimeConstantSeconds() {
+        return mTimeConstant;
+    }
+
+    /**
+     * @return The estimated time from the last reading until the probe is within the tolerance of
+     * the predicted temperature, in seconds, 0 if it already is, or NaN if there is no estimate
+     * yet.
+     */
+    public synchronized float getSettleSeconds() {
+        return mSettleSeconds;
+    }
+
+    /**
+     * Adds a sample of the slope against the temperature to the recursive least squares fit.
+     */
+    private void update(double x, double y) {
+        double lambda = mForgettingFactor;
+
+        // Gain for the regressor (1, x)
+        double p0 = mP00 + mP01 * x;
+        double p1 = mP01 + mP11 * x;
+        double denominator = lambda + p0 + p1 * x;
+        double k0 = p0 / denominator;
+        double k1 = p1 / denominator;
+
+        // The error of the prediction, scaled by the uncertainty of the fit, has the variance of
+        // the slopes
+        double error = y - (mC0 + mC1 * x);
+        double squaredError = error * error * lambda / denominator;
+
+        if (mFits >= MIN_FITS && squaredError > CHANGE_DEVIATIONS * CHANGE_DEVIATIONS
+                * getSlopeVariance()) {
+            if (++mChangeFits >= CHANGE_FITS) {
+                restartApproach();
+                return;
+            }
+        } else {
+            mChangeFits = 0;
+        }
+
+        mC0 += k0 * error;
+        mC1 += k1 * error;
+
+        mP00 = (mP00 - k0 * p0) / lambda;
+        mP01 = (mP01 - k0 * p1) / lambda;
+        mP11 = (mP11 - k1 * p1) / lambda;
+        double largest = Math.max(mP00, mP11);
+        if (largest > INITIAL_VARIANCE) {
+            double scale = INITIAL_VARIANCE / largest;
+            mP00 *= scale;
+            mP01 *= scale;
+            mP11 *= scale;
+        }
+
+        mSquaredErrors = lambda * mSquaredErrors + squaredError;
+        mWeight = lambda * mWeight + 1;
+        mFits++;
+    }
+
+    /**
+     * Returns the variance of the slopes from the fit. The first two fits determine the
+     * coefficients and carry no information about it.
+     */
+    private double getSlopeVariance() {
+        return Math.max(mSquaredErrors / Math.max(mWeight - 2, 1),
+                MIN_SLOPE_DEVIATION * MIN_SLOPE_DEVIATION);
+    }
+
+    /**
+     * Starts the fit over from the newest reading, as the older ones may precede the change. The
+     * coefficients are kept as a guess, but the new readings lead.
+     */
+    private void restartApproach() {
+        mCount = 1;
+        mSettledTemperature = Double.NaN;
+        restartFit();
+    }
+
+    private void restartFit() {
+        mP00 = INITIAL_VARIANCE;
+        mP01 = 0;
+        mP11 = INITIAL_VARIANCE;
+        mSquaredErrors = 0;
+        mWeight = 0;
+        mFits = 0;
+        mChangeFits = 0;
+    }
+
+    private void estimate(float last, double average, double slope) {
+        clearEstimate();
+
+        double timeConstant = -1 / mC1;
+        if (mFits >= MIN_FITS && mC1 < 0 && timeConstant >= MIN_TIME_CONSTANT
+                && timeConstant <= MAX_TIME_CONSTANT) {
+            double equilibrium = mReference - mC0 / mC1;
+
+            // Propagated through the gradient (-1 / c1, c0 / c1^2) of -c0 / c1
+            double g0 = -1 / mC1;
+            double g1 = mC0 / (mC1 * mC1);
+            double variance = getSlopeVariance()
+                    * (g0 * g0 * mP00 + 2 * g0 * g1 * mP01 + g1 * g1 * mP11);
+
+            if (!Double.isNaN(equilibrium) && !Double.isInfinite(equilibrium) && variance >= 0
+                    && !Double.isInfinite(variance)) {
+                mEquilibrium = (float) equilibrium;
+                mUncertainty = (float) Math.sqrt(variance);
+                mTimeConstant = (float) timeConstant;
+                double remaining = Math.abs(last - equilibrium);
+                mSettleSeconds = remaining <= mTolerance ? 0
+                        : (float) (timeConstant * Math.log(remaining / mTolerance));
+                return;
+            }
+        }
+
+        // Too flat to fit, report steady readings as they are
+        if (Math.abs(slope) < STEADY_SLOPE) {
+            double variance = 0;
+            for (float temperature : mTemperatures)
+                variance += (temperature - average) * (temperature - average);
+            mEquilibrium = (float) average;
+            mUncertainty = (float) Math.sqrt(variance / mTemperatures.length);
+            mSettleSeconds = 0;
+        }
+    }
+
+    private void clearEstimate() {
+        mEquilibrium = Float.NaN;
+        mUncertainty = Float.NaN;
+        mTimeConstant = Float.NaN;
+        mSettleSeconds = Float.NaN;
+    }
+}
@@ -0,0 +1,182 @@
+package com.robocatapps.thermodosdk;
+
+import com.robocatapps.thermodosdk.model.ReadingTrace;
+
+/**
+ * Collects the {@link ReadingTrace} of every delivered reading into latency histograms of each
+ * stage, to tell how old the temperatures shown are and where the time goes:
+ * <ul>
+ * <li>queue, from the capture of a buffer's last sample to the start of its analysis, which
+ * includes the time spent recording the rest of the buffer's chunk and reading it,</li>
+ * <li>analysis, the time the analyzer took,</li>
+ * <li>delivery, from the end of the analysis to the listener being invoked on the main thread,</li>
+ * <li>total, from the capture to the listener.</li>
+ * </ul>
+ */
+public class LatencyTracer {
+
+    /**
+     * Histogram of latencies in buckets growing by a quarter of an octave, from 100 microseconds
+     * to about 100 seconds, so the percentiles are accurate to within 19 percent.
+     */
+    public static class Histogram {
+
+        private static final double MIN_MICROS = 100;
+        private static final int BUCKETS_PER_OCTAVE = 4;
+        private static final int BUCKET_COUNT = 20 * BUCKETS_PER_OCTAVE + 1;
+
+        private final String mName;
+        private final long[] mCounts = new long[BUCKET_COUNT];
+        private long mCount;
+        private long mSumMicros;
+        private long mMaxMicros;
+
+        Histogram(String name) {
+            mName = name;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        synchronized void add(long micros) {
+            micros = Math.max(micros, 0);
+            mCounts[getBucket(micros)]++;
+            mCount++;
+            mSumMicros += micros;
+            mMaxMicros = Math.max(mMaxMicros, micros);
+        }
+
+        synchronized void reset() {
+            for (int i = 0; i < mCounts.length; i++)
+                mCounts[i] = 0;
+            mCount = 0;
+            mSumMicros = 0;
+            mMaxMicros = 0;
+        }
+
+        public synchronized long getCount() {
+            return mCount;
+        }
+
+        public synchronized double getMeanMicros() {
+            return mCount > 0 ? (double) mSumMicros / mCount : 0;
+        }
+
+        public synchronized long getMaxMicros() {
+            return mMaxMicros;
+        }
+
+        /**
+         * @param percentile Percentage of the latencies at or below the returned one, e.g. 95.
+         * @return The upper bound of the bucket holding the percentile, limited to the maximum
+         * latency, or 0 if there are none.
+         */
+        public synchronized long getPercentileMicros(double percentile) {
+            long rank = (long) Math.ceil(mCount * percentile / 100);
+            long count = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                count += mCounts[i];
+                if (count >= rank && count > 0)
+                    return Math.min(getUpperMicros(i), mMaxMicros);
+            }
+            return mMaxMicros;
+        }
+
+        /**
+         * @return The upper bounds of the buckets in microseconds, the last one being unbounded.
+         */
+        public long[] getBucketUpperMicros() {
+            long[] bounds = new long[BUCKET_COUNT];
+            for (int i = 0; i < BUCKET_COUNT; i++)
+                bounds[i] = getUpperMicros(i);
+            return bounds;
+        }
+
+        /**
+         * @return A copy of the number of latencies in each bucket.
+         */
+        public synchronized long[] getBucketCounts() {
+            return mCounts.clone();
+        }
+
+        private static int getBucket(long micros) {
+            if (micros <= MIN_MICROS)
+                return 0;
+            int bucket = (int) Math.ceil(Math.log(micros / MIN_MICROS) / Math.log(2)
+                    * BUCKETS_PER_OCTAVE);
+            return Math.min(bucket, BUCKET_COUNT - 1);
+        }
+
+        private static long getUpperMicros(int bucket) {
+            if (bucket == BUCKET_COUNT - 1)
+                return Long.MAX_VALUE;
+            return (long) Math.floor(MIN_MICROS * Math.pow(2, (double) bucket
+                    / BUCKETS_PER_OCTAVE));
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("%s: %d, mean %.0f us, p50 %d us, p95 %d us, max %d us", mName,
+                    mCount, getMeanMicros(), getPercentileMicros(50), getPercentileMicros(95),
+                    mMaxMicros);
+        }
+    }
+
+    private final Histogram mQueue = new Histogram("queue");
+    private final Histogram mAnalysis = new Histogram("analysis");
+    private final Histogram mDelivery = new Histogram("delivery");
+    private final Histogram mTotal = new Histogram("total");
+    private volatile int mCountedCaptureTimes;
+
+    /**
+     * Adds the latencies of a delivered reading.
+     */
+    public void record(ReadingTrace trace) {
+        mQueue.add(trace.getQueueMicros());
+        mAnalysis.add(trace.getAnalysisMicros());
+        mDelivery.add(trace.getDeliveryMicros());
+        mTotal.add(trace.getTotalMicros());
+        if (!trace.captureTimeFromInput)
+            mCountedCaptureTimes++;
+    }
+
+    public Histogram getQueueHistogram() {
+        return mQueue;
+    }
+
+    public Histogram getAnalysisHistogram() {
+        return mAnalysis;
+    }
+
+    public Histogram getDeliveryHistogram() {
+        return mDelivery;
+    }
+
+    public Histogram getTotalHistogram() {
+        return mTotal;
+    }
+
+    /**
+     * @return The number of readings whose capture time was derived from the number of samples
+     * read rather than reported by the audio input, which makes their queue and total latencies
+     * lower than the actual ones.
+     */
+    public int getCountedCaptureTimes() {
+        return mCountedCaptureTimes;
+    }
+
+    public void reset() {
+        mQueue.reset();
+        mAnalysis.reset();
+        mDelivery.reset();
+        mTotal.reset();
+        mCountedCaptureTimes = 0;
+    }
+
+    @Override
+    public String toString() {
+        return mQueue + "\n" + mAnalysis + "\n" + mDelivery + "\n" + mTotal
+                + "\ncounted capture times: " + mCountedCaptureTimes;
+    }
+}
@@ -0,0 +1,296 @@
+package com.robocatapps.thermodosdk;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * An in-memory {@link AudioBackend} that feeds the played sounds through a {@link
+ * TransferFunction} into the recorded input. It doesn't depend on any platform audio classes, so
+ * the recording, detection and analysis pipeline can run on a plain JVM.
+ * <p/>
+ * Sounds playing at the same time are mixed. The input is paced to real time multiplied by the
+ * speed given on construction, or produced as fast as it is read if the speed is 0.
+ */
+public class LoopbackAudioBackend implements AudioBackend {
+
+    /**
+     * Models what is recorded for a pair of played stereo samples, e.g. the Thermodo's bridge or
+     * a plain pair of headphones.
+     */
+    public interface TransferFunction {
+
+        /**
+         * Returns the recorded sample for the played left and right samples. Called on the
+         * recording thread.
+         */
+        short transfer(short left, short right);
+    }
+
+    /**
+     * Returns a transfer function modelling a Thermodo at the specified temperature: the
+     * thermistor and the reference resistor form a divider between the left and right channels.
+     *
+     * @param temperature The probe temperature, in degrees Celsius.
+     * @param gain        Gain applied to the divider output.
+     * @param noise       Peak amplitude of the uniform noise added to every sample.
+     */
+    public static TransferFunction probe(float temperature, final float gain, final float noise) {
+        final float resistance = AbstractAnalyzer.resistanceFromTemperature(temperature);
+        if (Float.isNaN(resistance))
+            throw new IllegalArgumentException("Temperature out of range: " + temperature);
+
+        final double reference = AbstractAnalyzer.REF_RESISTANCE;
+        final Random random = new Random();
+        return new TransferFunction() {
+            @Override
+            public short transfer(short left, short right) {
+                double value = gain * (left * reference + right * resistance) / (resistance +
+                        reference);
+                return clamp(value + (random.nextFloat() - 0.5f) * 2 * noise);
+            }
+        };
+    }
+
+    /**
+     * Returns a transfer function which records only noise, e.g. an unplugged jack.
+     *
+     * @param noise Peak amplitude of the uniform noise.
+     */
+    public static TransferFunction silence(final float noise) {
+        final Random random = new Random();
+        return new TransferFunction() {
+            @Override
+            public short transfer(short left, short right) {
+                return clamp((random.nextFloat() - 0.5f) * 2 * noise);
+            }
+        };
+    }
+
+    private final Object mLock = new Object();
+    private final List<LoopbackOutput> mPlaying = new ArrayList<LoopbackOutput>();
+    private final int mInputSampleRate;
+    private final int mChunkSize;
+    private final float mSpeed;
+    private volatile TransferFunction mTransferFunction;
+
+    /**
+     * @param inputSampleRate  Sample rate of the recorded input, in Hertz.
+     * @param chunkSize        Preferred read size of the input, in samples.
+     * @param transferFunction The transfer function from the played to the recorded audio.
+     * @param speed            Multiple of real time at which the input is produced, or 0 to
+     *                         produce it without any pacing.
+     */
+    public LoopbackAudioBackend(int inputSampleRate, int chunkSize,
+                                TransferFunction transferFunction, float speed) {
+        mInputSampleRate = inputSampleRate;
+        mChunkSize = chunkSize;
+        mTransferFunction = transferFunction;
+        mSpeed = speed;
+    }
+
+    /**
+     * Replaces the transfer function, e.g. to simulate plugging in a different device or a
+     * temperature change. Takes effect from the next recorded sample.
+     */
+    public void setTransferFunction(TransferFunction transferFunction) {
+        mTransferFunction = transferFunction;
+    }
+
+    @Override
+    public AudioInput openInput(SignalProfile profile) {
+        return new LoopbackInput();
+    }
+
+    @Override
+    public AudioOutput openOutput(short[] samples, int sampleRate) {
+        return new LoopbackOutput(samples, sampleRate);
+    }
+
+    private static short clamp(double value) {
+        return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(value)));
+    }
+
+    /**
+     * Produces the next recorded sample from the sounds currently playing. Must be called while
+     * holding {@link #mLock}.
+     */
+    private short nextSample(TransferFunction transferFunction) {
+        int left = 0;
+        int right = 0;
+        for (int i = mPlaying.size() - 1; i >= 0; i--) {
+            LoopbackOutput output = mPlaying.get(i);
+            int frame = (int) output.mPosition * Sound.CHANNELS_COUNT;
+            left += Math.round(output.mSamples[frame] * output.mGain);
+            right += Math.round(output.mSamples[frame + 1] * output.mGain);
+            if (!output.advance(mInputSampleRate))
+                mPlaying.remove(i);
+        }
+        return transferFunction.transfer(clamp(left), clamp(right));
+    }
+
+    private class LoopbackInput implements AudioInput {
+
+        private volatile boolean mRecording;
+        private long mStartNanos;
+        private long mProduced;
+
+        @Override
+        public int getSampleRate() {
+            return mInputSampleRate;
+        }
+
+        @Override
+        public int getChunkSize() {
+            return mChunkSize;
+        }
+
+        @Override
+        public void start() {
+            mStartNanos = System.nanoTime();
+            mProduced = 0;
+            mRecording = true;
+        }
+
+        @Override
+        public int read(short[] buffer, int offset, int length) {
+            if (!mRecording)
+                return 0;
+
+            if (mSpeed > 0 && !waitForSamples(length))
+                return 0;
+
+            TransferFunction transferFunction = mTransferFunction;
+            synchronized (mLock) {
+                for (int i = offset; i < offset + length; i++)
+                    buffer[i] = nextSample(transferFunction);
+            }
+            mProduced += length;
+            return length;
+        }
+
+        @Override
+        public long getCaptureNanos(long framePosition) {
+            // Only paced inputs produce their samples at a known time
+            if (mSpeed <= 0)
+                return 0;
+            return mStartNanos + (long) (framePosition * 1e9 / (mInputSampleRate * mSpeed));
+        }
+
+        /**
+         * Sleeps until the requested samples would have been recorded at the configured speed.
+         *
+         * @return False, if the wait was interrupted.
+         */
+        private boolean waitForSamples(int length) {
+            long dueNanos = mStartNanos + (long) ((mProduced + length) * 1e9 / (mInputSampleRate
+                    * mSpeed));
+            long waitNanos = dueNanos - System.nanoTime();
+            if (waitNanos <= 0)
+                return true;
+
+            try {
+                Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        @Override
+        public void stop() {
+            mRecording = false;
+        }
+
+        @Override
+        public void release() {
+            mRecording = false;
+        }
+    }
+
+    private class LoopbackOutput implements AudioOutput {
+
+        private final short[] mSamples;
+        private final int mFrames;
+        private final int mSampleRate;
+        private double mPosition;
+        private int mLoopsLeft;
+        private boolean mPaused;
+        private volatile float mGain = 1;
+
+        LoopbackOutput(short[] samples, int sampleRate) {
+            mSamples = samples;
+            mFrames = samples.length / Sound.CHANNELS_COUNT;
+            mSampleRate = sampleRate;
+        }
+
+        @Override
+        public void prepare() {
+        }
+
+        @Override
+        public void setGain(float gain) {
+            mGain = gain;
+        }
+
+        @Override
+        public void play(int loopCount) {
+            synchronized (mLock) {
+                mPosition = 0;
+                mLoopsLeft = loopCount;
+                mPaused = false;
+                if (!mPlaying.contains(this))
+                    mPlaying.add(this);
+            }
+        }
+
+        @Override
+        public void pause() {
+            synchronized (mLock) {
+                if (mPlaying.remove(this))
+                    mPaused = true;
+            }
+        }
+
+        @Override
+        public void resume() {
+            synchronized (mLock) {
+                if (mPaused && !mPlaying.contains(this))
+                    mPlaying.add(this);
+                mPaused = false;
+            }
+        }
+
+        /**
+         * Advances the playback position by one recorded sample.
+         *
+         * @return False, if the playback has finished.
+         */
+        boolean advance(int inputSampleRate) {
+            mPosition += (double) mSampleRate / inputSampleRate;
+            if (mPosition < mFrames)
+                return true;
+            if (mLoopsLeft == 0)
+                return false;
+
+            if (mLoopsLeft > 0)
+                mLoopsLeft--;
+            mPosition -= mFrames;
+            return true;
+        }
+
+        @Override
+        public void stop() {
+            synchronized (mLock) {
+                mPlaying.remove(this);
+                mPaused = false;
+            }
+        }
+
+        @Override
+        public void release() {
+            stop();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.robocatapps.thermodosdk;
+
+import com.robocatapps.thermodosdk.model.AnalyzerResult;
+
+/**
+ * Keeps the recorded signal below clipping by adjusting the digital gain of the played signal
+ * from the analysis of each buffer. A buffer with clipped frames steps the gain down right away,
+ * even if a reading was salvaged from its clean frames; otherwise the gain is steered to bring the
+ * largest recorded sample into a target band. Both channels are scaled alike, so the ratio the
+ * temperature is measured from doesn't change.
+ * <p/>
+ * After a change, the next buffer is skipped, as it may have been recorded before the change was
+ * played. The fraction of discarded buffers is tracked.
+ * <p/>
+ * The gain is updated on the recording thread and may be reset or read on any other thread.
+ */
+public class OutputLevelController {
+
+    private static final float MIN_GAIN = 0.05f;
+    private static final float MAX_GAIN = 1f;
+
+    /**
+     * Band of the largest recorded sample, as a fraction of the full scale, in which the gain
+     * isn't changed.
+     */
+    private static final float LOWER_TARGET = 0.55f;
+    private static final float UPPER_TARGET = 0.8f;
+    private static final float TARGET = (LOWER_TARGET + UPPER_TARGET) / 2;
+
+    /**
+     * Gain factor applied for a buffer with clipped frames, when its actual level is unknown.
+     */
+    private static final float CLIPPING_STEP = 0.5f;
+
+    /**
+     * Largest gain increase applied for a single buffer, so noise doesn't make the gain jump.
+     */
+    private static final float MAX_INCREASE = 1.5f;
+
+    private float mGain = MAX_GAIN;
+    private boolean mSkipNext;
+
+    private volatile long mBufferCount;
+    private volatile long mDiscardedCount;
+    private volatile long mAdjustmentCount;
+
+    /**
+     * @return The gain to apply to the played signal.
+     */
+    public synchronized float getGain() {
+        return mGain;
+    }
+
+    /**
+     * Resets the gain to its maximum, e.g. for a newly connected device. Statistics are kept.
+     */
+    public synchronized void reset() {
+        mGain = MAX_GAIN;
+        mSkipNext = false;
+    }
+
+    /**
+     * Updates the gain from the analysis of a recorded buffer.
+     *
+     * @return True, if the gain has changed and has to be applied.
+     */
+    public synchronized boolean update(AnalyzerResult result) {
+        mBufferCount++;
+        if (result.error != null || result.numberOfFrames == 0)
+            mDiscardedCount++;
+
+        if (mSkipNext) {
+            mSkipNext = false;
+            return false;
+        }
+
+        float gain = mGain;
+        if (result.clipped || result.clippedFrameRatio > 0) {
+            gain *= CLIPPING_STEP;
+        } else if (result.maxSample > 0) {
+            float level = result.maxSample / Sound.MAX_AMPLITUDE;
+            if (level > UPPER_TARGET || (level < LOWER_TARGET && gain < MAX_GAIN))
+                gain *= Math.min(MAX_INCREASE, TARGET / level);
+        }
+        gain = Math.max(MIN_GAIN, Math.min(MAX_GAIN, gain));
+
+        if (gain == mGain)
+            return false;
+
+        mGain = gain;
+        mSkipNext = true;
+        mAdjustmentCount++;
+        return true;
+    }
+
+    /**
+     * @return The fraction of buffers, between 0 and 1, discarded because of clipping or because
+     * no frames were found.
+     */
+    public float getDiscardedFraction() {
+        long buffers = mBufferCount;
+        return buffers == 0 ? 0 : (float) mDiscardedCount / buffers;
+    }
+
+    /**
+     * @return The number of gain changes since creation or the last statistics reset.
+     */
+    public long getAdjustmentCount() {
+        return mAdjustmentCount;
+    }
+
+    /**
+     * Resets the discarded buffers and adjustment statistics.
+     */
+    public synchronized void resetStatistics() {
+        mBufferCount = 0;
+        mDiscardedCount = 0;
+        mAdjustmentCount = 0;
+    }
+}
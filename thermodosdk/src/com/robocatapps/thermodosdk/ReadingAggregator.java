@@ -0,0 +1,205 @@
+package com.robocatapps.thermodosdk;
+
+import java.util.Arrays;
+
+/**
+ * Keeps rollups of the readings at several resolutions, e.g. for live charts of the last minute,
+ * hour and day. Each resolution is a ring of fixed-size buckets holding the minimum, maximum,
+ * mean and count of the readings in it, so adding a reading and charting a resolution cost the
+ * same regardless of the length of the session.
+ * <p/>
+ * Readings older than a resolution's newest bucket are added to their bucket if it is still in the
+ * ring. Buckets without readings have a count of 0 and NaN values.
+ */
+public class ReadingAggregator {
+
+    /**
+     * Bucket durations of the default resolutions, in milliseconds: 1 s, 10 s, 1 min and 10 min.
+     */
+    private static final long[] DEFAULT_BUCKET_MILLIS = {1000, 10 * 1000, 60 * 1000, 600 * 1000};
+
+    /**
+     * Buckets of the default resolutions, covering 5 minutes, 1 hour, 1 day and 1 week.
+     */
+    private static final int[] DEFAULT_CAPACITIES = {300, 360, 1440, 1008};
+
+    /**
+     * A ring of buckets of a single resolution.
+     */
+    private static class Resolution {
+
+        final long bucketMillis;
+        final int capacity;
+
+        final float[] min;
+        final float[] max;
+        final double[] sum;
+        final int[] count;
+
+        // Index of the newest bucket since the epoch, or Long.MIN_VALUE if there is none
+        long newestBucket = Long.MIN_VALUE;
+
+        Resolution(long bucketMillis, int capacity) {
+            this.bucketMillis = bucketMillis;
+            this.capacity = capacity;
+            min = new float[capacity];
+            max = new float[capacity];
+            sum = new double[capacity];
+            count = new int[capacity];
+        }
+
+        void add(long timestamp, float temperature) {
+            long bucket = floorDiv(timestamp, bucketMillis);
+
+            if (bucket > newestBucket) {
+                // Clear the buckets skipped over, at most the whole ring
+                long first = newestBucket == Long.MIN_VALUE
+                        ? bucket : Math.max(newestBucket + 1, bucket - capacity + 1);
+                for (long b = first; b <= bucket; b++)
+                    clear(slot(b));
+                newestBucket = bucket;
+            } else if (bucket <= newestBucket - capacity) {
+                // Out of the ring
+                return;
+            }
+
+            int slot = slot(bucket);
+            if (count[slot] == 0) {
+                min[slot] = temperature;
+                max[slot] = temperature;
+            } else {
+                min[slot] = Math.min(min[slot], temperature);
+                max[slot] = Math.max(max[slot], temperature);
+            }
+            sum[slot] += temperature;
+            count[slot]++;
+        }
+
+        int slot(long bucket) {
+            int slot = (int) (bucket % capacity);
+            return slot < 0 ? slot + capacity : slot;
+        }
+
+        void clear(int slot) {
+            min[slot] = Float.NaN;
+            max[slot] = Float.NaN;
+            sum[slot] = 0;
+            count[slot] = 0;
+        }
+
+        void clear() {
+            Arrays.fill(min, Float.NaN);
+            Arrays.fill(max, Float.NaN);
+            Arrays.fill(sum, 0);
+            Arrays.fill(count, 0);
+            newestBucket = Long.MIN_VALUE;
+        }
+    }
+
+    private final Resolution[] mResolutions;
+
+    /**
+     * Creates an aggregator with the default resolutions: 1 s buckets for 5 minutes, 10 s buckets
+     * for an hour, 1 min buckets for a day and 10 min buckets for a week.
+     */
+    public ReadingAggregator() {
+        this(DEFAULT_BUCKET_MILLIS, DEFAULT_CAPACITIES);
+    }
+
+    /**
+     * @param bucketMillis Bucket duration of each resolution, in milliseconds.
+     * @param capacities   Number of buckets kept for each resolution.
+     */
+    public ReadingAggregator(long[] bucketMillis, int[] capacities) {
+        if (bucketMillis.length != capacities.length)
+            throw new IllegalArgumentException("Bucket durations and capacities differ in length");
+
+        mResolutions = new Resolution[bucketMillis.length];
+        for (int i = 0; i < mResolutions.length; i++) {
+            if (bucketMillis[i] <= 0 || capacities[i] <= 0)
+                throw new IllegalArgumentException(
+                        "Bucket durations and capacities must be positive");
+            mResolutions[i] = new Resolution(bucketMillis[i], capacities[i]);
+            mResolutions[i].clear();
+        }
+    }
+
+    /**
+     * Adds a reading to all resolutions. Readings with an unknown temperature are ignored.
+     *
+     * @param timestamp Time of the reading in milliseconds, e.g. {@link
+     *                  System#currentTimeMillis()}.
+     */
+    public synchronized void add(long timestamp, float temperature) {
+        if (Float.isNaN(temperature))
+            return;
+
+        for (Resolution resolution : mResolutions)
+            resolution.add(timestamp, temperature);
+    }
+
+    /**
+     * Removes all readings.
+     */
+    public synchronized void clear() {
+        for (Resolution resolution : mResolutions)
+            resolution.clear();
+    }
+
+    public int getResolutionCount() {
+        return mResolutions.length;
+    }
+
+    public long getBucketMillis(int resolution) {
+        return mResolutions[resolution].bucketMillis;
+    }
+
+    public int getCapacity(int resolution) {
+        return mResolutions[resolution].capacity;
+    }
+
+    /**
+     * Copies the newest buckets of a resolution into the arrays, oldest first and ending with the
+     * bucket of the newest reading. As many buckets are copied as fit into the shortest of the
+     * arrays, up to the capacity of the resolution. Arrays which aren't needed can be {@code
+     * null}.
+     *
+     * @param outStartTimes Start time of each bucket, in milliseconds.
+     * @return The number of copied buckets, 0 if there are no readings yet.
+     */
+    public synchronized int snapshot(int resolution, long[] outStartTimes, float[] outMin,
+                                     float[] outMax, float[] outMean, int[] outCounts) {
+        Resolution r = mResolutions[resolution];
+        if (r.newestBucket == Long.MIN_VALUE)
+            return 0;
+
+        int n = r.capacity;
+        n = outStartTimes == null ? n : Math.min(n, outStartTimes.length);
+        n = outMin == null ? n : Math.min(n, outMin.length);
+        n = outMax == null ? n : Math.min(n, outMax.length);
+        n = outMean == null ? n : Math.min(n, outMean.length);
+        n = outCounts == null ? n : Math.min(n, outCounts.length);
+
+        long firstBucket = r.newestBucket - n + 1;
+        for (int i = 0; i < n; i++) {
+            long bucket = firstBucket + i;
+            int slot = r.slot(bucket);
+            if (outStartTimes != null)
+                outStartTimes[i] = bucket * r.bucketMillis;
+            if (outMin != null)
+                outMin[i] = r.min[slot];
+            if (outMax != null)
+                outMax[i] = r.max[slot];
+            if (outMean != null)
+                outMean[i] = r.count[slot] == 0 ? Float.NaN : (float) (r.sum[slot] / r.count[slot]);
+            if (outCounts != null)
+                outCounts[i] = r.count[slot];
+        }
+        return n;
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        return (x % y != 0 && (x < 0) != (y < 0)) ? q - 1 : q;
+    }
+}
@@ -0,0 +1,704 @@
+package com.robocatapps.thermodosdk;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An append-only log of temperature readings, kept compact for sessions of several days.
+ * <p/>
+ * Readings are written to segment files of about a megabyte. Timestamps are stored as the change
+ * of the interval between readings and temperatures, quantized to 0.01 degrees, as the change
+ * from the previous reading. For readings at a steady rate most records take a single byte, so a
+ * week of readings at 10 Hz takes a few megabytes. Every {@value #KEY_INTERVAL} records a key
+ * record with absolute values is written and added to a sparse index, from which range queries
+ * start decoding.
+ * <p/>
+ * {@link #append(long, float)} doesn't block: readings are collected in memory and written by a
+ * background thread in groups, at most a second apart, with a single write and sync per group.
+ * Queries see the written readings; {@link #flush()} writes the collected ones right away. On
+ * opening, a record torn by a crash at the end of the log is cut off.
+ * <p/>
+ * Timestamps are kept non-decreasing: one earlier than the last appended, e.g. after the wall
+ * clock was set back, is clamped to it, so queries and segment names stay in order.
+ */
+public class ReadingLog {
+
+    private static Logger sLog = Logger.getLogger(ReadingLog.class.getName());
+
+    private static final String SEGMENT_PREFIX = "readings-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+
+    private static final long DEFAULT_SEGMENT_BYTES = 1 << 20;
+
+    // Quantization of the temperatures, steps per degree
+    private static final float TEMPERATURE_SCALE = 100f;
+
+    /**
+     * Records between key records, which bounds the decoding done before the start of a range.
+     */
+    private static final int KEY_INTERVAL = 256;
+
+    private static final long COMMIT_INTERVAL_MILLIS = 1000;
+
+    /**
+     * Readings collected at most before they are written. Further readings are dropped until the
+     * writer catches up.
+     */
+    private static final int MAX_PENDING = 4096;
+
+    // Record tags. Bytes below TAG_DELTA are packed records, holding the zigzag encoded change of
+    // the interval in bits 4 to 6 and of the temperature in bits 0 to 3.
+    private static final int TAG_DELTA = 0x80; // Followed by the two changes as zigzag varints
+    private static final int TAG_KEY = 0x81; // Followed by the long timestamp and int temperature
+
+    private static final int MAX_RECORD_BYTES = 1 + 10 + 5;
+    private static final int KEY_RECORD_BYTES = 1 + 8 + 4;
+    private static final int INDEX_ENTRY_BYTES = 8 + 8;
+
+    /**
+     * A segment file and the sparse index of its key records.
+     */
+    private static class Segment {
+
+        final File file;
+        final File indexFile;
+        final long firstTimestamp;
+
+        // Length of the data written and synced, visible to queries
+        volatile long committedLength;
+
+        // Timestamps and offsets of the key records; the arrays are replaced when growing, before
+        // the count is updated
+        long[] keyTimestamps = new long[16];
+        long[] keyOffsets = new long[16];
+        volatile int keyCount;
+
+        MappedByteBuffer mapped;
+        long mappedLength;
+
+        Segment(File directory, long firstTimestamp) {
+            this.firstTimestamp = firstTimestamp;
+            file = new File(directory, SEGMENT_PREFIX + firstTimestamp + SEGMENT_SUFFIX);
+            indexFile = new File(directory, SEGMENT_PREFIX + firstTimestamp + INDEX_SUFFIX);
+        }
+
+        void addKey(long timestamp, long offset) {
+            int count = keyCount;
+            if (count == keyTimestamps.length) {
+                keyTimestamps = Arrays.copyOf(keyTimestamps, count * 2);
+                keyOffsets = Arrays.copyOf(keyOffsets, count * 2);
+            }
+            keyTimestamps[count] = timestamp;
+            keyOffsets[count] = offset;
+            keyCount = count + 1;
+        }
+
+        /**
+         * @return A buffer over the committed data, positioned at its start.
+         */
+        synchronized ByteBuffer map() throws IOException {
+            long length = committedLength;
+            if (mapped == null || mappedLength != length) {
+                RandomAccessFile file = new RandomAccessFile(this.file, "r");
+                try {
+                    mapped = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+                    mappedLength = length;
+                } finally {
+                    file.close();
+                }
+            }
+            return mapped.duplicate();
+        }
+    }
+
+    /**
+     * Decodes records, keeping the state the deltas are applied to.
+     */
+    private static class Cursor {
+
+        long timestamp;
+        long interval;
+        int temperature;
+        boolean key;
+
+        /**
+         * Decodes the next record. If the record is incomplete or malformed, the buffer is left at
+         * its start.
+         *
+         * @return True, if a record was decoded.
+         */
+        boolean next(ByteBuffer buffer) {
+            int start = buffer.position();
+            if (!buffer.hasRemaining())
+                return false;
+
+            int tag = buffer.get() & 0xFF;
+            key = false;
+            if (tag < TAG_DELTA) {
+                interval += unzigzag((tag >> 4) & 0x07);
+                temperature += unzigzag(tag & 0x0F);
+            } else if (tag == TAG_DELTA) {
+                long intervalChange = readVarint(buffer);
+                long temperatureChange = intervalChange < 0 ? -1 : readVarint(buffer);
+                if (temperatureChange < 0) {
+                    buffer.position(start);
+                    return false;
+                }
+                interval += unzigzag(intervalChange);
+                temperature += (int) unzigzag(temperatureChange);
+            } else if (tag == TAG_KEY && buffer.remaining() >= KEY_RECORD_BYTES - 1) {
+                timestamp = buffer.getLong();
+                temperature = buffer.getInt();
+                interval = 0;
+                key = true;
+                return true;
+            } else {
+                buffer.position(start);
+                return false;
+            }
+            timestamp += interval;
+            return true;
+        }
+    }
+
+    private final File mDirectory;
+    private final long mSegmentBytes;
+
+    private final Object mSegmentsLock = new Object();
+    private final List<Segment> mSegments = new ArrayList<Segment>();
+
+    // Collected readings, swapped with the spare arrays by the writer
+    private final Object mLock = new Object();
+    private long[] mPendingTimestamps = new long[MAX_PENDING];
+    private float[] mPendingTemperatures = new float[MAX_PENDING];
+    private int mPendingCount;
+    private long[] mSpareTimestamps = new long[MAX_PENDING];
+    private float[] mSpareTemperatures = new float[MAX_PENDING];
+    private long mAppendedCount;
+    private long mLastTimestamp = Long.MIN_VALUE;
+    private long mCommittedCount;
+    private boolean mFlushRequested;
+    private boolean mClosed;
+    private boolean mWriterStopped;
+    private volatile long mDroppedCount;
+
+    // Writer state, only used on the writer thread after opening
+    private Segment mSegment;
+    private FileChannel mChannel;
+    private FileChannel mIndexChannel;
+    private final Cursor mWriterState = new Cursor();
+    private int mRecordsSinceKey;
+    private final ByteBuffer mWriteBuffer =
+            ByteBuffer.allocate(MAX_PENDING * (MAX_RECORD_BYTES + KEY_RECORD_BYTES));
+    private final ByteBuffer mIndexBuffer = ByteBuffer.allocate(MAX_PENDING * INDEX_ENTRY_BYTES);
+
+    private final WriterThread mWriterThread;
+
+    public ReadingLog(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_BYTES);
+    }
+
+    /**
+     * Opens the log in the directory, creating it if needed.
+     *
+     * @param segmentBytes Size from which a new segment file is started.
+     */
+    public ReadingLog(File directory, long segmentBytes) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Cannot create " + directory);
+
+        mDirectory = directory;
+        mSegmentBytes = segmentBytes;
+        openSegments();
+        if (!mSegments.isEmpty()) {
+            mLastTimestamp = Math.max(mWriterState.timestamp,
+                    mSegments.get(mSegments.size() - 1).firstTimestamp);
+        }
+
+        mWriterThread = new WriterThread();
+        mWriterThread.setName("ReadingLog");
+        mWriterThread.setDaemon(true);
+        mWriterThread.start();
+    }
+
+    private void openSegments() throws IOException {
+        File[] files = mDirectory.listFiles();
+        long[] firstTimestamps = new long[files == null ? 0 : files.length];
+        int count = 0;
+        for (int i = 0; i < firstTimestamps.length; i++) {
+            String name = files[i].getName();
+            if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX))
+                continue;
+            try {
+                firstTimestamps[count] = Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                        name.length() - SEGMENT_SUFFIX.length()));
+                count++;
+            } catch (NumberFormatException e) {
+                // Not a segment
+            }
+        }
+        Arrays.sort(firstTimestamps, 0, count);
+
+        for (int i = 0; i < count; i++) {
+            Segment segment = new Segment(mDirectory, firstTimestamps[i]);
+            segment.committedLength = segment.file.length();
+            readIndex(segment);
+            mSegments.add(segment);
+        }
+
+        if (count > 0)
+            recover(mSegments.get(count - 1));
+    }
+
+    private static void readIndex(Segment segment) throws IOException {
+        if (!segment.indexFile.exists())
+            return;
+
+        FileInputStream in = new FileInputStream(segment.indexFile);
+        try {
+            FileChannel channel = in.getChannel();
+            // A torn entry at the end is ignored
+            long entries = channel.size() / INDEX_ENTRY_BYTES;
+            ByteBuffer buffer = ByteBuffer.allocate((int) (entries * INDEX_ENTRY_BYTES));
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // Read all of it
+            }
+            buffer.flip();
+            while (buffer.remaining() >= INDEX_ENTRY_BYTES) {
+                long timestamp = buffer.getLong();
+                long offset = buffer.getLong();
+                if (offset >= segment.committedLength)
+                    break;
+                segment.addKey(timestamp, offset);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reopens the last segment for appending. It is decoded from its last indexed key record, so
+     * a torn record at the end can be cut off, key records missing from the index added and the
+     * writer state restored.
+     */
+    private void recover(Segment segment) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segment.file, "rw");
+        FileChannel channel = file.getChannel();
+
+        int keyCount = segment.keyCount;
+        long start = keyCount == 0 ? 0 : segment.keyOffsets[keyCount - 1];
+        ByteBuffer buffer = ByteBuffer.allocate((int) (channel.size() - start));
+        channel.position(start);
+        while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+            // Read all of it
+        }
+        buffer.flip();
+
+        FileChannel indexChannel = new FileOutputStream(segment.indexFile, true).getChannel();
+        indexChannel.truncate((long) keyCount * INDEX_ENTRY_BYTES);
+        ByteBuffer indexEntry = ByteBuffer.allocate(INDEX_ENTRY_BYTES);
+
+        Cursor cursor = mWriterState;
+        int records = 0;
+        while (true) {
+            long offset = start + buffer.position();
+            if (!cursor.next(buffer))
+                break;
+            if (cursor.key) {
+                records = 0;
+                if (offset != start || keyCount == 0) {
+                    segment.addKey(cursor.timestamp, offset);
+                    indexEntry.clear();
+                    indexEntry.putLong(cursor.timestamp).putLong(offset).flip();
+                    indexChannel.write(indexEntry);
+                }
+            }
+            records++;
+        }
+
+        long length = start + buffer.position();
+        if (length < channel.size()) {
+            sLog.warning("Cutting off " + (channel.size() - length) + " bytes from "
+                    + segment.file);
+            channel.truncate(length);
+        }
+        channel.position(length);
+        segment.committedLength = length;
+
+        if (segment.keyCount == 0) {
+            // Nothing usable was written, the segment is started over
+            channel.truncate(0);
+            segment.committedLength = 0;
+            records = 0;
+        }
+
+        mSegment = segment;
+        mChannel = channel;
+        mIndexChannel = indexChannel;
+        mRecordsSinceKey = segment.keyCount == 0 ? KEY_INTERVAL : records;
+    }
+
+    /**
+     * Adds a reading to the log. Doesn't block, so it can be called from the recording thread.
+     * Readings with an unknown temperature, or appended after closing the log, are ignored. A
+     * timestamp earlier than the last appended one is clamped to it.
+     */
+    public void append(long timestamp, float temperature) {
+        if (Float.isNaN(temperature))
+            return;
+
+        synchronized (mLock) {
+            if (mClosed)
+                return;
+            if (mPendingCount == MAX_PENDING) {
+                mDroppedCount++;
+                return;
+            }
+            mLastTimestamp = Math.max(mLastTimestamp, timestamp);
+            mPendingTimestamps[mPendingCount] = mLastTimestamp;
+            mPendingTemperatures[mPendingCount] = temperature;
+            mPendingCount++;
+            mAppendedCount++;
+            if (mPendingCount == MAX_PENDING / 2)
+                mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Writes the collected readings, blocking until they are synced.
+     */
+    public void flush() throws InterruptedException {
+        synchronized (mLock) {
+            long target = mAppendedCount;
+            mFlushRequested = true;
+            mLock.notifyAll();
+            while (mCommittedCount < target && !mWriterStopped)
+                mLock.wait();
+        }
+    }
+
+    /**
+     * Writes the collected readings and closes the log.
+     */
+    public void close() throws InterruptedException {
+        synchronized (mLock) {
+            mClosed = true;
+            mLock.notifyAll();
+        }
+        mWriterThread.join();
+    }
+
+    /**
+     * Copies the readings with timestamps in the range [fromTimestamp, toTimestamp] into the
+     * arrays, oldest first. Only written readings are found, see {@link #flush()}.
+     *
+     * @return The number of copied readings. If it is the length of the arrays, there may be more
+     * readings in the range.
+     */
+    public int query(long fromTimestamp, long toTimestamp, long[] outTimestamps,
+                     float[] outTemperatures) throws IOException {
+        Segment[] segments;
+        synchronized (mSegmentsLock) {
+            segments = mSegments.toArray(new Segment[mSegments.size()]);
+        }
+
+        int capacity = Math.min(outTimestamps.length, outTemperatures.length);
+        int count = 0;
+        Cursor cursor = new Cursor();
+        for (int i = 0; i < segments.length && count < capacity; i++) {
+            Segment segment = segments[i];
+            if (segment.firstTimestamp > toTimestamp)
+                break;
+            // Readings at the first timestamp of the next segment may end this one as well
+            if (i + 1 < segments.length && segments[i + 1].firstTimestamp < fromTimestamp)
+                continue;
+
+            int keyCount = segment.keyCount;
+            if (keyCount == 0 || segment.committedLength == 0)
+                continue;
+
+            ByteBuffer buffer = segment.map();
+            buffer.position((int) segment.keyOffsets[floorKey(segment, keyCount, fromTimestamp)]);
+            while (count < capacity && cursor.next(buffer)) {
+                if (cursor.timestamp > toTimestamp)
+                    break;
+                if (cursor.timestamp < fromTimestamp)
+                    continue;
+                outTimestamps[count] = cursor.timestamp;
+                outTemperatures[count] = cursor.temperature / TEMPERATURE_SCALE;
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return The index of the last key record before the timestamp, or 0 if there is none. Records
+     * at the timestamp may precede a key record at it.
+     */
+    private static int floorKey(Segment segment, int keyCount, long timestamp) {
+        long[] timestamps = segment.keyTimestamps;
+        int low = 0;
+        int high = keyCount - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (timestamps[middle] < timestamp)
+                low = middle;
+            else
+                high = middle - 1;
+        }
+        return low;
+    }
+
+    /**
+     * Deletes the segments holding only readings before the timestamp.
+     */
+    public void deleteBefore(long timestamp) {
+        List<Segment> deleted = new ArrayList<Segment>();
+        synchronized (mSegmentsLock) {
+            // The last segment is kept, as it is being written to
+            while (mSegments.size() > 1 && mSegments.get(1).firstTimestamp < timestamp)
+                deleted.add(mSegments.remove(0));
+        }
+        for (Segment segment : deleted) {
+            if (!segment.file.delete() || !segment.indexFile.delete())
+                sLog.warning("Cannot delete " + segment.file);
+        }
+    }
+
+    /**
+     * @return The size of the segment files written, in bytes.
+     */
+    public long getSize() {
+        long size = 0;
+        synchronized (mSegmentsLock) {
+            for (Segment segment : mSegments)
+                size += segment.committedLength;
+        }
+        return size;
+    }
+
+    /**
+     * @return The number of readings dropped because the writer didn't keep up.
+     */
+    public long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * Writes the collected readings in groups, until the log is closed.
+     */
+    private class WriterThread extends Thread {
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    int count;
+                    long[] timestamps;
+                    float[] temperatures;
+                    boolean closed;
+                    synchronized (mLock) {
+                        // Wait for the commit interval to pass, a flush or half the capacity
+                        long deadline = 0;
+                        while (!mClosed && !mFlushRequested && mPendingCount < MAX_PENDING / 2) {
+                            if (mPendingCount == 0) {
+                                mLock.wait();
+                                continue;
+                            }
+                            long now = System.currentTimeMillis();
+                            if (deadline == 0)
+                                deadline = now + COMMIT_INTERVAL_MILLIS;
+                            if (now >= deadline)
+                                break;
+                            mLock.wait(deadline - now);
+                        }
+
+                        count = mPendingCount;
+                        timestamps = mPendingTimestamps;
+                        temperatures = mPendingTemperatures;
+                        mPendingTimestamps = mSpareTimestamps;
+                        mPendingTemperatures = mSpareTemperatures;
+                        mSpareTimestamps = timestamps;
+                        mSpareTemperatures = temperatures;
+                        mPendingCount = 0;
+                        mFlushRequested = false;
+                        closed = mClosed;
+                    }
+
+                    if (count > 0)
+                        commit(timestamps, temperatures, count);
+
+                    synchronized (mLock) {
+                        mCommittedCount += count;
+                        mLock.notifyAll();
+                    }
+                    if (closed)
+                        break;
+                }
+            } catch (InterruptedException e) {
+                // Closing
+            } catch (IOException e) {
+                sLog.log(Level.SEVERE, "Cannot write the reading log", e);
+            } finally {
+                closeChannels();
+                synchronized (mLock) {
+                    mClosed = true;
+                    mWriterStopped = true;
+                    mLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Encodes and writes a group of readings with a single write and sync.
+     */
+    private void commit(long[] timestamps, float[] temperatures, int count) throws IOException {
+        if (mSegment == null)
+            startSegment(timestamps[0]);
+
+        long offset = mSegment.committedLength;
+        ByteBuffer buffer = mWriteBuffer;
+        ByteBuffer index = mIndexBuffer;
+        buffer.clear();
+        index.clear();
+
+        Cursor state = mWriterState;
+        long[] keyTimestamps = new long[count / KEY_INTERVAL + 1];
+        long[] keyOffsets = new long[keyTimestamps.length];
+        int keys = 0;
+
+        for (int i = 0; i < count; i++) {
+            long timestamp = timestamps[i];
+            int temperature = quantize(temperatures[i]);
+
+            long interval = timestamp - state.timestamp;
+            long intervalChange = interval - state.interval;
+            long temperatureChange = (long) temperature - state.temperature;
+
+            if (mRecordsSinceKey >= KEY_INTERVAL) {
+                keyTimestamps[keys] = timestamp;
+                keyOffsets[keys] = offset + buffer.position();
+                keys++;
+                index.putLong(timestamp).putLong(offset + buffer.position());
+
+                buffer.put((byte) TAG_KEY).putLong(timestamp).putInt(temperature);
+                state.interval = 0;
+                mRecordsSinceKey = 0;
+            } else if (intervalChange >= -4 && intervalChange <= 3
+                    && temperatureChange >= -8 && temperatureChange <= 7) {
+                buffer.put((byte) ((zigzag(intervalChange) << 4) | zigzag(temperatureChange)));
+                state.interval = interval;
+            } else {
+                buffer.put((byte) TAG_DELTA);
+                writeVarint(buffer, zigzag(intervalChange));
+                writeVarint(buffer, zigzag(temperatureChange));
+                state.interval = interval;
+            }
+            state.timestamp = timestamp;
+            state.temperature = temperature;
+            mRecordsSinceKey++;
+        }
+
+        buffer.flip();
+        while (buffer.hasRemaining())
+            mChannel.write(buffer);
+        mChannel.force(false);
+
+        // The index isn't synced, it is rebuilt from the data if it falls behind
+        index.flip();
+        while (index.hasRemaining())
+            mIndexChannel.write(index);
+
+        // The length is published first, so a query seeing the new keys maps all the data they
+        // point into
+        mSegment.committedLength = offset + buffer.limit();
+        for (int i = 0; i < keys; i++)
+            mSegment.addKey(keyTimestamps[i], keyOffsets[i]);
+
+        sLog.fine("Committed " + count + " readings in " + buffer.limit() + " bytes");
+
+        if (mSegment.committedLength >= mSegmentBytes) {
+            closeChannels();
+            mSegment = null;
+        }
+    }
+
+    private void startSegment(long firstTimestamp) throws IOException {
+        // A name is only taken if a whole segment was appended at one timestamp. The existing
+        // segment is kept and the new one named a little later.
+        Segment segment = new Segment(mDirectory, firstTimestamp);
+        while (segment.file.exists())
+            segment = new Segment(mDirectory, segment.firstTimestamp + 1);
+        mChannel = new RandomAccessFile(segment.file, "rw").getChannel();
+        mIndexChannel = new FileOutputStream(segment.indexFile, false).getChannel();
+        mRecordsSinceKey = KEY_INTERVAL;
+        mSegment = segment;
+        synchronized (mSegmentsLock) {
+            mSegments.add(segment);
+        }
+    }
+
+    private void closeChannels() {
+        try {
+            if (mChannel != null)
+                mChannel.close();
+            if (mIndexChannel != null)
+                mIndexChannel.close();
+        } catch (IOException e) {
+            sLog.log(Level.WARNING, "Cannot close the reading log", e);
+        }
+        mChannel = null;
+        mIndexChannel = null;
+    }
+
+    private static int quantize(float temperature) {
+        float scaled = Math.round(temperature * TEMPERATURE_SCALE);
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, scaled));
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarint(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * @return The value, or -1 if the varint is incomplete or too long.
+     */
+    private static long readVarint(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!buffer.hasRemaining())
+                return -1;
+            int b = buffer.get() & 0xFF;
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,329 @@
+package com.robocatapps.thermodosdk;
+
+import com.robocatapps.thermodosdk.model.AnalyzerResult;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs secondary analyzers in shadow mode next to the primary one, e.g. to compare a new analyzer
+ * with the one in use on real devices before rolling it out. The primary analyzer's results are
+ * the ones reported, while copies of the same buffers are analyzed by the shadow analyzers on a
+ * low priority thread, and their disagreements with the primary results and their timings are
+ * aggregated into a {@link Report} for each of them.
+ * <p/>
+ * At most the queue capacity of buffers wait for the shadow analyzers. The copies are taken from a
+ * fixed pool, and a buffer is dropped when the pool is exhausted, so the recording is never
+ * delayed and nothing is allocated per buffer.
+ * <p/>
+ * The shadow analyzers must analyze the probe signal of the primary one.
+ */
+public class ShadowAnalyzers {
+
+    private static final int DEFAULT_QUEUE_CAPACITY = 2;
+
+    /**
+     * Default temperature difference from the primary result above which a shadow result
+     * disagrees, in degrees Celsius.
+     */
+    private static final float DEFAULT_MAX_DIFFERENCE = 0.5f;
+
+    /**
+     * Aggregated comparison of a shadow analyzer with the primary analyzer.
+     */
+    public static class Report {
+
+        public String name;
+
+        // Buffers analyzed, and the ones the analyzer failed on with an exception
+        public int buffers;
+        public int errors;
+
+        // Buffers both analyzers measured a temperature for, and the ones only either measured
+        public int bothValid;
+        public int onlyPrimaryValid;
+        public int onlyShadowValid;
+
+        // Buffers measured by both whose temperatures differ by more than the maximum difference
+        public int disagreements;
+        // Temperature of the shadow minus the primary one, over the buffers measured by both
+        public double meanDifference;
+        public double meanAbsoluteDifference;
+        public double maxAbsoluteDifference;
+
+        public double meanPrimaryMicros;
+        public double meanShadowMicros;
+        public double maxShadowMicros;
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d buffers, %d errors, valid both %d / primary only %d / "
+                            + "shadow only %d, %d disagreements, difference mean %.3f abs %.3f "
+                            + "max %.3f, primary %.0f us, shadow %.0f us (max %.0f us)", name,
+                    buffers, errors, bothValid, onlyPrimaryValid, onlyShadowValid,
+                    disagreements, meanDifference, meanAbsoluteDifference,
+                    maxAbsoluteDifference, meanPrimaryMicros, meanShadowMicros, maxShadowMicros);
+        }
+    }
+
+    /**
+     * A shadow analyzer and its running totals. Only used on the shadow thread, apart from the
+     * snapshots taken under the lock.
+     */
+    private static class Shadow {
+
+        final String name;
+        final AbstractAnalyzer analyzer;
+        int sampleRate;
+
+        int buffers;
+        int errors;
+        int bothValid;
+        int onlyPrimaryValid;
+        int onlyShadowValid;
+        int disagreements;
+        double differenceSum;
+        double absoluteDifferenceSum;
+        double maxAbsoluteDifference;
+        long primaryNanosSum;
+        long shadowNanosSum;
+        long maxShadowNanos;
+
+        Shadow(String name, AbstractAnalyzer analyzer) {
+            this.name = name;
+            this.analyzer = analyzer;
+        }
+    }
+
+    /**
+     * A copy of a buffer with the primary result, queued for the shadow analyzers.
+     */
+    private class Job implements Runnable {
+
+        short[] data = new short[0];
+        int sampleRate;
+        boolean primaryValid;
+        float primaryTemperature;
+        long primaryNanos;
+
+        @Override
+        public void run() {
+            try {
+                analyze(this);
+            } finally {
+                mFreeJobs.offer(this);
+            }
+        }
+    }
+
+    private final List<Shadow> mShadows = new ArrayList<Shadow>();
+    private final BlockingQueue<Job> mFreeJobs;
+    private final ThreadPoolExecutor mExecutor;
+    private volatile float mMaxDifference = DEFAULT_MAX_DIFFERENCE;
+    private volatile int mSampleRate;
+    private volatile int mDropped;
+    private volatile int mSubmitted;
+
+    public ShadowAnalyzers() {
+        this(DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param queueCapacity Maximum number of buffers waiting for the shadow analyzers.
+     */
+    public ShadowAnalyzers(int queueCapacity) {
+        if (queueCapacity <= 0)
+            throw new IllegalArgumentException("Queue capacity must be positive");
+
+        // One more buffer than queued is being analyzed
+        mFreeJobs = new ArrayBlockingQueue<Job>(queueCapacity + 1);
+        for (int i = 0; i <= queueCapacity; i++)
+            mFreeJobs.offer(new Job());
+
+        mExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ThermodoShadow");
+                thread.setPriority(Thread.MIN_PRIORITY);
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+                // A job returned to the pool can be submitted again before the shadow thread
+                // took the next one off the queue, and jobs are rejected after a shutdown
+                mDropped++;
+                mFreeJobs.offer((Job) runnable);
+            }
+        });
+    }
+
+    /**
+     * Adds a shadow analyzer. It is only used on the shadow thread afterwards.
+     *
+     * @param name Name of the analyzer in the reports.
+     */
+    public synchronized void addAnalyzer(String name, AbstractAnalyzer analyzer) {
+        mShadows.add(new Shadow(name, analyzer));
+    }
+
+    /**
+     * Sets the temperature difference from the primary result above which a shadow result is
+     * counted as a disagreement, in degrees Celsius.
+     */
+    public void setMaxDifference(float maxDifference) {
+        mMaxDifference = maxDifference;
+    }
+
+    /**
+     * Sets the rate of the following buffers, which is passed on to the shadow analyzers along
+     * with them.
+     */
+    public void setSampleRate(int sampleRate) {
+        mSampleRate = sampleRate;
+    }
+
+    /**
+     * Queues a copy of a buffer analyzed by the primary analyzer for the shadow analyzers, or
+     * drops it if the queue is full. Called on the recording thread.
+     *
+     * @param primaryNanos The time the primary analysis took, in nanoseconds.
+     * @return True, if the buffer was queued.
+     */
+    public boolean submit(short[] data, AnalyzerResult primary, long primaryNanos) {
+        mSubmitted++;
+        Job job = mFreeJobs.poll();
+        if (job == null) {
+            mDropped++;
+            return false;
+        }
+
+        // Allocated once for each pooled copy, as long as the buffer size doesn't change
+        if (job.data.length != data.length)
+            job.data = new short[data.length];
+        System.arraycopy(data, 0, job.data, 0, data.length);
+        job.sampleRate = mSampleRate;
+        job.primaryValid = isValid(primary);
+        job.primaryTemperature = primary.temperature;
+        job.primaryNanos = primaryNanos;
+        mExecutor.execute(job);
+        return true;
+    }
+
+    /**
+     * @return The number of buffers submitted.
+     */
+    public int getSubmittedCount() {
+        return mSubmitted;
+    }
+
+    /**
+     * @return The number of submitted buffers dropped because the queue was full.
+     */
+    public int getDroppedCount() {
+        return mDropped;
+    }
+
+    /**
+     * @return A snapshot of the comparison of each shadow analyzer with the primary one, in the
+     * order they were added.
+     */
+    public synchronized List<Report> getReport() {
+        List<Report> reports = new ArrayList<Report>(mShadows.size());
+        for (Shadow shadow : mShadows) {
+            Report report = new Report();
+            report.name = shadow.name;
+            report.buffers = shadow.buffers;
+            report.errors = shadow.errors;
+            report.bothValid = shadow.bothValid;
+            report.onlyPrimaryValid = shadow.onlyPrimaryValid;
+            report.onlyShadowValid = shadow.onlyShadowValid;
+            report.disagreements = shadow.disagreements;
+            if (shadow.bothValid > 0) {
+                report.meanDifference = shadow.differenceSum / shadow.bothValid;
+                report.meanAbsoluteDifference = shadow.absoluteDifferenceSum / shadow.bothValid;
+            }
+            report.maxAbsoluteDifference = shadow.maxAbsoluteDifference;
+            if (shadow.buffers > 0) {
+                report.meanPrimaryMicros = shadow.primaryNanosSum / 1000.0 / shadow.buffers;
+                report.meanShadowMicros = shadow.shadowNanosSum / 1000.0 / shadow.buffers;
+            }
+            report.maxShadowMicros = shadow.maxShadowNanos / 1000.0;
+            reports.add(report);
+        }
+        return reports;
+    }
+
+    /**
+     * Stops the shadow thread. Queued buffers are dropped.
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    private void analyze(Job job) {
+        Shadow[] shadows;
+        synchronized (this) {
+            shadows = mShadows.toArray(new Shadow[mShadows.size()]);
+        }
+
+        for (Shadow shadow : shadows) {
+            if (job.sampleRate > 0 && job.sampleRate != shadow.sampleRate) {
+                shadow.analyzer.setSampleRate(job.sampleRate);
+                shadow.sampleRate = job.sampleRate;
+            }
+
+            long startNanos = System.nanoTime();
+            AnalyzerResult result;
+            try {
+                result = shadow.analyzer.resultFromAnalyzingData(job.data);
+            } catch (RuntimeException e) {
+                result = null;
+            }
+            long nanos = System.nanoTime() - startNanos;
+
+            synchronized (this) {
+                aggregate(shadow, job, result, nanos);
+            }
+        }
+    }
+
+    private void aggregate(Shadow shadow, Job job, AnalyzerResult result, long nanos) {
+        shadow.buffers++;
+        shadow.primaryNanosSum += job.primaryNanos;
+        shadow.shadowNanosSum += nanos;
+        shadow.maxShadowNanos = Math.max(shadow.maxShadowNanos, nanos);
+        if (result == null) {
+            shadow.errors++;
+            return;
+        }
+
+        boolean valid = isValid(result);
+        if (job.primaryValid && valid) {
+            shadow.bothValid++;
+            double difference = result.temperature - job.primaryTemperature;
+            shadow.differenceSum += difference;
+            shadow.absoluteDifferenceSum += Math.abs(difference);
+            shadow.maxAbsoluteDifference = Math.max(shadow.maxAbsoluteDifference,
+                    Math.abs(difference));
+            if (Math.abs(difference) > mMaxDifference)
+                shadow.disagreements++;
+        } else if (job.primaryValid) {
+            shadow.onlyPrimaryValid++;
+        } else if (valid) {
+            shadow.onlyShadowValid++;
+        }
+    }
+
+    private static boolean isValid(AnalyzerResult result) {
+        return result.numberOfFrames > 0 && !Float.isNaN(result.temperature);
+    }
+}
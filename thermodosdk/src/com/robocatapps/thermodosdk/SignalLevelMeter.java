@@ -0,0 +1,95 @@
+package com.robocatapps.thermodosdk;
+
+import java.util.Arrays;
+
+/**
+ * Measures the level of a window of recorded audio in a single pass, without modifying or
+ * copying the data. Samples can be added in any number of chunks.
+ * <p/>
+ * The robust maximum, the magnitude below the loudest fraction of samples, is read from a
+ * histogram of sample magnitudes instead of sorting. The energy at one frequency is tracked with
+ * the Goertzel algorithm, so a tone can be told apart from broadband noise of the same level.
+ * NOTE: This class is not thread-safe.
+ */
+public class SignalLevelMeter {
+
+    private final int[] mHistogram = new int[Short.MAX_VALUE + 2];
+    private double mCoefficient;
+    private double mState1;
+    private double mState2;
+    private double mSumOfSquares;
+    private int mCount;
+
+    /**
+     * Clears the measured samples and sets the frequency of the tracked tone.
+     *
+     * @param frequency  The tone frequency, in Hertz.
+     * @param sampleRate The sample rate of the measured audio, in Hertz.
+     */
+    public void reset(int frequency, int sampleRate) {
+        Arrays.fill(mHistogram, 0);
+        mCoefficient = 2 * Math.cos(2 * Math.PI * frequency / sampleRate);
+        mState1 = 0;
+        mState2 = 0;
+        mSumOfSquares = 0;
+        mCount = 0;
+    }
+
+    /**
+     * Adds the samples in the specified range of the array.
+     */
+    public void add(short[] data, int fromIndex, int toIndex) {
+        double coefficient = mCoefficient;
+        double state1 = mState1;
+        double state2 = mState2;
+        double sumOfSquares = mSumOfSquares;
+        for (int i = fromIndex; i < toIndex; i++) {
+            int value = data[i];
+            mHistogram[value < 0 ? -value : value]++;
+            sumOfSquares += value * value;
+
+            double state = value + coefficient * state1 - state2;
+            state2 = state1;
+            state1 = state;
+        }
+        mState1 = state1;
+        mState2 = state2;
+        mSumOfSquares = sumOfSquares;
+        mCount += toIndex - fromIndex;
+    }
+
+    /**
+     * @return The number of samples added since the last reset.
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the largest magnitude left after ignoring the specified number of loudest samples,
+     * i.e. the same value as sorting the magnitudes and taking the element {@code cutCount} from
+     * the top.
+     */
+    public int robustMaximum(int cutCount) {
+        int remaining = Math.max(1, cutCount);
+        for (int magnitude = mHistogram.length - 1; magnitude > 0; magnitude--) {
+            remaining -= mHistogram[magnitude];
+            if (remaining <= 0)
+                return magnitude;
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the fraction of the energy of the measured samples, between 0 and 1, found at the
+     * tone frequency. A pure tone spanning a whole number of periods gives 1, white noise gives
+     * about {@code 2 / count}.
+     */
+    public float toneEnergyFraction() {
+        if (mCount == 0 || mSumOfSquares == 0)
+            return 0;
+
+        double power = mState1 * mState1 + mState2 * mState2 - mCoefficient * mState1 * mState2;
+        return (float) Math.min(1, 2 * power / (mCount * mSumOfSquares));
+    }
+}
@@ -0,0 +1,176 @@
+package com.robocatapps.thermodosdk;
+
+import static com.robocatapps.thermodosdk.Constants.CLIPPING_THRESHOLD;
+
+/**
+ * Removes a DC offset and low frequency hum from the recorded signal before it is analyzed, as
+ * they shift or remove the zero crossings the frames are found from. A DC blocker is followed by
+ * a band-pass filter centred between the carrier and the double frequency of the sync cells.
+ * <p/>
+ * The band-pass runs forwards and then backwards over each buffer, so it shifts neither the
+ * carrier nor the sync cells, which a single pass would shift in opposite directions, and it
+ * passes both with the gain of the carrier scaled back to 1. The buffer is extended at both ends
+ * by its point reflection while filtering, so the edges don't ring. The DC blocker barely shifts
+ * either frequency and runs once, with its state carried over from one buffer to the next.
+ * <p/>
+ * Buffers are filtered in place, allocating only when a longer buffer arrives. Samples beyond the
+ * clipping threshold are passed through unchanged, so clipping is still detected by the
+ * analyzer, and the filtered samples are limited to the threshold, so filtering doesn't add any
+ * clipping.
+ * NOTE: This class is not thread-safe.
+ */
+public class SignalPreFilter {
+
+    /**
+     * Cutoff frequency of the DC blocker, in Hertz.
+     */
+    private static final double DC_CUTOFF = 20;
+
+    /**
+     * Quality factor of the band-pass filter. The carrier and the sync frequency are an octave
+     * apart, so they are passed at about 90% of the amplitude.
+     */
+    private static final double BAND_Q = 0.7;
+
+    /**
+     * Fraction to which the band-pass response to the buffer edges decays within the reflection
+     * they are extended by.
+     */
+    private static final double EDGE_DECAY = 1e-4;
+
+    private final float mFrequency;
+
+    private double mDcPole;
+    private double mB0;
+    private double mB2;
+    private double mA1;
+    private double mA2;
+    private double mGain;
+    private int mPadding;
+
+    private double mDcInput;
+    private double mDcOutput;
+
+    private double[] mWork = new double[0];
+
+    public SignalPreFilter(SignalProfile profile) {
+        this(profile.frequency, profile.sampleRate);
+    }
+
+    /**
+     * @param frequency  Carrier frequency of the signal, in Hertz.
+     * @param sampleRate Rate of the filtered data, in Hertz.
+     */
+    public SignalPreFilter(float frequency, int sampleRate) {
+        mFrequency = frequency;
+        setSampleRate(sampleRate);
+    }
+
+    /**
+     * Sets the rate of the filtered data, e.g. when a recording starts, and resets the filter.
+     */
+    public void setSampleRate(int sampleRate) {
+        mDcPole = Math.exp(-2 * Math.PI * DC_CUTOFF / sampleRate);
+
+        // Band-pass with a peak gain of 1, centred on the geometric mean of the carrier and the
+        // sync frequency
+        double w0 = 2 * Math.PI * mFrequency * Math.sqrt(2) / sampleRate;
+        double alpha = Math.sin(w0) / (2 * BAND_Q);
+        double a0 = 1 + alpha;
+        mB0 = alpha / a0;
+        mB2 = -alpha / a0;
+        mA1 = -2 * Math.cos(w0) / a0;
+        mA2 = (1 - alpha) / a0;
+
+        // Both passes together scale the carrier by the squared magnitude of the response there
+        double w = 2 * Math.PI * mFrequency / sampleRate;
+        double numeratorRe = mB0 + mB2 * Math.cos(2 * w);
+        double numeratorIm = -mB2 * Math.sin(2 * w);
+        double denominatorRe = 1 + mA1 * Math.cos(w) + mA2 * Math.cos(2 * w);
+        double denominatorIm = -mA1 * Math.sin(w) - mA2 * Math.sin(2 * w);
+        mGain = (denominatorRe * denominatorRe + denominatorIm * denominatorIm)
+                / (numeratorRe * numeratorRe + numeratorIm * numeratorIm);
+
+        // The poles' radius is the square root of a2
+        mPadding = (int) Math.ceil(Math.log(EDGE_DECAY) / Math.log(Math.sqrt(mA2)));
+
+        reset();
+    }
+
+    /**
+     * Clears the filter state, e.g. before filtering a new recording.
+     */
+    public void reset() {
+        mDcInput = 0;
+        mDcOutput = 0;
+    }
+
+    public void process(short[] data) {
+        process(data, 0, data.length);
+    }
+
+    /**
+     * Filters a range of the buffer in place.
+     *
+     * @param fromIndex Start position of the range, inclusive.
+     * @param toIndex   End position of the range, exclusive.
+     */
+    public void process(short[] data, int fromIndex, int toIndex) {
+        int length = toIndex - fromIndex;
+        if (length <= 0)
+            return;
+        int padding = Math.min(mPadding, length - 1);
+        if (mWork.length < length + 2 * padding)
+            mWork = new double[length + 2 * padding];
+        double[] work = mWork;
+
+        // DC blocker
+        double dcInput = mDcInput;
+        double dcOutput = mDcOutput;
+        for (int i = 0; i < length; i++) {
+            short sample = data[fromIndex + i];
+            dcOutput = sample - dcInput + mDcPole * dcOutput;
+            dcInput = sample;
+            work[padding + i] = dcOutput;
+        }
+        mDcInput = dcInput;
+        mDcOutput = dcOutput;
+
+        // Point reflections of the ends
+        double first = work[padding];
+        double last = work[padding + length - 1];
+        for (int i = 1; i <= padding; i++) {
+            work[padding - i] = 2 * first - work[padding + i];
+            work[padding + length - 1 + i] = 2 * last - work[padding + length - 1 - i];
+        }
+
+        // Band-pass forwards and backwards, transposed direct form II
+        int end = length + 2 * padding;
+        double z1 = 0;
+        double z2 = 0;
+        for (int i = 0; i < end; i++) {
+            double input = work[i];
+            double output = mB0 * input + z1;
+            z1 = -mA1 * output + z2;
+            z2 = mB2 * input - mA2 * output;
+            work[i] = output;
+        }
+        z1 = 0;
+        z2 = 0;
+        for (int i = end - 1; i >= 0; i--) {
+            double input = work[i];
+            double output = mB0 * input + z1;
+            z1 = -mA1 * output + z2;
+            z2 = mB2 * input - mA2 * output;
+            work[i] = output;
+        }
+
+        for (int i = 0; i < length; i++) {
+            short sample = data[fromIndex + i];
+            if (sample > CLIPPING_THRESHOLD || sample < -CLIPPING_THRESHOLD)
+                continue;
+            data[fromIndex + i] = (short) Math.max(-CLIPPING_THRESHOLD,
+                    Math.min(CLIPPING_THRESHOLD, Math.round(work[padding + i] * mGain)));
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.robocatapps.thermodosdk;
+
+/**
+ * Describes the probe signal played to the Thermodo and how the recorded signal is split into
+ * cells and frames. The same profile is used for waveform generation, capture sizing and
+ * analysis, so all three always agree.
+ * <p/>
+ * Instances are immutable and validated on construction. Use one of the presets unless a custom
+ * signal is being evaluated.
+ */
+public final class SignalProfile {
+
+    /**
+     * The original Thermodo signal: a 1 kHz carrier sampled at 44.1 kHz, 10 periods per cell and
+     * half a second of audio per analyzed buffer.
+     */
+    public static final SignalProfile DEFAULT = new SignalProfile("default", 44100, 1000, 10, 10,
+            9, 0.5f, 0.9f, 0.1f, 0.5f);
+
+    /**
+     * A low-latency signal: a 2 kHz carrier with 5 periods per cell, giving frames four times
+     * shorter than {@link #DEFAULT} and a reading every quarter of a second.
+     */
+    public static final SignalProfile FAST = new SignalProfile("fast", 44100, 2000, 10, 5, 9,
+            0.5f, 0.9f, 0.1f, 0.25f);
+
+    /**
+     * The {@link #DEFAULT} signal generated at 48 kHz, the native rate of most current devices.
+     * The carrier period is then exactly 48 samples.
+     */
+    public static final SignalProfile HIGH_RATE = new SignalProfile("48khz", 48000, 1000, 10, 10,
+            9, 0.5f, 0.9f, 0.1f, 0.5f);
+
+    public final String name;
+    public final int sampleRate;
+    public final int frequency;
+    public final int numberOfCells;
+    public final int periodsPerCell;
+    public final int syncCellIndex;
+    public final float referenceAmplitude;
+    // Narrowed amplitudes band to avoid clipping and increase signal to noise ratio to improve
+    // measurements stability
+    public final float upperAmplitude;
+    public final float lowerAmplitude;
+    /**
+     * Duration, in seconds, of the audio buffer handed to the analyzer.
+     */
+    public final float seconds;
+
+    public final int samplesPerCell;
+    public final int samplesPerFrame;
+
+    /**
+     * @throws IllegalArgumentException if the combination of values can't be generated or
+     *                                  analyzed.
+     */
+    public SignalProfile(String name, int sampleRate, int frequency, int numberOfCells,
+                         int periodsPerCell, int syncCellIndex, float referenceAmplitude,
+                         float upperAmplitude, float lowerAmplitude, float seconds) {
+        if (sampleRate <= 0 || frequency <= 0)
+            throw new IllegalArgumentException("Sample rate and frequency must be positive");
+        // The sync cell runs at twice the carrier frequency and is recognized by the length of
+        // its half periods, so it needs at least a couple of samples per quarter carrier period.
+        if (sampleRate / frequency < 8)
+            throw new IllegalArgumentException("Frequency " + frequency + " Hz is too high for " +
+                    sampleRate + " Hz");
+        if (numberOfCells < 4)
+            throw new IllegalArgumentException("At least 4 cells are required");
+        if (syncCellIndex != numberOfCells - 1)
+            throw new IllegalArgumentException("The sync cell must be the last cell of the frame");
+        if (periodsPerCell < 2)
+            throw new IllegalArgumentException("At least 2 periods per cell are required");
+        if (!(0 < lowerAmplitude && lowerAmplitude < upperAmplitude && upperAmplitude <= 1))
+            throw new IllegalArgumentException("Amplitudes must satisfy 0 < lower < upper <= 1");
+        if (!(0 < referenceAmplitude && referenceAmplitude <= 1))
+            throw new IllegalArgumentException("Reference amplitude must be in (0, 1]");
+
+        this.name = name;
+        this.sampleRate = sampleRate;
+        this.frequency = frequency;
+        this.numberOfCells = numberOfCells;
+        this.periodsPerCell = periodsPerCell;
+        this.syncCellIndex = syncCellIndex;
+        this.referenceAmplitude = referenceAmplitude;
+        this.upperAmplitude = upperAmplitude;
+        this.lowerAmplitude = lowerAmplitude;
+        this.seconds = seconds;
+
+        samplesPerCell = samplesPerCell(sampleRate);
+        samplesPerFrame = (numberOfCells - 1) * samplesPerCell;
+
+        // Frames are only recognized between two sync cells, so a buffer must hold at least two
+        // full frames to produce any reading.
+        if (getBufferSamples(sampleRate) < 2 * numberOfCells * samplesPerCell)
+            throw new IllegalArgumentException("A buffer of " + seconds + " s can't hold two " +
+                    "frames");
+    }
+
+    /**
+     * Returns the number of samples in a cell when the signal is recorded at the given rate.
+     */
+    public int samplesPerCell(int sampleRate) {
+        return (sampleRate / frequency) * periodsPerCell;
+    }
+
+    /**
+     * Returns the number of samples in an analyzed buffer when recording at the given rate.
+     */
+    public int getBufferSamples(int sampleRate) {
+        return (int) (seconds * sampleRate);
+    }
+
+    @Override
+    public String toString() {
+        return "SignalProfile[" + name + ", " + sampleRate + " Hz, " + frequency + " Hz carrier, "
+                + periodsPerCell + " periods per cell]";
+    }
+}
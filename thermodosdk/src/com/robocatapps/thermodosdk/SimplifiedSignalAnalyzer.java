@@ -4,16 +4,27 @@ import com.robocatapps.thermodosdk.model.AnalyzerResult;
 import com.robocatapps.thermodosdk.model.Sample;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Analyzes the left to right signal by comparing the median amplitudes of its two halves.
+ * <p/>
+ * The analysis works on index ranges of the provided buffer and on re-used primitive arrays, so
+ * nothing but the returned {@link com.robocatapps.thermodosdk.model.AnalyzerResult} is allocated
+ * once the arrays have grown to the buffer size. NOTE: This class is not re-entrant.
+ */
 public class SimplifiedSignalAnalyzer extends AbstractAnalyzer {
 
     private static Logger sLog = Logger.getLogger(SimplifiedSignalAnalyzer.class.getName());
     // List of Samples and Frames located in audio used in resultFromAnalyzingData.
     // Allocated here to avoid constant re-allocation
     List<Sample> mSamples = new ArrayList<Sample>();
+    // Extreme amplitudes of the analyzed ranges, re-used between calls
+    private short[] mAmplitudes = new short[0];
+    private int mAmplitudesCount;
 
     @Override
     public AnalyzerResult resultFromAnalyzingData(short[] data) {
@@ -38,46 +49,33 @@ public class SimplifiedSignalAnalyzer extends AbstractAnalyzer {
         if (stopIndex == 0 && startIndex == data.length)
             return result;
 
-        int newSamplesCount = stopIndex - startIndex + 1;
-        short[] newSamples = new short[newSamplesCount];
-        System.arraycopy(data, startIndex, newSamples, 0, newSamplesCount);
-
-        int numberOfSamplesForAnalysis = (int) Math.round(newSamples.length * 0.5 * 0.75);
-        short[] leftSamples = new short[numberOfSamplesForAnalysis];
-        System.arraycopy(newSamples, (int) (numberOfSamplesForAnalysis * 0.05f), leftSamples, 0,
-                numberOfSamplesForAnalysis);
-        short[] rightSamples = new short[numberOfSamplesForAnalysis];
-        System.arraycopy(newSamples, newSamples.length - (int) (numberOfSamplesForAnalysis * 1.05f),
-                rightSamples, 0, numberOfSamplesForAnalysis);
-
-        samplesFromBuffer(leftSamples, mSamples);
-        List<Short> xValues = new ArrayList<Short>(0);
-        for (Sample sample : mSamples) {
-            if (sample.getSampleType() == Sample.SampleType.MAX) {
-                xValues.add(sample.getAmplitude());
-            } else if (sample.getSampleType() == Sample.SampleType.MIN) {
-                xValues.add((short) -sample.getAmplitude());
-            }
-        }
-
-        short leftAmplitude = medianValueOfShortList(xValues);
-
-        samplesFromBuffer(rightSamples, mSamples);
-        xValues = new ArrayList<Short>(0);
-        for (Sample sample : mSamples) {
-            if (sample.getSampleType() == Sample.SampleType.MAX) {
-                xValues.add(sample.getAmplitude());
-            } else if (sample.getSampleType() == Sample.SampleType.MIN) {
-                xValues.add((short) -sample.getAmplitude());
-            }
-        }
-
-        short rightAmplitude = medianValueOfShortList(xValues);
-
-        sLog.fine(String.format("Left ampl: %d , Right ampl: %d", leftAmplitude, rightAmplitude));
+        // Analyze a range at the start of the left channel's half and one at the end of the
+        // right channel's half of the real signal
+        int signalLength = stopIndex - startIndex + 1;
+        int numberOfSamplesForAnalysis = (int) Math.round(signalLength * 0.5 * 0.75);
+        int leftStart = startIndex + (int) (numberOfSamplesForAnalysis * 0.05f);
+        int rightStart = startIndex + signalLength - (int) (numberOfSamplesForAnalysis * 1.05f);
+
+        mAmplitudesCount = 0;
+
+        samplesFromBuffer(data, leftStart, leftStart + numberOfSamplesForAnalysis, mSamples);
+        addExtremeAmplitudes(mSamples, 0);
+        short leftAmplitude = medianValueOfAmplitudes();
+
+        // NOTE: The samples of the left range are kept, so, as before, the right median is taken
+        // over the extremes of both ranges.
+        int leftSamplesCount = mSamples.size();
+        samplesFromBuffer(data, rightStart, rightStart + numberOfSamplesForAnalysis, mSamples);
+        addExtremeAmplitudes(mSamples, leftSamplesCount);
+        short rightAmplitude = medianValueOfAmplitudes();
+
+        if (sLog.isLoggable(Level.FINE))
+            sLog.fine(String.format("Left ampl: %d , Right ampl: %d", leftAmplitude,
+                    rightAmplitude));
         float resistance = ((float) rightAmplitude) / leftAmplitude * 100.0f;
         float temperature = temperatureFromResistance(resistance);
-        sLog.fine("Temperature: " + temperature);
+        if (sLog.isLoggable(Level.FINE))
+            sLog.fine("Temperature: " + temperature);
 
         result.temperature = temperature;
         result.numberOfFrames = 4;
@@ -88,20 +86,37 @@ public class SimplifiedSignalAnalyzer extends AbstractAnalyzer {
         return result;
     }
 
-
     /**
-     * Returns median value from the specified list.
+     * Appends the amplitudes of the extreme samples in the list, starting at the specified index,
+     * to the amplitudes array, with minimum amplitudes negated.
      */
-    private static short medianValueOfShortList(List<Short> values) {
-        if (values.size() == 0) return 0;
-        if (values.size() <= 2) return values.get(0);
+    private void addExtremeAmplitudes(List<Sample> samples, int fromIndex) {
+        int size = samples.size();
+        int required = mAmplitudesCount + size - fromIndex;
+        if (mAmplitudes.length < required)
+            mAmplitudes = Arrays.copyOf(mAmplitudes, Math.max(required, mAmplitudes.length * 2));
+
+        for (int i = fromIndex; i < size; i++) {
+            Sample sample = samples.get(i);
+            if (sample.getSampleType() == Sample.SampleType.MAX) {
+                mAmplitudes[mAmplitudesCount++] = sample.getAmplitude();
+            } else if (sample.getSampleType() == Sample.SampleType.MIN) {
+                mAmplitudes[mAmplitudesCount++] = (short) -sample.getAmplitude();
+            }
+        }
+    }
 
-        //Create a list which will contain a copy of specified array
-        List<Short> copyList = new ArrayList<Short>(values);
+    /**
+     * Returns median value of the collected amplitudes. The amplitudes are sorted in place, which
+     * doesn't change the median of amplitudes appended afterwards.
+     */
+    private short medianValueOfAmplitudes() {
+        if (mAmplitudesCount == 0) return 0;
+        if (mAmplitudesCount <= 2) return mAmplitudes[0];
 
-        Collections.sort(copyList);
+        Arrays.sort(mAmplitudes, 0, mAmplitudesCount);
 
         //Get median value
-        return copyList.get(copyList.size() / 2);
+        return mAmplitudes[mAmplitudesCount / 2];
     }
 }
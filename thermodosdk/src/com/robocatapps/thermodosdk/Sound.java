@@ -1,11 +1,5 @@
 package com.robocatapps.thermodosdk;
 
-import android.media.AudioFormat;
-import android.media.AudioManager;
-import android.media.AudioTrack;
-
-import static com.robocatapps.thermodosdk.Constants.SAMPLE_RATE;
-
 /**
  * This class stores all generated sound data.
  */
@@ -17,13 +11,16 @@ public class Sound {
 
     public final short[] mSamples;
     public final int mSamplesCount;
+    public final int mSampleRate;
 
-    private AudioTrack mTrack;
+    private AudioOutput mOutput;
+    private AudioBackend mBackend;
+    private float mGain = 1;
 
-    public Sound(short[] samples) {
+    public Sound(short[] samples, int sampleRate) {
         this.mSamples = samples;
         this.mSamplesCount = samples.length / CHANNELS_COUNT;
-        this.mTrack = getAudioTrack();
+        this.mSampleRate = sampleRate;
     }
 
     /**
@@ -37,46 +34,80 @@ public class Sound {
     }
 
     /**
-     * Starts the sound playback.
+     * Opens and prepares an output for this sound, so a following {@link #play(AudioBackend,
+     * int)} with the same backend starts without delay.
+     */
+    public synchronized void prepare(AudioBackend backend) {
+        if (mOutput != null && mBackend == backend)
+            return;
+
+        release();
+        mOutput = backend.openOutput(mSamples, mSampleRate);
+        mBackend = backend;
+        mOutput.setGain(mGain);
+        mOutput.prepare();
+    }
+
+    /**
+     * Starts the sound playback from its beginning. The output is kept between playbacks, until
+     * {@link #release()} is called or another backend is used.
      *
+     * @param backend   The backend providing the output to play the sound on.
      * @param loopCount Sets the number of times this sound will be played. -1 results in an
      *                  infinite loop. 0 disables looping.
      */
-    public void play(int loopCount) {
-        if(mTrack != null)
-            stop();
+    public synchronized void play(AudioBackend backend, int loopCount) {
+        prepare(backend);
+        mOutput.play(loopCount);
+    }
 
-        mTrack = getAudioTrack();
+    /**
+     * Sets the digital gain applied to the sound, between 0 and 1, also while playing. It is kept
+     * for later playbacks.
+     */
+    public synchronized void setGain(float gain) {
+        mGain = gain;
+        if (mOutput != null)
+            mOutput.setGain(gain);
+    }
 
-        if (loopCount != 0)
-            mTrack.setLoopPoints(0, mSamplesCount, loopCount);
+    public synchronized float getGain() {
+        return mGain;
+    }
 
-        mTrack.play();
+    /**
+     * Pauses the playback, keeping its position.
+     */
+    public synchronized void pause() {
+        if (mOutput != null)
+            mOutput.pause();
     }
 
     /**
-     * Stops the playback.
+     * Resumes a paused playback.
      */
-    public void stop() {
-        if (mTrack == null)
-            return;
+    public synchronized void resume() {
+        if (mOutput != null)
+            mOutput.resume();
+    }
 
-        mTrack.stop();
-        mTrack.release();
-        mTrack = null;
+    /**
+     * Stops the playback.
+     */
+    public synchronized void stop() {
+        if (mOutput != null)
+            mOutput.stop();
     }
 
     /**
-     * Creates an {@link android.media.AudioTrack} from the stored sound data.
-     *
-     * @return Resulting AudioTrack object.
+     * Stops the playback and releases the output.
      */
-    private AudioTrack getAudioTrack() {
-        AudioTrack track = new AudioTrack(AudioManager.STREAM_MUSIC, SAMPLE_RATE,
-            AudioFormat.CHANNEL_OUT_STEREO, AudioFormat.ENCODING_PCM_16BIT,
-            mSamples.length * BYTES_PER_SAMPLE, AudioTrack.MODE_STATIC);
-        track.write(mSamples, 0, mSamples.length);
+    public synchronized void release() {
+        if (mOutput == null)
+            return;
 
-        return track;
+        mOutput.release();
+        mOutput = null;
+        mBackend = null;
     }
 }
@@ -1,6 +1,5 @@
 package com.robocatapps.thermodosdk;
 
-import static com.robocatapps.thermodosdk.Constants.SAMPLE_RATE;
 import static com.robocatapps.thermodosdk.Sound.CHANNELS_COUNT;
 import static com.robocatapps.thermodosdk.Sound.MAX_AMPLITUDE;
 
@@ -11,64 +10,84 @@ public class SoundGenerator {
      *
      * @param duration Sound duration in milliseconds.
      */
-    public static int getSamplesCount(int frequency, int duration) {
+    public static int getSamplesCount(int sampleRate, int frequency, int duration) {
         double period = 1.f / frequency;
         int numberOfPeriods = (int) (duration / 1000.f / period);
-        return (int) (SAMPLE_RATE * (numberOfPeriods * period));
+        return (int) (sampleRate * (numberOfPeriods * period));
     }
 
     /**
      * Generates a constant tone in selected channels with the specified frequency and duration.
      *
+     * @param sampleRate   Sample rate of the generated sound, in Hertz.
      * @param duration     Tone duration in milliseconds.
      * @param frequency    Tone frequency in Hertz.
      * @param leftChannel  Enables the left channel.
      * @param rightChannel Enables the right channel.
      * @return An array of generated samples.
      */
-    public static Sound generateWave(int duration, int frequency, boolean leftChannel,
-                                     boolean rightChannel) {
-        int nSamples = getSamplesCount(frequency, duration);
+    public static Sound generateWave(int sampleRate, int duration, int frequency,
+                                     boolean leftChannel, boolean rightChannel) {
+        int nSamples = getSamplesCount(sampleRate, frequency, duration);
         short[] samples = new short[nSamples * CHANNELS_COUNT];
 
         int index = 0;
         for (int i = 0; i < nSamples; i++) {
-            short sample = (short) generateSample(i, MAX_AMPLITUDE, frequency);
+            short sample = (short) generateSample(i, MAX_AMPLITUDE, frequency, sampleRate);
             samples[index++] = leftChannel ? sample : 0; // left channel
             samples[index++] = rightChannel ? sample : 0; // right channel
         }
 
-        return new Sound(samples);
+        return new Sound(samples, sampleRate);
     }
 
     /**
      * Generates a signal which switches from left to right channel in the middle
      *
+     * @param sampleRate Sample rate of the generated sound, in Hertz
      * @param channelDuration Duration of every channel
      * @param frequency the frequency on which has to be listened
      * @return a Sound object
      */
-    public static Sound generateL2RSignal(int channelDuration, int frequency) {
-        int samplesPerChannel = getSamplesCount(frequency, channelDuration);
+    public static Sound generateL2RSignal(int sampleRate, int channelDuration, int frequency) {
+        int samplesPerChannel = getSamplesCount(sampleRate, frequency, channelDuration);
         short[] samples = new short[samplesPerChannel * CHANNELS_COUNT * 2];
 
         int index = 0;
         for (int i = 0; i < samplesPerChannel * 2; i++) {
-            short sample = (short) generateSample(i, MAX_AMPLITUDE, frequency);
+            short sample = (short) generateSample(i, MAX_AMPLITUDE, frequency, sampleRate);
             samples[index++] = i < samplesPerChannel ? sample : 0;
             samples[index++] = i >= samplesPerChannel ? sample : 0;
         }
 
-        return new Sound(samples);
+        return new Sound(samples, sampleRate);
+    }
+
+    /**
+     * Generates the left to right signal used by the {@link SimplifiedSignalAnalyzer}, with each
+     * channel lasting half of the profile's buffer duration.
+     */
+    public static Sound generateL2RSignal(SignalProfile profile) {
+        return generateL2RSignal(profile.sampleRate, (int) (profile.seconds / 2 * 1000),
+                profile.frequency);
+    }
+
+    /**
+     * Generates the sweep signal described by the specified profile.
+     */
+    public static Sound generateSweepSignal(SignalProfile profile) {
+        return generateSweepSignal(profile.sampleRate, profile.numberOfCells,
+                profile.periodsPerCell, profile.syncCellIndex, profile.frequency,
+                profile.referenceAmplitude, profile.upperAmplitude, profile.lowerAmplitude);
     }
 
     /**
      * Generates a sweep signal on the left channel with the constant wave on the right one.
      */
-    public static Sound generateSweepSignal(int nCells, int periodsPerCell, int syncCellIndex,
-                                            int frequency, double refVolume, double maxVolume,
-                                            double minVolume) {
-        int samplesPerCell = (SAMPLE_RATE / frequency) * periodsPerCell;
+    public static Sound generateSweepSignal(int sampleRate, int nCells, int periodsPerCell,
+                                            int syncCellIndex, int frequency, double refVolume,
+                                            double maxVolume, double minVolume) {
+        int samplesPerCell = (sampleRate / frequency) * periodsPerCell;
         double volumeStep = (maxVolume - minVolume) / (nCells - 2);
 
         short[] samples = new short[samplesPerCell * nCells * CHANNELS_COUNT];
@@ -83,16 +102,16 @@ public class SoundGenerator {
                 samples[index++] = (short) generateSample(sampleIndex,
                         cell == syncCellIndex ? -maxVolume * MAX_AMPLITUDE : volume *
                                 MAX_AMPLITUDE,
-                        cell == syncCellIndex ? frequency * 2 : frequency);
+                        cell == syncCellIndex ? frequency * 2 : frequency, sampleRate);
                 samples[index++] = (short) -generateSample(sampleIndex,
                         (cell == syncCellIndex ? -1 : 1) * refVolume * MAX_AMPLITUDE,
-                        cell == syncCellIndex ? frequency * 2 : frequency);
+                        cell == syncCellIndex ? frequency * 2 : frequency, sampleRate);
                 sampleIndex++;
             }
             volume -= volumeStep;
         }
 
-        return new Sound(samples);
+        return new Sound(samples, sampleRate);
     }
 
     /**
@@ -102,7 +121,8 @@ public class SoundGenerator {
      *                     signal generation.
      * @return Sample value in range [0, amplitude].
      */
-    private static double generateSample(int sampleNumber, double amplitude, int frequency) {
-        return Math.sin((2.0 * Math.PI * frequency * sampleNumber) / SAMPLE_RATE) * amplitude;
+    private static double generateSample(int sampleNumber, double amplitude, int frequency,
+                                         int sampleRate) {
+        return Math.sin((2.0 * Math.PI * frequency * sampleNumber) / sampleRate) * amplitude;
     }
 }
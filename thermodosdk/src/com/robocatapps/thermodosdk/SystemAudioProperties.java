@@ -0,0 +1,56 @@
+package com.robocatapps.thermodosdk;
+
+import android.media.AudioManager;
+import android.os.Build;
+
+/**
+ * Reads the native audio properties of the device from the {@link android.media.AudioManager}.
+ * Properties that are not available on the running platform version are reported as unknown.
+ */
+public class SystemAudioProperties implements AndroidAudioBackend.AudioPropertiesProvider {
+
+    /**
+     * {@code AudioManager.PROPERTY_SUPPORT_AUDIO_SOURCE_UNPROCESSED}, available from API level 24.
+     */
+    private static final String PROPERTY_SUPPORT_AUDIO_SOURCE_UNPROCESSED =
+            "android.media.property.SUPPORT_AUDIO_SOURCE_UNPROCESSED";
+
+    private static final int API_LEVEL_NOUGAT = 24;
+
+    private final AudioManager mAudioManager;
+
+    public SystemAudioProperties(AudioManager audioManager) {
+        mAudioManager = audioManager;
+    }
+
+    @Override
+    public int getNativeSampleRate() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR1)
+            return 0;
+        return parseInt(mAudioManager.getProperty(AudioManager.PROPERTY_OUTPUT_SAMPLE_RATE));
+    }
+
+    @Override
+    public int getNativeFramesPerBuffer() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR1)
+            return 0;
+        return parseInt(mAudioManager.getProperty(AudioManager
+                .PROPERTY_OUTPUT_FRAMES_PER_BUFFER));
+    }
+
+    @Override
+    public boolean isUnprocessedSourceSupported() {
+        return Build.VERSION.SDK_INT >= API_LEVEL_NOUGAT && Boolean.parseBoolean(mAudioManager
+                .getProperty(PROPERTY_SUPPORT_AUDIO_SOURCE_UNPROCESSED));
+    }
+
+    private static int parseInt(String value) {
+        if (value == null)
+            return 0;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -76,4 +76,17 @@ public interface Thermodo {
      */
     public ThermodoListener getThermodoListener();
 
+    /**
+     * Sets the {@link SignalProfile} used for the probe signal and its analysis. The default is
+     * {@link SignalProfile#DEFAULT}. If Thermodo is running, it is restarted with the new profile.
+     * <p/>
+     * Must be called on the main thread.
+     */
+    public void setSignalProfile(SignalProfile profile);
+
+    /**
+     * @return The {@link SignalProfile} currently used for the probe signal and its analysis.
+     */
+    public SignalProfile getSignalProfile();
+
 }
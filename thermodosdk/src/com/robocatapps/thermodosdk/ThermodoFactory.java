@@ -2,6 +2,8 @@ package com.robocatapps.thermodosdk;
 
 import android.content.Context;
 
+import java.util.concurrent.Future;
+
 /**
  * A factory for obtaining Thermodo instances.
  */
@@ -21,6 +23,16 @@ public class ThermodoFactory {
 		return sInstance;
 	}
 
+	/**
+	 * Returns a future completed with the instance returned by {@link
+	 * #getThermodoInstance(Context)} once it is ready to use. The instance is obtained without
+	 * blocking, while its recorder, signals and analyzer are built in the background, so calling
+	 * its methods before the future is done blocks until they are built.
+	 */
+	public static Future<Thermodo> getThermodoInstanceAsync(Context context) {
+		return ((ThermodoImpl) getThermodoInstance(context)).getReadyFuture();
+	}
+
 	/**
 	 * Returns a Mocked instance of a {@link Thermodo} object associated with the Application's
 	 * context. This instance does not interact with any plugged in device and should be used during
@@ -6,24 +6,24 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.media.AudioManager;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 
 import com.robocatapps.thermodosdk.model.AnalyzerResult;
-
+import com.robocatapps.thermodosdk.model.ReadingTrace;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
 
-import static com.robocatapps.thermodosdk.Constants.FREQUENCY;
-import static com.robocatapps.thermodosdk.Constants.LOWER_AMPLITUDE;
-import static com.robocatapps.thermodosdk.Constants.NUMBER_OF_CELLS;
-import static com.robocatapps.thermodosdk.Constants.PERIODS_PER_CELL;
-import static com.robocatapps.thermodosdk.Constants.REFERENCE_AMPLITUDE;
-import static com.robocatapps.thermodosdk.Constants.SECONDS;
-import static com.robocatapps.thermodosdk.Constants.SYNC_CELL_INDEX;
-import static com.robocatapps.thermodosdk.Constants.UPPER_AMPLITUDE;
-
 /**
  * Main implementation of the {@link Thermodo} interface.
  */
@@ -41,23 +41,155 @@ public final class ThermodoImpl implements AudioRecorder.OnBufferFilledListener,
 
     private static final String MSG_TEMPERATURE = "_temperature";
 
+    /**
+     * Time a headset plug state has to be stable before it is acted on, in milliseconds.
+     */
+    private static final long PLUG_DEBOUNCE_MILLIS = 100;
+
+    /**
+     * Lifecycle states. Transitions are made with compare-and-set, so a stale or repeated event
+     * can't start or stop the pipeline twice.
+     */
+    private enum State {
+        // Not started, or stopped
+        STOPPED,
+        // Started and waiting for a Thermodo to be plugged in
+        WAITING,
+        // Checking the plugged device, see DeviceDetector
+        DETECTING,
+        // Self-calibrating the audio settings for the device model, see Calibrator
+        CALIBRATING,
+        // Measuring the temperature
+        MEASURING
+    }
+
+    /**
+     * The analyzer of the recorded buffers and the capture position before which buffers may
+     * still hold a probe signal swapped out or paused, -1 if none do. They are replaced together,
+     * so a buffer of a previous signal is never delivered to the analyzer of the new one.
+     */
+    private static class ProbeAnalysis {
+
+        final AbstractAnalyzer analyzer;
+        final long discardUntilPosition;
+
+        ProbeAnalysis(AbstractAnalyzer analyzer, long discardUntilPosition) {
+            this.analyzer = analyzer;
+            this.discardUntilPosition = discardUntilPosition;
+        }
+    }
+
+    /**
+     * Output volume, as a fraction of the maximum, used when the device model isn't calibrated.
+     */
+    private static final float DEFAULT_VOLUME_FRACTION = 0.85f;
+
+    /**
+     * Oldest persisted temperature used to seed the analyzer, in milliseconds.
+     */
+    private static final long WARM_START_TEMPERATURE_MAX_AGE = 5 * 60 * 1000;
+
+    /**
+     * Time after the probe signal is swapped in which the recording may still hold the previous
+     * signal, covering the output and input latencies, in milliseconds.
+     */
+    private static final long PROBE_SWAP_SETTLE_MILLIS = 200;
+
+    /**
+     * Time after the probe signal is resumed from a focus loss in which the recording may still
+     * hold the pause, covering the output latency, in milliseconds.
+     */
+    private static final long FOCUS_RESUME_SETTLE_MILLIS = 200;
+
+    /**
+     * Time after the probe signal is started in which the recording may still hold the test tone
+     * of the device check, covering the output latency, in milliseconds.
+     */
+    private static final long MEASUREMENT_START_SETTLE_MILLIS = 200;
+
+    /**
+     * Longest wait for the buffers queued for a capture to be written when it is replaced, in
+     * milliseconds.
+     */
+    private static final long CAPTURE_FINISH_TIMEOUT_MILLIS = 2000;
+
     private Context mAppContext;
     private AudioManager mAudioManager;
+    private AudioBackend mAudioBackend;
 
     private AudioRecorder mRecorder;
-    private Sound mAudioTrack;
+    private volatile Sound mAudioTrack;
     private ThermodoListener mListener;
     private DeviceDetector mDeviceDetector;
-    private AbstractAnalyzer mAnalyzer;
+    private final AtomicReference<ProbeAnalysis> mProbeAnalysis =
+            new AtomicReference<ProbeAnalysis>(new ProbeAnalysis(null, -1));
+    private SignalProfile mSignalProfile = SignalProfile.DEFAULT;
+
+    private final AtomicReference<State> mState = new AtomicReference<State>(State.STOPPED);
+    private volatile int mMeasurementStartCount;
 
-    private volatile boolean mIsMeasuring = false;
-    private volatile boolean mIsRunning = false;
+    private volatile boolean mPendingPlugged;
+    private boolean mHeadsetPlugged;
 
     private boolean mDeviceCheckEnabled;
+    private boolean mCascadedAnalyzerEnabled;
+    private volatile SignalPreFilter mPreFilter;
+    private volatile AnalyzerFlightRecorder mFlightRecorder;
     private int mPreviousVolume = -1;
 
     private boolean mThermodoIsPlugged;
 
+    private boolean mFocusPaused;
+    private long mPauseNanos;
+    private volatile long mResumeNanos;
+    private volatile long mLastPauseMillis = -1;
+    private volatile long mLastResumeMillis = -1;
+
+    private volatile int mSwapDiscardCount;
+    private volatile long mSwapNanos;
+    private volatile long mLastSwapMillis = -1;
+
+    private final OutputLevelController mLevelController = new OutputLevelController();
+    private volatile boolean mOutputLevelControlEnabled = true;
+
+    private boolean mCalibrationEnabled;
+    private CalibrationStore mCalibrationStore;
+    private volatile CalibrationProfile mCalibrationProfile;
+    private volatile Calibrator mCalibrator;
+    private float mVolumeFraction = DEFAULT_VOLUME_FRACTION;
+
+    private boolean mPrewarmEnabled;
+    private final Object mPrewarmLock = new Object();
+    // Incremented whenever the audio is released, so a pending prewarm can tell it is stale
+    private int mAudioGeneration;
+
+    private boolean mWarmStartEnabled;
+    private volatile WarmStartStore mWarmStartStore;
+    private String mHeadsetFingerprint;
+    private volatile WarmStartStore.State mWarmStartState;
+    private volatile int mInputSampleRate;
+    private volatile float mLastTemperature = Float.NaN;
+    private volatile long mPlugNanos;
+    private volatile long mLastConnectionMillis = -1;
+    private volatile boolean mLastConnectionWarm;
+
+    private volatile ReadingLog mReadingLog;
+    private volatile ReadingAggregator mReadingAggregator;
+    private volatile EquilibriumEstimator mEquilibriumEstimator;
+    private volatile LatencyTracer mLatencyTracer;
+    // The trace of the reading delivered last, only set on the main thread
+    private volatile ReadingTrace mLastReadingTrace;
+    private volatile CaptureWriter mCaptureWriter;
+    private volatile CaptureQueue mCaptureQueue;
+    private volatile ShadowAnalyzers mShadowAnalyzers;
+
+    // Builds the recorder, signal, device detector and analyzer in the background
+    private final FutureTask<Thermodo> mInitialization;
+    private volatile boolean mInitialized;
+    private long mConstructionNanos;
+    private volatile long mInitializationNanos = -1;
+    private volatile long mInitializationWaitNanos;
+
     private final Handler mHandler = new Handler(Looper.getMainLooper()) {
 
         @Override
@@ -76,17 +208,48 @@ public final class ThermodoImpl implements AudioRecorder.OnBufferFilledListener,
                     break;
                 case MSG_GOT_TEMPERATURE:
                     float temperature = msg.getData().getFloat(MSG_TEMPERATURE);
+                    ReadingTrace trace = (ReadingTrace) msg.obj;
+                    trace.deliveryNanos = System.nanoTime();
+                    mLastReadingTrace = trace;
+                    LatencyTracer latencyTracer = mLatencyTracer;
+                    if (latencyTracer != null)
+                        latencyTracer.record(trace);
                     mListener.onTemperatureMeasured(temperature);
                     break;
             }
         }
     };
 
+    private final Executor mMainThreadExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mHandler.post(command);
+        }
+    };
+
     private final BroadcastReceiver mHeadsetDetector = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
             int state = intent.getIntExtra("state", -1);
-            headSetPluggedIn(state == 1);
+            mHeadsetFingerprint = WarmStartStore.fingerprint(intent.getStringExtra("name"),
+                    intent.getIntExtra("microphone", -1), mSignalProfile);
+
+            //Debounce, so a bouncing jack contact doesn't restart the measurement
+            mPendingPlugged = state == 1;
+            mHandler.removeCallbacks(mPlugDebounce);
+            mHandler.postDelayed(mPlugDebounce, PLUG_DEBOUNCE_MILLIS);
+        }
+    };
+
+    private final Runnable mPlugDebounce = new Runnable() {
+        @Override
+        public void run() {
+            boolean pluggedIn = mPendingPlugged;
+            if (pluggedIn == mHeadsetPlugged)
+                return;
+
+            mHeadsetPlugged = pluggedIn;
+            headSetPluggedIn(pluggedIn);
         }
     };
 
@@ -95,15 +258,99 @@ public final class ThermodoImpl implements AudioRecorder.OnBufferFilledListener,
         mAppContext = context.getApplicationContext();
 
         //Instantiate required helpers classes
-        mRecorder = new AudioRecorder(this);
-        mAudioTrack = SoundGenerator.generateSweepSignal(NUMBER_OF_CELLS, PERIODS_PER_CELL,
-                SYNC_CELL_INDEX, FREQUENCY, REFERENCE_AMPLITUDE, UPPER_AMPLITUDE,
-                LOWER_AMPLITUDE);
-
         mAudioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
-        mDeviceDetector = new DeviceDetector(this);
-        mAnalyzer = new DefaultSignalAnalyzer();
+        mAudioBackend = new AndroidAudioBackend(new SystemAudioProperties(mAudioManager));
         mDeviceCheckEnabled = false; //disable device check by default
+
+        //Generating the signals takes a while, so the components are built in the background
+        mInitialization = new FutureTask<Thermodo>(new Callable<Thermodo>() {
+            @Override
+            public Thermodo call() {
+                initializeComponents();
+                return ThermodoImpl.this;
+            }
+        });
+        long startNanos = System.nanoTime();
+        new Thread(mInitialization, "ThermodoInit").start();
+        mConstructionNanos = System.nanoTime() - startNanos;
+    }
+
+    private void initializeComponents() {
+        long startNanos = System.nanoTime();
+        mRecorder = new AudioRecorder(this, mSignalProfile, mAudioBackend);
+        mAudioTrack = SoundGenerator.generateSweepSignal(mSignalProfile);
+        mDeviceDetector = new DeviceDetector(this, mSignalProfile, mRecorder, mAudioBackend,
+                mMainThreadExecutor);
+        mProbeAnalysis.set(new ProbeAnalysis(createSweepAnalyzer(mSignalProfile), -1));
+        mWarmStartStore = new WarmStartStore(mAppContext);
+        mInitializationNanos = System.nanoTime() - startNanos;
+        mInitialized = true;
+        sLog.info("Initialized in " + mInitializationNanos / 1000000 + " ms");
+    }
+
+    /**
+     * Blocks until the components are built by the background initialization. Called by every
+     * method using them, so they are only waited for when they are needed before they are ready.
+     */
+    private void awaitInitialization() {
+        if (mInitialized)
+            return;
+
+        long startNanos = System.nanoTime();
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    mInitialization.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Thermodo initialization failed", e.getCause());
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+
+        long waitNanos = System.nanoTime() - startNanos;
+        mInitializationWaitNanos += waitNanos;
+        sLog.info("Waited " + waitNanos / 1000000 + " ms for initialization");
+    }
+
+    /**
+     * @return A future completed with this instance once its components are built in the
+     * background, e.g. to start Thermodo without blocking on the initialization.
+     * <p/>
+     * NOTE: Keep this out of the main Thermodo interface until further testing
+     */
+    public Future<Thermodo> getReadyFuture() {
+        return mInitialization;
+    }
+
+    /**
+     * @return The time the constructor took, in microseconds.
+     */
+    public long getConstructionMicros() {
+        return mConstructionNanos / 1000;
+    }
+
+    /**
+     * @return The time the background initialization of the components took, in microseconds, or
+     * -1 if it hasn't finished yet.
+     */
+    public long getInitializationMicros() {
+        long nanos = mInitializationNanos;
+        return nanos < 0 ? -1 : nanos / 1000;
+    }
+
+    /**
+     * @return The total time callers were blocked waiting for the background initialization, in
+     * microseconds.
+     */
+    public long getInitializationWaitMicros() {
+        return mInitializationWaitNanos / 1000;
     }
 
 
@@ -117,7 +364,8 @@ public final class ThermodoImpl implements AudioRecorder.OnBufferFilledListener,
 
     @Override
     public void start() {
-        if (mIsRunning)
+        awaitInitialization();
+        if (!mState.compareAndSet(State.STOPPED, State.WAITING))
             return;
 
         //Request focus
@@ -126,6 +374,7 @@ public final class ThermodoImpl implements AudioRecorder.OnBufferFilledListener,
 
         //Couldn't get audio focus
         if (result != AudioManager.AUDIOFOCUS_REQUEST_GRANTED) {
+            mState.set(State.STOPPED);
             if (mListener != null)
                 mListener.onErrorOccurred(ERROR_AUDIO_FOCUS_GAIN_FAILED);
             return;
@@ -133,37 +382,112 @@ public final class ThermodoImpl implements AudioRecorder.OnBufferFilledListener,
 
         //Set listener for the headset detector
         mAppContext.registerReceiver(mHeadsetDetector, HEADSET_PLUG_INTENT_FILTER);
+
+        if (mPrewarmEnabled)
+            prewarm();
+        if (mWarmStartEnabled)
+            loadWarmStart();
+    }
+
+    /**
+     * Opens and primes the recording and playback in the background, so a plug event only has to
+     * start them. Called by {@link #start()} when prewarming is enabled, and can be called by the
+     * app as a hint that a Thermodo is about to be plugged in. The prepared audio is released by
+     * {@link #stop()}, and a prewarm still pending then is dropped.
+     * <p/>
+     * NOTE: Keep this out of the main Thermodo interface until further testing
+     */
+    public void prewarm() {
+        awaitInitialization();
+        final int generation;
+        synchronized (mPrewarmLock) {
+            generation = mAudioGeneration;
+        }
+        final AudioRecorder recorder = mRecorder;
+        final Sound track = mAudioTrack;
+        final DeviceDetector detector = mDeviceDetector;
+        final AudioBackend backend = mAudioBackend;
+        final boolean deviceCheckEnabled = mDeviceCheckEnabled;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long startNanos = System.nanoTime();
+                synchronized (mPrewarmLock) {
+                    //The audio was released since, e.g. by stop(), and would never be again
+                    if (generation != mAudioGeneration) {
+                        sLog.info("Prewarm skipped, the audio was released");
+                        return;
+                    }
+                    recorder.prepare();
+                    track.prepare(backend);
+                    if (deviceCheckEnabled)
+                        detector.prepare();
+                }
+                sLog.info("Prewarmed in " + (System.nanoTime() - startNanos) / 1000000 + " ms");
+            }
+        }, "ThermodoPrewarm").start();
+    }
+
+    /**
+     * Releases the recording and playback resources held between measurements.
+     */
+    private void releaseAudio() {
+        synchronized (mPrewarmLock) {
+            mAudioGeneration++;
+            mRecorder.release();
+            mAudioTrack.release();
+            mDeviceDetector.release();
+        }
     }
 
 
     @Override
     public boolean isRunning() {
-        return mIsRunning;
+        return mState.get() != State.STOPPED;
     }
 
     @Override
     public boolean isMeasuring() {
-        return mIsMeasuring;
+        return mState.get() == State.MEASURING;
+    }
+
+    /**
+     * @return The number of times measuring has been started, e.g. to check that plug and focus
+     * events don't restart the pipeline needlessly.
+     */
+    public int getMeasurementStartCount() {
+        return mMeasurementStartCount;
     }
 
     @Override
     public void stop() {
-        //If Thermodo isn't running we shouldn't execute this method
-        if (!mIsRunning)
+        //If Thermodo isn't running we shouldn't execute this method, apart from releasing the
+        //prewarmed audio. Nothing can be prewarmed before the initialization finished.
+        State previous = mState.getAndSet(State.STOPPED);
+        if (previous == State.STOPPED) {
+            if (mInitialized)
+                releaseAudio();
             return;
+        }
 
-        //Unregister for headset plug detection
-        //mAppContext.unregisterReceiver(mHeadsetDetector);
+        //Unregister for headset plug detection, so a plug event can't restart Thermodo. The plug
+        //state is delivered again when it is started.
+        mAppContext.unregisterReceiver(mHeadsetDetector);
+        mHandler.removeCallbacks(mPlugDebounce);
+        mHeadsetPlugged = false;
 
         //Stop measurements
-        stopMeasuring();
+        if (previous == State.DETECTING)
+            cancelDetection();
+        else if (previous == State.CALIBRATING)
+            cancelCalibration();
+        else if (previous == State.MEASURING)
+            stopMeasuring();
+        releaseAudio();
 
         //Restore volume settings
         restoreVolumeSettings();
         mAudioManager.abandonAudioFocus(this);
-
-        //Stop Thermodo
-        mIsRunning = false;
     }
 
     /**
@@ -173,26 +497,51 @@ public final class ThermodoImpl implements AudioRecorder.OnBufferFilledListener,
      * @param pluggedIn Represents is headset was plugged in.
      */
     private void headSetPluggedIn(boolean pluggedIn) {
-         mListener.onThermodoPlugged(pluggedIn);
-        //Set volume settings
-        if (pluggedIn)
-            setVolumeSettings();
+        if (mListener != null)
+            mListener.onThermodoPlugged(pluggedIn);
 
-        //If plugged and is running, check the device or directly start measuring
-        if (pluggedIn && !mIsMeasuring && checkAudioPermission()) {
-            mIsRunning = true;
-            if (mDeviceCheckEnabled)
-                checkDevice();
+        if (!pluggedIn) {
+            mThermodoIsPlugged = false;
+
+            //Stop whatever the plugged device was used for
+            if (mState.compareAndSet(State.DETECTING, State.WAITING))
+                cancelDetection();
+            else if (mState.compareAndSet(State.CALIBRATING, State.WAITING))
+                cancelCalibration();
+            else if (mState.compareAndSet(State.MEASURING, State.WAITING))
+                stopMeasuring();
             else
-                onDetectionResult(true);
-        } else if (mIsMeasuring) {
-            stopMeasuring();
-        } else if (!checkAudioPermission()) {
-            mListener.onPermissionsMissing();
+                return;
+
+            rearm();
+            return;
         }
 
-        if (mThermodoIsPlugged && !pluggedIn) {
-            mThermodoIsPlugged = false;
+        //If waiting for a Thermodo, check the device or directly start measuring
+        if (mState.get() != State.WAITING)
+            return;
+
+        if (!checkAudioPermission()) {
+            if (mListener != null)
+                mListener.onPermissionsMissing();
+            return;
+        }
+
+        //Set volume settings
+        applyCalibration();
+        setVolumeSettings();
+
+        mPlugNanos = System.nanoTime();
+        EquilibriumEstimator equilibriumEstimator = mEquilibriumEstimator;
+        if (equilibriumEstimator != null)
+            equilibriumEstimator.reset();
+        prepareWarmStart();
+        if (mDeviceCheckEnabled) {
+            if (mState.compareAndSet(State.WAITING, State.DETECTING))
+                checkDevice();
+        } else {
+            mThermodoIsPlugged = true;
+            calibrateOrStartMeasuring(State.WAITING);
         }
     }
 
@@ -200,40 +549,254 @@ public final class ThermodoImpl implements AudioRecorder.OnBufferFilledListener,
      * Checks if plugged in headset is thermodo or just generic headset(or phones).
      */
     private void checkDevice() {
-        //Start detection
-        mDeviceDetector.startDetection();
+        //Start detection, the recorder keeps running when it succeeds. A device confirmed by the
+        //test tone before only needs a short tone check, if its silence level matches.
+        WarmStartStore.State warmStartState = mWarmStartState;
+        mDeviceDetector.startDetection(warmStartState != null && warmStartState.toneRatio > 0
+                ? warmStartState.silenceLevel : -1);
+    }
+
+    /**
+     * Reads the saved warm start state from the disk on a background thread, so it is in memory
+     * when a Thermodo is plugged in.
+     */
+    private void loadWarmStart() {
+        final WarmStartStore store = mWarmStartStore;
+        if (store.isLoaded())
+            return;
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                store.load();
+            }
+        }, "ThermodoWarmStart").start();
+    }
+
+    /**
+     * Applies the warm start state saved for the plugged headset, if enabled and already loaded:
+     * the last audio source is tried first and a recent temperature seeds the analyzer.
+     */
+    private void prepareWarmStart() {
+        WarmStartStore store = mWarmStartStore;
+        WarmStartStore.State state = mWarmStartEnabled ? store.peek(mHeadsetFingerprint) : null;
+        mWarmStartState = state;
+        mLastConnectionWarm = state != null;
+        sLog.info("Warm start " + (state != null ? "hit"
+                : mWarmStartEnabled && !store.isLoaded() ? "miss, not loaded yet" : "miss"));
+        if (state == null)
+            return;
+
+        if (mAudioBackend instanceof AndroidAudioBackend)
+            ((AndroidAudioBackend) mAudioBackend).setPreferredAudioSource(state.audioSource);
+
+        long age = System.currentTimeMillis() - state.timestamp;
+        AbstractAnalyzer analyzer = mProbeAnalysis.get().analyzer;
+        if (analyzer instanceof CascadedSignalAnalyzer && !Float.isNaN(state.temperature)
+                && age >= 0 && age < WARM_START_TEMPERATURE_MAX_AGE)
+            ((CascadedSignalAnalyzer) analyzer).setLastTrustedTemperature(state.temperature);
+    }
+
+    /**
+     * Saves the warm start state of the current connection, if enabled. Detection levels which
+     * weren't measured this time are kept from the loaded state.
+     */
+    private void saveWarmStart() {
+        if (!mWarmStartEnabled || mHeadsetFingerprint == null)
+            return;
+
+        WarmStartStore.State previous = mWarmStartState;
+        WarmStartStore.State state = new WarmStartStore.State();
+        state.fingerprint = mHeadsetFingerprint;
+        state.silenceLevel = mDeviceDetector.getSilenceLevel();
+        state.toneRatio = mDeviceDetector.getToneRatio();
+        if (previous != null && state.silenceLevel < 0)
+            state.silenceLevel = previous.silenceLevel;
+        if (previous != null && state.toneRatio == 0)
+            state.toneRatio = previous.toneRatio;
+        if (mAudioBackend instanceof AndroidAudioBackend)
+            state.audioSource = ((AndroidAudioBackend) mAudioBackend).getLastAudioSource();
+        state.temperature = mLastTemperature;
+        state.timestamp = System.currentTimeMillis();
+        mWarmStartStore.save(state);
+    }
+
+    /**
+     * Prewarms the audio again for the next plug event, if prewarming is enabled.
+     */
+    private void rearm() {
+        if (mPrewarmEnabled)
+            prewarm();
+    }
+
+    /**
+     * Applies the calibration profile of the device model: a self-calibrated one when calibration
+     * is enabled and one was cached, otherwise the bundled one, if any.
+     */
+    private void applyCalibration() {
+        CalibrationProfile profile = mCalibrationEnabled
+                ? getCalibrationStore().load(Build.MODEL) : null;
+        if (profile == null)
+            profile = CalibrationTable.lookup(Build.MODEL);
+
+        mCalibrationProfile = profile;
+        mVolumeFraction = profile != null
+                ? profile.getVolumeFraction(DEFAULT_VOLUME_FRACTION) : DEFAULT_VOLUME_FRACTION;
+        if (profile != null && profile.audioSource >= 0
+                && mAudioBackend instanceof AndroidAudioBackend)
+            ((AndroidAudioBackend) mAudioBackend).setPreferredAudioSource(profile.audioSource);
     }
 
     /**
-     * Starts measurements.
+     * Self-calibrates the device model first if calibration is enabled and it wasn't calibrated
+     * yet, then starts measurements.
      */
-    private void startMeasuring() {
-        if (mIsMeasuring)
+    private void calibrateOrStartMeasuring(State from) {
+        CalibrationProfile profile = mCalibrationProfile;
+        if (!mCalibrationEnabled || (profile != null && profile.getCurveSize() > 0)) {
+            startMeasuring(from);
             return;
+        }
+
+        if (!mState.compareAndSet(from, State.CALIBRATING))
+            return;
+
+        //The calibration records on its own, so the capture of the device check isn't handed over
+        mRecorder.stopRecording();
+
+        final Calibrator calibrator = new Calibrator(mAudioBackend, new Calibrator.VolumeControl() {
+            @Override
+            public int getMaxVolume() {
+                return mAudioManager.getStreamMaxVolume(AudioManager.STREAM_MUSIC);
+            }
+
+            @Override
+            public int getVolume() {
+                return mAudioManager.getStreamVolume(AudioManager.STREAM_MUSIC);
+            }
+
+            @Override
+            public void setVolume(int volume) {
+                mAudioManager.setStreamVolume(AudioManager.STREAM_MUSIC, volume, 0);
+            }
+        }, mSignalProfile);
+        mCalibrator = calibrator;
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final CalibrationProfile profile = calibrator.calibrate(Build.MODEL);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onCalibrationFinished(calibrator, profile);
+                    }
+                });
+            }
+        }, "ThermodoCalibration").start();
+    }
+
+    private void onCalibrationFinished(Calibrator calibrator, CalibrationProfile profile) {
+        //A cancelled calibration had its settings restored when it was cancelled
+        if (calibrator != mCalibrator || mState.get() != State.CALIBRATING)
+            return;
+        mCalibrator = null;
+        calibrator.restoreSettings();
+
+        //Measure with the calibrated settings, or the previous ones if calibration failed
+        if (profile != null) {
+            getCalibrationStore().save(profile);
+            applyCalibration();
+            setVolumeSettings();
+        } else {
+            sLog.warning("Calibration failed");
+            applyCalibration();
+        }
+        startMeasuring(State.CALIBRATING);
+    }
+
+    private void cancelCalibration() {
+        Calibrator calibrator = mCalibrator;
+        mCalibrator = null;
+        if (calibrator != null) {
+            //Once cancelled, the calibration thread leaves the settings alone, so they are
+            //restored here, before the caller restores its own
+            calibrator.cancel();
+            calibrator.restoreSettings();
+        }
+    }
+
+    private CalibrationStore getCalibrationStore() {
+        if (mCalibrationStore == null)
+            mCalibrationStore = new CalibrationStore(mAppContext);
+        return mCalibrationStore;
+    }
 
-        mAudioTrack.play(-1);
+    /**
+     * Cancels a running device check and stops its recording.
+     */
+    private void cancelDetection() {
+        mDeviceDetector.cancelDetection();
+        mRecorder.stopRecording();
+        clearFocusPause();
+    }
+
+    /**
+     * Ends a pause for a transient focus loss along with the recording it paused.
+     */
+    private void clearFocusPause() {
+        mFocusPaused = false;
+        mRecorder.resume();
+        mResumeNanos = 0;
+    }
+
+    /**
+     * Starts measurements, if Thermodo is in the specified state. Audio captured until the probe
+     * signal has settled is discarded, and the first buffer only holds a single frame, so the
+     * first reading comes as soon as possible after the device check.
+     *
+     * @return True, if measurements were started.
+     */
+    private boolean startMeasuring(State from) {
+        if (!mState.compareAndSet(from, State.MEASURING))
+            return false;
+
+        mMeasurementStartCount++;
+        mLevelController.reset();
+        mAudioTrack.setGain(mLevelController.getGain());
+        mAudioTrack.play(mAudioBackend, -1);
+
+        // Takes over the capture of the device check, if it is still running
+        int sampleRate = mInputSampleRate;
+        if (sampleRate <= 0)
+            sampleRate = mSignalProfile.sampleRate;
+        long startPosition = mRecorder.getCapturePosition()
+                + sampleRate * MEASUREMENT_START_SETTLE_MILLIS / 1000;
+        mRecorder.setListener(this, mSignalProfile.seconds, startPosition,
+                getSingleFrameBufferSamples(sampleRate));
         mRecorder.startRecording();
 
-        mIsMeasuring = true;
         //Notify that measurement started
         mHandler.sendEmptyMessage(MSG_STARTED_MEASURING);
+        return true;
     }
 
     /**
-     * Stops measurements.
+     * Stops measurements. The caller has already moved Thermodo out of the measuring state.
      */
     private void stopMeasuring() {
-        if (!mIsMeasuring)
-            return;
-
         //Reload track
         mAudioTrack.stop();
 
+        if (!Float.isNaN(mLastTemperature))
+            saveWarmStart();
+
         //Stop recorder
         mRecorder.stopRecording();
 
+        clearFocusPause();
+
         //Notify listener that we stop measuring temperature
-        mIsMeasuring = false;
         mHandler.sendEmptyMessage(MSG_STOPPED_MEASURING);
     }
 
@@ -241,14 +804,93 @@ public final class ThermodoImpl implements AudioRecorder.OnBufferFilledListener,
      * Analyzes specified data.
      */
     private void analyzeData(short[] data) {
+        long captureNanos = mRecorder.getBufferCaptureNanos();
+
+        CaptureQueue captureQueue = mCaptureQueue;
+        if (captureQueue != null)
+            captureQueue.submit(data, mInputSampleRate);
+
+        //Skip the buffers recorded while the probe signal was swapped. The analyzer is read
+        //along with the position, so a buffer of the previous signal never reaches the new one.
+        ProbeAnalysis probeAnalysis = mProbeAnalysis.get();
+        if (probeAnalysis.discardUntilPosition >= 0) {
+            if (mRecorder.getBufferStartPosition() < probeAnalysis.discardUntilPosition) {
+                mSwapDiscardCount++;
+                return;
+            }
+            if (mProbeAnalysis.compareAndSet(probeAnalysis,
+                    new ProbeAnalysis(probeAnalysis.analyzer, -1)))
+                sLog.info("Discarded " + mSwapDiscardCount + " buffers until the probe settled");
+        }
+
+        SignalPreFilter preFilter = mPreFilter;
+        if (preFilter != null)
+            preFilter.process(data);
+
+        long analysisStartNanos = System.nanoTime();
+        AnalyzerResult result = probeAnalysis.analyzer.resultFromAnalyzingData(data);
+        long analysisEndNanos = System.nanoTime();
+        long analysisNanos = analysisEndNanos - analysisStartNanos;
+
+        ShadowAnalyzers shadowAnalyzers = mShadowAnalyzers;
+        if (shadowAnalyzers != null && mState.get() == State.MEASURING)
+            shadowAnalyzers.submit(data, result, analysisNanos);
+
+        //Keep headroom below clipping by adjusting the level of the played signal
+        if (mOutputLevelControlEnabled && mLevelController.update(result))
+            mAudioTrack.setGain(mLevelController.getGain());
+
+        AnalyzerFlightRecorder flightRecorder = mFlightRecorder;
+        if (flightRecorder != null && mState.get() == State.MEASURING)
+            flightRecorder.checkResult(result);
+
+        if (mState.get() == State.MEASURING && result.numberOfFrames > 0) {
+            mLastTemperature = result.temperature;
+
+            long timestamp = System.currentTimeMillis();
+            ReadingLog readingLog = mReadingLog;
+            if (readingLog != null)
+                readingLog.append(timestamp, result.temperature);
+            ReadingAggregator readingAggregator = mReadingAggregator;
+            if (readingAggregator != null)
+                readingAggregator.add(timestamp, result.temperature);
+            // The estimator needs the intervals between readings, which the wall clock can skew
+            EquilibriumEstimator equilibriumEstimator = mEquilibriumEstimator;
+            if (equilibriumEstimator != null)
+                equilibriumEstimator.add(SystemClock.elapsedRealtime(), result.temperature);
+
+            // The first reading of a connection completes it
+            long plugNanos = mPlugNanos;
+            if (plugNanos != 0) {
+                mPlugNanos = 0;
+                mLastConnectionMillis = (System.nanoTime() - plugNanos) / 1000000;
+                sLog.info("First reading " + mLastConnectionMillis + " ms after plugging in");
+                saveWarmStart();
+            }
 
-        AnalyzerResult result = mAnalyzer.resultFromAnalyzingData(data);
+            long resumeNanos = mResumeNanos;
+            if (resumeNanos != 0) {
+                mResumeNanos = 0;
+                mLastResumeMillis = (System.nanoTime() - resumeNanos) / 1000000;
+            }
 
-        if (mIsRunning && result.numberOfFrames > 0) {
+            long swapNanos = mSwapNanos;
+            if (swapNanos != 0) {
+                mSwapNanos = 0;
+                mLastSwapMillis = (System.nanoTime() - swapNanos) / 1000000;
+                sLog.info("First reading " + mLastSwapMillis + " ms after swapping the probe");
+            }
 
+            ReadingTrace trace = new ReadingTrace();
+            trace.temperature = result.temperature;
+            trace.captureNanos = captureNanos;
+            trace.captureTimeFromInput = mRecorder.isBufferCaptureTimeFromInput();
+            trace.analysisStartNanos = analysisStartNanos;
+            trace.analysisEndNanos = analysisEndNanos;
 
             Message msg = mHandler.obtainMessage();
             msg.what = MSG_GOT_TEMPERATURE;
+            msg.obj = trace;
 
             Bundle msgData = new Bundle();
             msgData.putFloat(MSG_TEMPERATURE, result.temperature);
@@ -272,14 +914,17 @@ public final class ThermodoImpl implements AudioRecorder.OnBufferFilledListener,
         mAudioManager.setStreamMute(AudioManager.STREAM_MUSIC, false);
         mAudioManager.setStreamSolo(AudioManager.STREAM_MUSIC, true);
 
-        // Set volume to 85% of maximum, saving previous value
+        // Set volume to the calibrated fraction of maximum, by default 85%, saving previous value
+        // unless it was saved by an earlier plug event which wasn't restored yet
         int maxVolume = mAudioManager.getStreamMaxVolume(AudioManager.STREAM_MUSIC);
-        int desiredVolume = maxVolume * 85 / 100;
-        mPreviousVolume = mAudioManager.getStreamVolume(AudioManager.STREAM_MUSIC);
-
-        int minAllowedVolume = maxVolume * 80 / 100;
-        int maxAllowedVolume = maxVolume * 90 / 100;
-        if (minAllowedVolume <= mPreviousVolume && mPreviousVolume <= maxAllowedVolume)
+        int desiredVolume = (int) (maxVolume * mVolumeFraction);
+        int currentVolume = mAudioManager.getStreamVolume(AudioManager.STREAM_MUSIC);
+        if (mPreviousVolume < 0)
+            mPreviousVolume = currentVolume;
+
+        int minAllowedVolume = (int) (maxVolume * (mVolumeFraction - 0.05f));
+        int maxAllowedVolume = (int) (maxVolume * (mVolumeFraction + 0.05f));
+        if (minAllowedVolume <= currentVolume && currentVolume <= maxAllowedVolume)
             return; // Already within working range
 
         // Try to change the volume without notifying the user
@@ -304,35 +949,299 @@ public final class ThermodoImpl implements AudioRecorder.OnBufferFilledListener,
      * Restores settings to those which were before calling {@link ThermodoImpl#setVolumeSettings()}.
      */
     private void restoreVolumeSettings() {
+        //Nothing to restore if the settings weren't changed since the last restore
+        if (mPreviousVolume < 0)
+            return;
+
         //Restore audio settings
         mAudioManager.setStreamVolume(AudioManager.STREAM_MUSIC, mPreviousVolume, 0);
         mAudioManager.setStreamSolo(AudioManager.STREAM_MUSIC, false);
+        mPreviousVolume = -1;
     }
 
     public void switchToSimplifiedAnalyzer(boolean switchToSimple) {
-        boolean wasRunning = mIsRunning;
-        if (mIsRunning)
-            stop();
-
-        if (switchToSimple) {
-            if (!(mAnalyzer instanceof SimplifiedSignalAnalyzer)) {
-                mAnalyzer = new SimplifiedSignalAnalyzer();
-                mAudioTrack = SoundGenerator.generateL2RSignal((int) (SECONDS / 2 * 1000),
-                        FREQUENCY);
-            }
+        awaitInitialization();
+        if (switchToSimple == mProbeAnalysis.get().analyzer instanceof SimplifiedSignalAnalyzer)
+            return;
 
+        if (switchToSimple)
+            swapProbe(new SimplifiedSignalAnalyzer(),
+                    SoundGenerator.generateL2RSignal(mSignalProfile));
+        else
+            swapProbe(createSweepAnalyzer(mSignalProfile),
+                    SoundGenerator.generateSweepSignal(mSignalProfile));
+    }
+
+    /**
+     * Sets the analyzer of the recorded buffers, without interrupting the measurement. The
+     * analyzer must match the played probe signal, see {@link #setProbeSignal(Sound)}.
+     * <p/>
+     * NOTE: Keep this out of the main Thermodo interface until further testing
+     */
+    public void setAnalyzer(AbstractAnalyzer analyzer) {
+        if (analyzer == null)
+            throw new IllegalArgumentException("Analyzer can't be null");
+        awaitInitialization();
+        swapProbe(analyzer, mAudioTrack);
+    }
+
+    /**
+     * Sets the signal played to probe the Thermodo, without interrupting the measurement: while
+     * measuring, the new signal replaces the playing one right away and the recording keeps
+     * running, but the buffers recorded until the new signal arrives are discarded. The signal
+     * must match the analyzer, see {@link #setAnalyzer(AbstractAnalyzer)}.
+     * <p/>
+     * NOTE: Keep this out of the main Thermodo interface until further testing
+     */
+    public void setProbeSignal(Sound signal) {
+        if (signal == null)
+            throw new IllegalArgumentException("Probe signal can't be null");
+        awaitInitialization();
+        swapProbe(mProbeAnalysis.get().analyzer, signal);
+    }
+
+    /**
+     * @return The played probe signal.
+     */
+    public Sound getProbeSignal() {
+        awaitInitialization();
+        return mAudioTrack;
+    }
+
+    /**
+     * Replaces the analyzer and the played signal while the recording keeps running. Buffers are
+     * delivered to the analyzer in use when they are filled, so they are only discarded when the
+     * signal changes: up to the capture position reached after the settle time.
+     */
+    private void swapProbe(AbstractAnalyzer analyzer, Sound signal) {
+        long startNanos = System.nanoTime();
+        int sampleRate = mInputSampleRate;
+        if (sampleRate > 0)
+            analyzer.setSampleRate(sampleRate);
+        applyFlightRecorder(analyzer);
+
+        Sound previous = mAudioTrack;
+        if (signal == previous) {
+            replaceAnalyzer(analyzer);
+            return;
+        }
+
+        signal.setGain(mLevelController.getGain());
+        if (mState.get() == State.MEASURING) {
+            signal.prepare(mAudioBackend);
+
+            if (sampleRate <= 0)
+                sampleRate = mSignalProfile.sampleRate;
+            mSwapDiscardCount = 0;
+            mProbeAnalysis.set(new ProbeAnalysis(analyzer, mRecorder.getPosition()
+                    + sampleRate * PROBE_SWAP_SETTLE_MILLIS / 1000));
+            mAudioTrack = signal;
+
+            previous.stop();
+            signal.play(mAudioBackend, -1);
+            if (mFocusPaused)
+                signal.pause();
+            mSwapNanos = System.nanoTime();
         } else {
-            if (!(mAnalyzer instanceof DefaultSignalAnalyzer)) {
-                mAnalyzer = new DefaultSignalAnalyzer();
-                mAudioTrack = SoundGenerator.generateSweepSignal(NUMBER_OF_CELLS, PERIODS_PER_CELL,
-                        SYNC_CELL_INDEX, FREQUENCY, REFERENCE_AMPLITUDE, UPPER_AMPLITUDE,
-                        LOWER_AMPLITUDE);
-            }
+            replaceAnalyzer(analyzer);
+            mAudioTrack = signal;
+        }
+
+        synchronized (mPrewarmLock) {
+            previous.release();
         }
+        if (mState.get() == State.WAITING)
+            rearm();
+        sLog.info("Swapped the probe in " + (System.nanoTime() - startNanos) / 1000 + " us");
+    }
+
+    /**
+     * Replaces the analyzer, keeping the capture position until which buffers are discarded.
+     */
+    private void replaceAnalyzer(AbstractAnalyzer analyzer) {
+        ProbeAnalysis probeAnalysis;
+        do {
+            probeAnalysis = mProbeAnalysis.get();
+        } while (!mProbeAnalysis.compareAndSet(probeAnalysis,
+                new ProbeAnalysis(analyzer, probeAnalysis.discardUntilPosition)));
+    }
+
+    /**
+     * Discards the buffers starting before the capture position, or none if -1, keeping the
+     * analyzer.
+     */
+    private void setDiscardUntilPosition(long position) {
+        ProbeAnalysis probeAnalysis;
+        do {
+            probeAnalysis = mProbeAnalysis.get();
+        } while (!mProbeAnalysis.compareAndSet(probeAnalysis,
+                new ProbeAnalysis(probeAnalysis.analyzer, position)));
+    }
+
+    /**
+     * Sets whether the sweep signal is analyzed by a {@link CascadedSignalAnalyzer}, which only
+     * analyzes the whole buffer when a cheaper partial analysis can't be trusted. By default the
+     * {@link DefaultSignalAnalyzer} is used. Has no effect while the simplified analyzer is used.
+     * <p/>
+     * NOTE: Keep this out of the main Thermodo interface until further testing
+     */
+    public void setCascadedAnalyzerEnabled(boolean enabled) {
+        if (enabled == mCascadedAnalyzerEnabled)
+            return;
+
+        awaitInitialization();
+        mCascadedAnalyzerEnabled = enabled;
+        if (!(mProbeAnalysis.get().analyzer instanceof SimplifiedSignalAnalyzer))
+            swapProbe(createSweepAnalyzer(mSignalProfile), mAudioTrack);
+    }
+
+    /**
+     * Checks whether the sweep signal is analyzed by a {@link CascadedSignalAnalyzer}.
+     */
+    public boolean isCascadedAnalyzerEnabled() {
+        return mCascadedAnalyzerEnabled;
+    }
+
+    /**
+     * Sets whether the recorded buffers are cleaned of a DC offset and low frequency hum by a
+     * {@link SignalPreFilter} before they are analyzed. Disabled by default. Takes effect from the
+     * next analyzed buffer, without interrupting a measurement.
+     * <p/>
+     * NOTE: Keep this out of the main Thermodo interface until further testing
+     */
+    public void setPreFilterEnabled(boolean enabled) {
+        if (enabled == (mPreFilter != null))
+            return;
+
+        SignalPreFilter preFilter = null;
+        if (enabled) {
+            preFilter = new SignalPreFilter(mSignalProfile);
+            int sampleRate = mInputSampleRate;
+            if (sampleRate > 0)
+                preFilter.setSampleRate(sampleRate);
+        }
+        mPreFilter = preFilter;
+    }
+
+    /**
+     * Checks whether the recorded buffers are pre-filtered before they are analyzed.
+     * <p/>
+     * NOTE: Keep this out of the main Thermodo interface until further testing
+     */
+    public boolean isPreFilterEnabled() {
+        return mPreFilter != null;
+    }
+
+    /**
+     * @return The analyzer currently used, e.g. to read the statistics of a {@link
+     * CascadedSignalAnalyzer}.
+     */
+    public AbstractAnalyzer getAnalyzer() {
+        awaitInitialization();
+        return mProbeAnalysis.get().analyzer;
+    }
+
+    private AbstractAnalyzer createSweepAnalyzer(SignalProfile profile) {
+        AbstractAnalyzer analyzer = mCascadedAnalyzerEnabled ? new CascadedSignalAnalyzer(profile)
+                : new DefaultSignalAnalyzer(profile);
+        applyFlightRecorder(analyzer);
+        return analyzer;
+    }
+
+    private void applyFlightRecorder(AbstractAnalyzer analyzer) {
+        if (analyzer instanceof DefaultSignalAnalyzer)
+            ((DefaultSignalAnalyzer) analyzer).setFlightRecorder(mFlightRecorder);
+        else if (analyzer instanceof CascadedSignalAnalyzer)
+            ((CascadedSignalAnalyzer) analyzer).setFlightRecorder(mFlightRecorder);
+    }
+
+    /**
+     * Sets the recorder keeping the intermediates of the last analyses of the sweep signal for
+     * diagnostics, or {@code null} to stop recording them. Measured results are checked for
+     * anomalies, which its listener is notified of.
+     * <p/>
+     * NOTE: Keep this out of the main Thermodo interface until further testing
+     */
+    public void setFlightRecorder(AnalyzerFlightRecorder flightRecorder) {
+        awaitInitialization();
+        mFlightRecorder = flightRecorder;
+        applyFlightRecorder(mProbeAnalysis.get().analyzer);
+    }
+
+    public AnalyzerFlightRecorder getFlightRecorder() {
+        return mFlightRecorder;
+    }
+
+    @Override
+    public void setSignalProfile(SignalProfile profile) {
+        if (profile == null)
+            throw new IllegalArgumentException("Signal profile can't be null");
+        if (profile == mSignalProfile)
+            return;
+
+        awaitInitialization();
+        boolean wasRunning = isRunning();
+        stop();
+
+        mSignalProfile = profile;
+        mRecorder.setSignalProfile(profile);
+        mDeviceDetector = new DeviceDetector(this, profile, mRecorder, mAudioBackend,
+                mMainThreadExecutor);
+        if (mProbeAnalysis.get().analyzer instanceof SimplifiedSignalAnalyzer) {
+            mAudioTrack = SoundGenerator.generateL2RSignal(profile);
+        } else {
+            replaceAnalyzer(createSweepAnalyzer(profile));
+            mAudioTrack = SoundGenerator.generateSweepSignal(profile);
+        }
+        if (mPreFilter != null)
+            mPreFilter = new SignalPreFilter(profile);
+        CaptureWriter captureWriter = mCaptureWriter;
+        if (captureWriter != null)
+            captureWriter.setSignalProfile(profile);
+
         if (wasRunning)
             start();
     }
 
+    @Override
+    public SignalProfile getSignalProfile() {
+        return mSignalProfile;
+    }
+
+    /**
+     * Sets the {@link AudioBackend} used for recording and playback. By default an {@link
+     * AndroidAudioBackend} is used. If Thermodo is running, it is restarted with the new backend.
+     * <p/>
+     * NOTE: Keep this out of the main Thermodo interface, it is meant for testing and profiling.
+     */
+    public void setAudioBackend(AudioBackend backend) {
+        awaitInitialization();
+        boolean wasRunning = isRunning();
+        stop();
+
+        mAudioBackend = backend;
+        mRecorder = new AudioRecorder(this, mSignalProfile, backend);
+        mDeviceDetector = new DeviceDetector(this, mSignalProfile, mRecorder, backend,
+                mMainThreadExecutor);
+
+        if (wasRunning)
+            start();
+    }
+
+    @Override
+    public void onRecordingStarted(int sampleRate) {
+        mInputSampleRate = sampleRate;
+        //Capture positions start over with a new recording
+        mProbeAnalysis.get().analyzer.setSampleRate(sampleRate);
+        setDiscardUntilPosition(-1);
+        ShadowAnalyzers shadowAnalyzers = mShadowAnalyzers;
+        if (shadowAnalyzers != null)
+            shadowAnalyzers.setSampleRate(sampleRate);
+        SignalPreFilter preFilter = mPreFilter;
+        if (preFilter != null)
+            preFilter.setSampleRate(sampleRate);
+    }
+
     @Override
     public void onBufferFilled(short[] data) {
         analyzeData(data);
@@ -348,8 +1257,10 @@ public final class ThermodoImpl implements AudioRecorder.OnBufferFilledListener,
             @Override
             public void run() {
                 // NOTE: Calling stopMeasuring will stop the AudioRecorder and will do the cleanup
-                stopMeasuring();
-                mListener.onErrorOccurred(ERROR_AUDIO_RECORD_FAILURE);
+                if (mState.compareAndSet(State.MEASURING, State.WAITING))
+                    stopMeasuring();
+                if (mListener != null)
+                    mListener.onErrorOccurred(ERROR_AUDIO_RECORD_FAILURE);
             }
         });
     }
@@ -384,22 +1295,379 @@ public final class ThermodoImpl implements AudioRecorder.OnBufferFilledListener,
         return mDeviceCheckEnabled;
     }
 
+    /**
+     * Sets whether the level of the played signal is adjusted from the recorded buffers to avoid
+     * clipping, see {@link OutputLevelController}. Enabled by default.
+     * <p/>
+     * NOTE: Keep this out of the main Thermodo interface until further testing
+     */
+    public void setOutputLevelControlEnabled(boolean enabled) {
+        awaitInitialization();
+        mOutputLevelControlEnabled = enabled;
+        if (!enabled) {
+            mLevelController.reset();
+            mAudioTrack.setGain(mLevelController.getGain());
+        }
+    }
+
+    /**
+     * Checks whether the level of the played signal is adjusted to avoid clipping.
+     * <p/>
+     * NOTE: Keep this out of the main Thermodo interface until further testing
+     */
+    public boolean isOutputLevelControlEnabled() {
+        return mOutputLevelControlEnabled;
+    }
+
+    /**
+     * @return The output level controller, e.g. to read the fraction of discarded buffers.
+     */
+    public OutputLevelController getOutputLevelController() {
+        return mLevelController;
+    }
+
+    /**
+     * Sets whether the audio settings are self-calibrated for the device model. When enabled, the
+     * first Thermodo plugged into a model which wasn't calibrated yet is calibrated before
+     * measuring, which takes several seconds. The result is cached and used from then on. By
+     * default only the bundled {@link CalibrationTable} is used.
+     * <p/>
+     * NOTE: Keep this out of the main Thermodo interface until further testing
+     */
+    public void setCalibrationEnabled(boolean enabled) {
+        mCalibrationEnabled = enabled;
+    }
+
+    /**
+     * Checks whether the audio settings are self-calibrated for the device model.
+     * <p/>
+     * NOTE: Keep this out of the main Thermodo interface until further testing
+     */
+    public boolean isCalibrationEnabled() {
+        return mCalibrationEnabled;
+    }
+
+    /**
+     * @return The calibration profile used for the last connected Thermodo, or {@code null} if
+     * none was found.
+     */
+    public CalibrationProfile getCalibrationProfile() {
+        return mCalibrationProfile;
+    }
+
+    /**
+     * Removes the cached calibration of the device model, so it is calibrated again the next time
+     * a Thermodo is plugged in, if calibration is enabled.
+     */
+    public void clearCalibration() {
+        getCalibrationStore().remove(Build.MODEL);
+    }
+
+    /**
+     * Sets whether the recording and playback are prepared in the background by {@link #start()}
+     * and after each measurement, taking their setup off the path from a plug event to the first
+     * reading (see {@link #getLastConnectionMillis()}). Disabled by default, as the prepared
+     * audio is held while waiting for a Thermodo.
+     * <p/>
+     * NOTE: Keep this out of the main Thermodo interface until further testing
+     */
+    public void setPrewarmEnabled(boolean enabled) {
+        mPrewarmEnabled = enabled;
+    }
+
+    /**
+     * Checks whether the recording and playback are prepared in the background.
+     * <p/>
+     * NOTE: Keep this out of the main Thermodo interface until further testing
+     */
+    public boolean isPrewarmEnabled() {
+        return mPrewarmEnabled;
+    }
+
+    /**
+     * Sets whether what is learned about a connected Thermodo is persisted, so reconnecting it
+     * shortens the test tone, if the silence level matches, and seeds the analyzer with the last
+     * reading. The saved state is read in the background when started. Disabled by default.
+     * <p/>
+     * NOTE: Keep this out of the main Thermodo interface until further testing
+     */
+    public void setWarmStartEnabled(boolean enabled) {
+        mWarmStartEnabled = enabled;
+        if (enabled && isRunning())
+            loadWarmStart();
+    }
+
+    /**
+     * Checks whether warm start state is persisted and used.
+     * <p/>
+     * NOTE: Keep this out of the main Thermodo interface until further testing
+     */
+    public boolean isWarmStartEnabled() {
+        return mWarmStartEnabled;
+    }
+
+    /**
+     * @return The time from plugging in the last connected Thermodo to its first reading, in
+     * milliseconds, or -1 if no reading was made yet.
+     */
+    public long getLastConnectionMillis() {
+        return mLastConnectionMillis;
+    }
+
+    /**
+     * @return True, if a warm start state was found for the last connected Thermodo.
+     */
+    public boolean wasLastConnectionWarm() {
+        return mLastConnectionWarm;
+    }
+
+    /**
+     * Sets the log every measured temperature is appended to, or {@code null} to stop logging.
+     * The log isn't closed by this instance.
+     * <p/>
+     * NOTE: Keep this out of the main Thermodo interface until further testing
+     */
+    public void setReadingLog(ReadingLog readingLog) {
+        mReadingLog = readingLog;
+    }
+
+    /**
+     * @return The log measured temperatures are appended to, or {@code null} if none is set.
+     */
+    public ReadingLog getReadingLog() {
+        return mReadingLog;
+    }
+
+    /**
+     * Sets the analyzers run in shadow mode on copies of the measured buffers, e.g. to compare a
+     * new analyzer with the one in use, or {@code null} to stop. The results of the analyzer in
+     * use are the ones reported. They aren't shut down by this instance.
+     * <p/>
+     * NOTE: Keep this out of the main Thermodo interface until further testing
+     */
+    public void setShadowAnalyzers(ShadowAnalyzers shadowAnalyzers) {
+        int sampleRate = mInputSampleRate;
+        if (shadowAnalyzers != null && sampleRate > 0)
+            shadowAnalyzers.setSampleRate(sampleRate);
+        mShadowAnalyzers = shadowAnalyzers;
+    }
+
+    /**
+     * @return The analyzers run in shadow mode, or {@code null} if none are set.
+     */
+    public ShadowAnalyzers getShadowAnalyzers() {
+        return mShadowAnalyzers;
+    }
+
+    /**
+     * Sets the capture every recorded buffer is written to as it was recorded, before it is
+     * pre-filtered, or {@code null} to stop capturing. The buffers are encoded and written on a
+     * background thread. When it falls behind, buffers are dropped and left out of the capture as
+     * gaps, see {@link #getDroppedCaptureCount()}. The capture isn't closed by this instance, so
+     * the buffers queued for the previous one are written before this returns, and it is dropped
+     * if writing to it fails.
+     * <p/>
+     * NOTE: Keep this out of the main Thermodo interface until further testing
+     */
+    public void setCaptureWriter(CaptureWriter captureWriter) {
+        CaptureQueue previous = mCaptureQueue;
+        mCaptureQueue = null;
+        if (previous != null && !previous.finish(CAPTURE_FINISH_TIMEOUT_MILLIS))
+            sLog.warning("Capture not finished in time, it may miss the last buffers");
+
+        if (captureWriter != null) {
+            captureWriter.setSignalProfile(mSignalProfile);
+            mCaptureQueue = new CaptureQueue(captureWriter);
+        }
+        mCaptureWriter = captureWriter;
+    }
+
+    /**
+     * @return The capture recorded buffers are written to, or {@code null} if none is set.
+     */
+    public CaptureWriter getCaptureWriter() {
+        return mCaptureWriter;
+    }
+
+    /**
+     * Returns the number of recorded buffers left out of the current capture because writing it
+     * fell behind.
+     * <p/>
+     * NOTE: Keep this out of the main Thermodo interface until further testing
+     */
+    public int getDroppedCaptureCount() {
+        CaptureQueue captureQueue = mCaptureQueue;
+        return captureQueue != null ? captureQueue.getDroppedCount() : 0;
+    }
+
+    /**
+     * Sets the aggregator every measured temperature is added to, e.g. for live charts, or {@code
+     * null} to stop aggregating.
+     * <p/>
+     * NOTE: Keep this out of the main Thermodo interface until further testing
+     */
+    public void setReadingAggregator(ReadingAggregator readingAggregator) {
+        mReadingAggregator = readingAggregator;
+    }
+
+    /**
+     * @return The aggregator measured temperatures are added to, or {@code null} if none is set.
+     */
+    public ReadingAggregator getReadingAggregator() {
+        return mReadingAggregator;
+    }
+
+    /**
+     * Sets the estimator every measured temperature is added to, to predict the temperature the
+     * probe settles at before it does, or {@code null} to stop estimating. It is reset whenever a
+     * Thermodo is plugged in.
+     * <p/>
+     * NOTE: Keep this out of the main Thermodo interface until further testing
+     */
+    public void setEquilibriumEstimator(EquilibriumEstimator equilibriumEstimator) {
+        mEquilibriumEstimator = equilibriumEstimator;
+    }
+
+    /**
+     * @return The estimator measured temperatures are added to, or {@code null} if none is set.
+     */
+    public EquilibriumEstimator getEquilibriumEstimator() {
+        return mEquilibriumEstimator;
+    }
+
+    /**
+     * Sets the tracer the latencies of every delivered reading are recorded to, or {@code null} to
+     * stop recording them.
+     * <p/>
+     * NOTE: Keep this out of the main Thermodo interface until further testing
+     */
+    public void setLatencyTracer(LatencyTracer latencyTracer) {
+        mLatencyTracer = latencyTracer;
+    }
+
+    /**
+     * @return The tracer latencies are recorded to, or {@code null} if none is set.
+     */
+    public LatencyTracer getLatencyTracer() {
+        return mLatencyTracer;
+    }
+
+    /**
+     * @return The timeline of the reading delivered last, from the capture of its audio to the
+     * listener, or {@code null} if none was delivered yet. Called from {@link
+     * ThermodoListener#onTemperatureMeasured(float)}, it is the one of the reading being
+     * delivered.
+     * <p/>
+     * NOTE: Keep this out of the main Thermodo interface until further testing
+     */
+    public ReadingTrace getLastReadingTrace() {
+        return mLastReadingTrace;
+    }
+
     @Override
     public void onAudioFocusChange(int focusChange) {
-        //If it's not gain, we should stop
-        if (focusChange != AudioManager.AUDIOFOCUS_GAIN && mIsRunning)
-            stop();
+        if (!isRunning())
+            return;
+
+        switch (focusChange) {
+            case AudioManager.AUDIOFOCUS_GAIN:
+                resumeAfterFocusLoss();
+                break;
+            case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT:
+            case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK:
+                //A short loss, e.g. a notification sound, only pauses the measurement
+                pauseForFocusLoss();
+                break;
+            default:
+                stop();
+                break;
+        }
     }
 
-    @Override
-    public void onDetectionResult(boolean thermodoDetected) {
-        //If thermodo is detected and state is running, start measurements
-        if (thermodoDetected && mIsRunning)
-            startMeasuring();
+    /**
+     * Pauses the playback and the analysis while keeping the recording and the analyzer state.
+     * Only a measurement is paused, the device check and the calibration run on.
+     */
+    private void pauseForFocusLoss() {
+        if (mFocusPaused || mState.get() != State.MEASURING)
+            return;
+
+        long startNanos = System.nanoTime();
+        mFocusPaused = true;
+        mRecorder.pause();
+        mAudioTrack.pause();
+        mPauseNanos = System.nanoTime();
+        mLastPauseMillis = (mPauseNanos - startNanos) / 1000000;
+        sLog.info("Paused for a transient audio focus loss");
+    }
+
+    /**
+     * Resumes the playback and the analysis paused by {@link #pauseForFocusLoss()}. Audio
+     * captured until the resumed signal has settled is discarded, like after swapping the probe,
+     * and the first buffer after it only holds a single frame, so the next reading comes as soon
+     * as possible from fresh audio.
+     */
+    private void resumeAfterFocusLoss() {
+        if (!mFocusPaused)
+            return;
+
+        mFocusPaused = false;
+        mResumeNanos = System.nanoTime();
+        mAudioTrack.resume();
+
+        int sampleRate = mInputSampleRate;
+        if (sampleRate <= 0)
+            sampleRate = mSignalProfile.sampleRate;
+        long resumePosition = mRecorder.getCapturePosition()
+                + sampleRate * FOCUS_RESUME_SETTLE_MILLIS / 1000;
+        mSwapDiscardCount = 0;
+        setDiscardUntilPosition(resumePosition);
+        mRecorder.resume(resumePosition, getSingleFrameBufferSamples(sampleRate));
+        sLog.info("Resumed after " + (mResumeNanos - mPauseNanos) / 1000000 + " ms");
+    }
+
+    /**
+     * @return The length of the shortest buffer in which a frame is found, with the sync cells on
+     * both sides of it.
+     */
+    private int getSingleFrameBufferSamples(int sampleRate) {
+        return mSignalProfile.samplesPerCell(sampleRate) * (2 * mSignalProfile.numberOfCells + 2);
+    }
 
-        mThermodoIsPlugged = thermodoDetected;
+    /**
+     * @return The time it took to pause for the last transient audio focus loss, in
+     * milliseconds, or -1 if there was none.
+     */
+    public long getLastPauseMillis() {
+        return mLastPauseMillis;
+    }
+
+    /**
+     * @return The time from regaining audio focus after a transient loss to the next reading, in
+     * milliseconds, or -1 if there was none.
+     */
+    public long getLastResumeMillis() {
+        return mLastResumeMillis;
+    }
 
-        if (!mThermodoIsPlugged)
+    /**
+     * @return The time from swapping the probe signal while measuring to the next reading, in
+     * milliseconds, or -1 if there was none.
+     */
+    public long getLastSwapMillis() {
+        return mLastSwapMillis;
+    }
+
+    @Override
+    public void onDetectionResult(boolean thermodoDetected) {
+        //If thermodo is detected while detecting, start measurements on the same recording
+        if (thermodoDetected) {
+            mThermodoIsPlugged = mState.get() == State.DETECTING;
+            calibrateOrStartMeasuring(State.DETECTING);
+        } else if (mState.compareAndSet(State.DETECTING, State.WAITING)) {
+            mThermodoIsPlugged = false;
+            mRecorder.stopRecording();
             restoreVolumeSettings();
+        }
     }
 }
@@ -15,6 +15,7 @@ public class ThermodoMockImpl implements Thermodo {
 	private ThermodoListener mThermodoListener;
 	private boolean mRunning;
 	private boolean mMeasuring;
+	private SignalProfile mSignalProfile = SignalProfile.DEFAULT;
 
 	private final Handler mHandler;
 
@@ -90,4 +91,14 @@ public class ThermodoMockImpl implements Thermodo {
 	public ThermodoListener getThermodoListener() {
 		return this.mThermodoListener;
 	}
+
+	@Override
+	public void setSignalProfile(SignalProfile profile) {
+		this.mSignalProfile = profile;
+	}
+
+	@Override
+	public SignalProfile getSignalProfile() {
+		return this.mSignalProfile;
+	}
 }
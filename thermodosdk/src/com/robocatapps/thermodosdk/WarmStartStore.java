@@ -0,0 +1,142 @@
+package com.robocatapps.thermodosdk;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+
+/**
+ * Persists what was learned about the last connected Thermodo in the app's private preferences,
+ * so reconnecting the same device to the same phone can skip part of the detection and seed the
+ * analyzer.
+ * <p/>
+ * A single state is kept. It is only returned for the fingerprint it was saved with. It is read
+ * from the preferences once by {@link #load()}, which touches the disk and so belongs on a
+ * background thread, and kept in memory afterwards, so {@link #peek(String)} can be called at plug
+ * time on the main thread.
+ */
+public class WarmStartStore {
+
+    private static final String PREFERENCES_NAME = "com.robocatapps.thermodosdk.warmstart";
+
+    private static final String KEY_FINGERPRINT = "fingerprint";
+    private static final String KEY_SILENCE_LEVEL = "silence_level";
+    private static final String KEY_TONE_RATIO = "tone_ratio";
+    private static final String KEY_AUDIO_SOURCE = "audio_source";
+    private static final String KEY_TEMPERATURE = "temperature";
+    private static final String KEY_TIMESTAMP = "timestamp";
+
+    /**
+     * The persisted state of a connection.
+     */
+    public static class State {
+
+        // Identifies the phone, headset and signal the state was learned with
+        public String fingerprint;
+        // Robust maximum of the silence recorded by the detection, or -1 if not known
+        public int silenceLevel = -1;
+        // Ratio of the tone to the silence level recorded by the detection, or 0 if not known
+        public float toneRatio;
+        // Audio source the input was recorded from, or -1 if not known
+        public int audioSource = -1;
+        // Last measured temperature, or NaN if none was measured
+        public float temperature = Float.NaN;
+        // Wall clock time of the last measured temperature, in milliseconds
+        public long timestamp;
+    }
+
+    private final SharedPreferences mPreferences;
+    private volatile State mState;
+    private volatile boolean mLoaded;
+
+    public WarmStartStore(Context context) {
+        mPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Returns a fingerprint for the connected headset, using the extras of the {@link
+     * android.content.Intent#ACTION_HEADSET_PLUG} broadcast.
+     *
+     * @param headsetName The {@code name} extra of the broadcast, may be {@code null}.
+     * @param microphone  The {@code microphone} extra of the broadcast.
+     */
+    public static String fingerprint(String headsetName, int microphone, SignalProfile profile) {
+        return Build.MANUFACTURER + "/" + Build.MODEL + "/" + headsetName
+                + "/" + microphone + "/" + profile.name;
+    }
+
+    /**
+     * Reads the saved state from the preferences, the first time it is called. Blocks on the disk,
+     * so it should be called on a background thread.
+     *
+     * @return The saved state, whatever fingerprint it was saved with, or {@code null} if there is
+     * none.
+     */
+    public synchronized State load() {
+        if (mLoaded)
+            return mState;
+
+        String fingerprint = mPreferences.getString(KEY_FINGERPRINT, null);
+        State state = null;
+        if (fingerprint != null) {
+            state = new State();
+            state.fingerprint = fingerprint;
+            state.silenceLevel = mPreferences.getInt(KEY_SILENCE_LEVEL, -1);
+            state.toneRatio = mPreferences.getFloat(KEY_TONE_RATIO, 0);
+            state.audioSource = mPreferences.getInt(KEY_AUDIO_SOURCE, -1);
+            state.temperature = mPreferences.getFloat(KEY_TEMPERATURE, Float.NaN);
+            state.timestamp = mPreferences.getLong(KEY_TIMESTAMP, 0);
+        }
+        mState = state;
+        mLoaded = true;
+        return state;
+    }
+
+    /**
+     * @return True, if the saved state was read by {@link #load()} or replaced by {@link
+     * #save(State)}, so {@link #peek(String)} knows it.
+     */
+    public boolean isLoaded() {
+        return mLoaded;
+    }
+
+    /**
+     * Returns the saved state if it was saved with the specified fingerprint, without touching the
+     * disk, so it can be called on the main thread.
+     *
+     * @return The saved state, or {@code null} if another fingerprint was saved, nothing was saved
+     * or the state wasn't loaded yet.
+     */
+    public State peek(String fingerprint) {
+        State state = mState;
+        if (!mLoaded || state == null || fingerprint == null
+                || !fingerprint.equals(state.fingerprint))
+            return null;
+        return state;
+    }
+
+    /**
+     * Saves the state, replacing any previous one. Written asynchronously, so it can be called
+     * from any thread.
+     */
+    public synchronized void save(State state) {
+        mState = state;
+        mLoaded = true;
+        mPreferences.edit()
+                .putString(KEY_FINGERPRINT, state.fingerprint)
+                .putInt(KEY_SILENCE_LEVEL, state.silenceLevel)
+                .putFloat(KEY_TONE_RATIO, state.toneRatio)
+                .putInt(KEY_AUDIO_SOURCE, state.audioSource)
+                .putFloat(KEY_TEMPERATURE, state.temperature)
+                .putLong(KEY_TIMESTAMP, state.timestamp)
+                .apply();
+    }
+
+    /**
+     * Removes the saved state.
+     */
+    public synchronized void clear() {
+        mState = null;
+        mLoaded = true;
+        mPreferences.edit().clear().apply();
+    }
+}
@@ -11,6 +11,14 @@ public class AnalyzerResult {
     public float trendlineSlope;
     public float maxSample;
     public int numberOfFrames;
+    // Difference between the highest and the lowest per-frame intersection
+    public float intersectionSpread;
+    // Lowest coefficient of determination of the per-frame trendlines, 1 for a perfect fit
+    public float fitQuality;
+    // True if the buffer was discarded because the recorded signal clipped
+    public boolean clipped;
+    // Fraction of the detected frames left out of the result because they contain clipped samples
+    public float clippedFrameRatio;
     public String baseCellType;
     public Throwable error;
 }
@@ -5,9 +5,18 @@ import java.util.List;
 public class Frame {
 
     public final List<Cell> cells;
+    // Range of the frame in the analyzed buffer, start inclusive and end exclusive, or -1
+    public final int startIndex;
+    public final int endIndex;
 
     public Frame(List<Cell> cells) {
+        this(cells, -1, -1);
+    }
+
+    public Frame(List<Cell> cells, int startIndex, int endIndex) {
         this.cells = cells;
+        this.startIndex = startIndex;
+        this.endIndex = endIndex;
     }
 
 }
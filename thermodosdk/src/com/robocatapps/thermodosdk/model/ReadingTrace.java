@@ -0,0 +1,56 @@
+package com.robocatapps.thermodosdk.model;
+
+/**
+ * Timeline of a reading from the capture of its audio to its delivery to the listener. All times
+ * are on the {@link System#nanoTime()} clock.
+ */
+public class ReadingTrace {
+
+    public float temperature;
+
+    // When the last sample of the analyzed buffer was captured
+    public long captureNanos;
+    // True if the capture time was reported by the audio input, false if it was derived from the
+    // number of samples read
+    public boolean captureTimeFromInput;
+
+    public long analysisStartNanos;
+    public long analysisEndNanos;
+    // When the listener was invoked with the reading, or 0 if it wasn't yet
+    public long deliveryNanos;
+
+    /**
+     * @return The time from the capture to the start of the analysis, in microseconds.
+     */
+    public long getQueueMicros() {
+        return (analysisStartNanos - captureNanos) / 1000;
+    }
+
+    /**
+     * @return The time the analysis took, in microseconds.
+     */
+    public long getAnalysisMicros() {
+        return (analysisEndNanos - analysisStartNanos) / 1000;
+    }
+
+    /**
+     * @return The time from the end of the analysis to the listener, in microseconds.
+     */
+    public long getDeliveryMicros() {
+        return (deliveryNanos - analysisEndNanos) / 1000;
+    }
+
+    /**
+     * @return The age of the reading when the listener was invoked, in microseconds.
+     */
+    public long getTotalMicros() {
+        return (deliveryNanos - captureNanos) / 1000;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%.2f: queue %d us, analysis %d us, delivery %d us, total %d us%s",
+                temperature, getQueueMicros(), getAnalysisMicros(), getDeliveryMicros(),
+                getTotalMicros(), captureTimeFromInput ? "" : " (counted)");
+    }
+}
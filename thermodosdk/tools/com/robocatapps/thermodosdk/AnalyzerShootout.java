@@ -0,0 +1,465 @@
+package com.robocatapps.thermodosdk;
+
+import com.robocatapps.thermodosdk.model.AnalyzerResult;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compares the accuracy and the cost of analyzers on a labeled corpus of synthetic recordings.
+ * <p/>
+ * The corpus covers the whole supported temperature range under several recording conditions:
+ * noise, low and high gain up to clipping, a click clipping part of the buffer, a DC offset and
+ * mains hum. It is generated from a fixed
+ * seed, and {@link #CORPUS_VERSION} is bumped whenever the generation changes, so reports of the
+ * same version are comparable between SDK versions. Each analyzer is run on the recordings of its
+ * own probe signal, on a thread per analyzer and condition.
+ * <p/>
+ * For each analyzer and condition the report holds the bias and RMS error of the valid readings,
+ * the rate of failed buffers (an error or no frames) and of NaN or infinite temperatures, and the
+ * time and, where the JVM can measure it, the memory allocated per buffer. It runs on a plain JVM:
+ * {@code java com.robocatapps.thermodosdk.AnalyzerShootout [report.json]}. Like {@link
+ * LoopbackBenchmark}, it is a developer tool in the tools source set, which isn't packaged into the
+ * SDK.
+ */
+public class AnalyzerShootout {
+
+    public static final int CORPUS_VERSION = 2;
+
+    private static final long SEED = 0x7468726d6f646fL;
+
+    private static final int TEMPERATURES = 34;
+    private static final float MIN_TEMPERATURE = -40f;
+    private static final float MAX_TEMPERATURE = 124.9f;
+    private static final int REPEATS = 3;
+
+    private static final float HUM_FREQUENCY = 50f;
+    private static final float CLICK_SECONDS = 0.01f;
+
+    /**
+     * Buffers analyzed before the timing starts, so the analyzers are compiled.
+     */
+    private static final int WARM_UP_BUFFERS = 20;
+
+    // Allocation counter of the HotSpot thread bean, looked up by reflection as it is neither
+    // part of Java SE nor available on Android
+    private static Object sThreadBean;
+    private static Method sAllocatedBytesMethod;
+
+    static {
+        try {
+            Object bean = Class.forName("java.lang.management.ManagementFactory")
+                    .getMethod("getThreadMXBean").invoke(null);
+            Class<?> beanClass = Class.forName("com.sun.management.ThreadMXBean");
+            if (beanClass.isInstance(bean)) {
+                sAllocatedBytesMethod = beanClass.getMethod("getThreadAllocatedBytes", long.class);
+                sThreadBean = bean;
+            }
+        } catch (Exception e) {
+            // Not measured
+        }
+    }
+
+    /**
+     * Creates a fresh analyzer for every run, as analyzers are not re-entrant.
+     */
+    public interface AnalyzerFactory {
+
+        AbstractAnalyzer create();
+    }
+
+    /**
+     * An analyzer under test and the probe signal it analyzes.
+     */
+    public static class Candidate {
+
+        public final String name;
+        public final Sound signal;
+        // True if the signal is played in a loop, false if once per buffer
+        public final boolean looping;
+        public final AnalyzerFactory factory;
+
+        public Candidate(String name, Sound signal, boolean looping, AnalyzerFactory factory) {
+            this.name = name;
+            this.signal = signal;
+            this.looping = looping;
+            this.factory = factory;
+        }
+    }
+
+    /**
+     * A recording condition applied to the probe output.
+     */
+    public static class Condition {
+
+        public final String name;
+        public final float gain;
+        // Peak amplitude of the uniform noise
+        public final float noise;
+        public final float dcOffset;
+        // Peak amplitude of the mains hum
+        public final float hum;
+        // Peak amplitude of a click at a random position, e.g. from touching the plug
+        public final float click;
+
+        public Condition(String name, float gain, float noise, float dcOffset, float hum) {
+            this(name, gain, noise, dcOffset, hum, 0);
+        }
+
+        public Condition(String name, float gain, float noise, float dcOffset, float hum,
+                         float click) {
+            this.name = name;
+            this.gain = gain;
+            this.noise = noise;
+            this.dcOffset = dcOffset;
+            this.hum = hum;
+            this.click = click;
+        }
+    }
+
+    /**
+     * The results of an analyzer under a condition.
+     */
+    public static class Result {
+
+        public final String analyzer;
+        public final String condition;
+
+        public int buffers;
+        // Buffers with an error or without frames
+        public int failures;
+        // Buffers without an error but with a NaN or infinite temperature
+        public int nans;
+        public int valid;
+        public double sumError;
+        public double sumSquaredError;
+        public long nanos;
+        // Bytes allocated while analyzing, or -1 if not known
+        public long allocatedBytes;
+
+        Result(String analyzer, String condition) {
+            this.analyzer = analyzer;
+            this.condition = condition;
+        }
+
+        public float getBias() {
+            return valid == 0 ? Float.NaN : (float) (sumError / valid);
+        }
+
+        public float getRmsError() {
+            return valid == 0 ? Float.NaN : (float) Math.sqrt(sumSquaredError / valid);
+        }
+
+        public float getFailureRate() {
+            return buffers == 0 ? Float.NaN : (float) failures / buffers;
+        }
+
+        public float getNanRate() {
+            return buffers == 0 ? Float.NaN : (float) nans / buffers;
+        }
+
+        public long getNanosPerBuffer() {
+            return buffers == 0 ? 0 : nanos / buffers;
+        }
+
+        /**
+         * @return The bytes allocated per buffer, or -1 if not known.
+         */
+        public long getBytesPerBuffer() {
+            return buffers == 0 || allocatedBytes < 0 ? -1 : allocatedBytes / buffers;
+        }
+    }
+
+    private final SignalProfile mProfile;
+    private final List<Candidate> mCandidates = new ArrayList<Candidate>();
+    private final List<Condition> mConditions = new ArrayList<Condition>();
+
+    /**
+     * Creates a shootout of the SDK's analyzers under the default conditions.
+     */
+    public AnalyzerShootout(final SignalProfile profile) {
+        mProfile = profile;
+
+        Sound sweep = SoundGenerator.generateSweepSignal(profile);
+        addCandidate(new Candidate("default", sweep, true, new AnalyzerFactory() {
+            @Override
+            public AbstractAnalyzer create() {
+                return new DefaultSignalAnalyzer(profile);
+            }
+        }));
+        addCandidate(new Candidate("cascaded", sweep, true, new AnalyzerFactory() {
+            @Override
+            public AbstractAnalyzer create() {
+                return new CascadedSignalAnalyzer(profile);
+            }
+        }));
+        addCandidate(new Candidate("prefiltered", sweep, true, new AnalyzerFactory() {
+            @Override
+            public AbstractAnalyzer create() {
+                final DefaultSignalAnalyzer analyzer = new DefaultSignalAnalyzer(profile);
+                final SignalPreFilter filter = new SignalPreFilter(profile);
+                return new AbstractAnalyzer() {
+                    @Override
+                    public void setSampleRate(int sampleRate) {
+                        analyzer.setSampleRate(sampleRate);
+                        filter.setSampleRate(sampleRate);
+                    }
+
+                    @Override
+                    public AnalyzerResult resultFromAnalyzingData(short[] data) {
+                        // The recordings of the corpus aren't continuous
+                        filter.reset();
+                        filter.process(data);
+                        return analyzer.resultFromAnalyzingData(data);
+                    }
+                };
+            }
+        }));
+        addCandidate(new Candidate("simplified", SoundGenerator.generateL2RSignal(profile), false,
+                new AnalyzerFactory() {
+                    @Override
+                    public AbstractAnalyzer create() {
+                        return new SimplifiedSignalAnalyzer();
+                    }
+                }));
+
+        addCondition(new Condition("clean", 1f, 0, 0, 0));
+        addCondition(new Condition("noisy", 1f, 400, 0, 0));
+        addCondition(new Condition("quiet", 0.15f, 40, 0, 0));
+        addCondition(new Condition("loud", 1.6f, 40, 0, 0));
+        addCondition(new Condition("clipped", 3f, 40, 0, 0));
+        addCondition(new Condition("click", 1f, 40, 0, 0, 60000));
+        addCondition(new Condition("dc", 1f, 40, 3000, 0));
+        addCondition(new Condition("hum", 1f, 40, 0, 3000));
+    }
+
+    public void addCandidate(Candidate candidate) {
+        mCandidates.add(candidate);
+    }
+
+    public void addCondition(Condition condition) {
+        mConditions.add(condition);
+    }
+
+    /**
+     * Runs all candidates under all conditions.
+     *
+     * @param threads Number of threads to run on.
+     * @return The results, by candidate and then by condition.
+     */
+    public List<Result> run(int threads) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Result>> futures = new ArrayList<Future<Result>>();
+            for (final Candidate candidate : mCandidates) {
+                for (int i = 0; i < mConditions.size(); i++) {
+                    final int conditionIndex = i;
+                    futures.add(executor.submit(new Callable<Result>() {
+                        @Override
+                        public Result call() {
+                            return run(candidate, conditionIndex);
+                        }
+                    }));
+                }
+            }
+
+            List<Result> results = new ArrayList<Result>();
+            for (Future<Result> future : futures)
+                results.add(future.get());
+            return results;
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private Result run(Candidate candidate, int conditionIndex) {
+        Condition condition = mConditions.get(conditionIndex);
+        Result result = new Result(candidate.name, condition.name);
+
+        // Generate the recordings up front, so only the analysis is measured
+        int count = TEMPERATURES * REPEATS;
+        short[][] buffers = new short[count][];
+        float[] temperatures = new float[count];
+        for (int t = 0; t < TEMPERATURES; t++) {
+            float temperature = MIN_TEMPERATURE
+                    + (MAX_TEMPERATURE - MIN_TEMPERATURE) * t / (TEMPERATURES - 1);
+            for (int r = 0; r < REPEATS; r++) {
+                Random random = new Random(SEED + (conditionIndex * TEMPERATURES + t) * REPEATS + r);
+                buffers[t * REPEATS + r] = record(candidate, condition, temperature, random);
+                temperatures[t * REPEATS + r] = temperature;
+            }
+        }
+
+        AbstractAnalyzer analyzer = candidate.factory.create();
+        analyzer.setSampleRate(mProfile.sampleRate);
+        for (int i = 0; i < WARM_UP_BUFFERS; i++)
+            analyzer.resultFromAnalyzingData(buffers[i % count].clone());
+
+        analyzer = candidate.factory.create();
+        analyzer.setSampleRate(mProfile.sampleRate);
+        // Analyzers may process the buffers in place, so they get a copy
+        short[] buffer = new short[buffers[0].length];
+        long allocatedBefore = allocatedBytes();
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(buffers[i], 0, buffer, 0, buffer.length);
+            long startNanos = System.nanoTime();
+            AnalyzerResult analyzerResult = analyzer.resultFromAnalyzingData(buffer);
+            result.nanos += System.nanoTime() - startNanos;
+
+            result.buffers++;
+            if (analyzerResult.error != null || analyzerResult.numberOfFrames == 0) {
+                result.failures++;
+            } else if (Float.isNaN(analyzerResult.temperature)
+                    || Float.isInfinite(analyzerResult.temperature)) {
+                result.nans++;
+            } else {
+                double error = analyzerResult.temperature - temperatures[i];
+                result.valid++;
+                result.sumError += error;
+                result.sumSquaredError += error * error;
+            }
+        }
+        long allocatedAfter = allocatedBytes();
+        result.allocatedBytes = allocatedBefore < 0 ? -1 : allocatedAfter - allocatedBefore;
+
+        return result;
+    }
+
+    /**
+     * Synthesizes what is recorded for the candidate's signal from a Thermodo at the temperature.
+     */
+    private short[] record(Candidate candidate, Condition condition, float temperature,
+                           Random random) {
+        Sound signal = candidate.signal;
+        double resistance = AbstractAnalyzer.resistanceFromTemperature(temperature);
+        double reference = AbstractAnalyzer.REF_RESISTANCE;
+
+        // A looped signal starts at a random position, a single one after a random silence
+        int length;
+        int offset;
+        if (candidate.looping) {
+            length = mProfile.getBufferSamples(mProfile.sampleRate);
+            offset = random.nextInt(signal.mSamplesCount);
+        } else {
+            int padding = mProfile.sampleRate / 20;
+            length = signal.mSamplesCount + 2 * padding;
+            offset = -(padding / 2 + random.nextInt(padding));
+        }
+        double humPhase = random.nextDouble() * 2 * Math.PI;
+        int clickLength = Math.round(CLICK_SECONDS * mProfile.sampleRate);
+        int clickStart = condition.click > 0 ? random.nextInt(length - clickLength) : -1;
+
+        short[] data = new short[length];
+        for (int i = 0; i < length; i++) {
+            int index = offset + i;
+            double value = 0;
+            if (candidate.looping || (index >= 0 && index < signal.mSamplesCount)) {
+                index %= signal.mSamplesCount;
+                double left = signal.getSampleValue(index, 0);
+                double right = signal.getSampleValue(index, 1);
+                value = condition.gain * (left * reference + right * resistance)
+                        / (resistance + reference);
+            }
+            value += condition.dcOffset;
+            value += condition.hum
+                    * Math.sin(humPhase + 2 * Math.PI * HUM_FREQUENCY * i / mProfile.sampleRate);
+            value += (random.nextDouble() * 2 - 1) * condition.noise;
+            if (clickStart >= 0 && i >= clickStart && i < clickStart + clickLength)
+                value += condition.click * Math.exp(-5.0 * (i - clickStart) / clickLength);
+            data[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE,
+                    Math.round(value)));
+        }
+        return data;
+    }
+
+    /**
+     * Prints the results as a table.
+     */
+    public static void printTable(List<Result> results, PrintStream out) {
+        out.println(String.format(Locale.US, "%-12s %-9s %7s %8s %8s %8s %8s %10s %10s",
+                "analyzer", "condition", "buffers", "bias", "rms", "failed", "nan/inf", "ns/buf",
+                "bytes/buf"));
+        for (Result r : results) {
+            long bytes = r.getBytesPerBuffer();
+            out.println(String.format(Locale.US,
+                    "%-12s %-9s %7d %8.3f %8.3f %7.1f%% %7.1f%% %10d %10s",
+                    r.analyzer, r.condition, r.buffers, r.getBias(), r.getRmsError(),
+                    100 * r.getFailureRate(), 100 * r.getNanRate(), r.getNanosPerBuffer(),
+                    bytes < 0 ? "n/a" : Long.toString(bytes)));
+        }
+    }
+
+    /**
+     * Writes the results as JSON, with the corpus version and the signal profile they were
+     * obtained with. Unknown values are {@code null}.
+     */
+    public void writeJson(List<Result> results, Writer out) throws IOException {
+        StringBuilder b = new StringBuilder();
+        b.append("{\n  \"corpusVersion\": ").append(CORPUS_VERSION)
+                .append(",\n  \"profile\": \"").append(mProfile.name)
+                .append("\",\n  \"results\": [");
+        for (int i = 0; i < results.size(); i++) {
+            Result r = results.get(i);
+            b.append(i == 0 ? "\n" : ",\n");
+            b.append("    {\"analyzer\": \"").append(r.analyzer)
+                    .append("\", \"condition\": \"").append(r.condition)
+                    .append("\", \"buffers\": ").append(r.buffers)
+                    .append(", \"bias\": ").append(jsonNumber(r.getBias()))
+                    .append(", \"rmsError\": ").append(jsonNumber(r.getRmsError()))
+                    .append(", \"failureRate\": ").append(jsonNumber(r.getFailureRate()))
+                    .append(", \"nanRate\": ").append(jsonNumber(r.getNanRate()))
+                    .append(", \"nsPerBuffer\": ").append(r.getNanosPerBuffer())
+                    .append(", \"bytesPerBuffer\": ")
+                    .append(r.getBytesPerBuffer() < 0 ? "null" : r.getBytesPerBuffer())
+                    .append("}");
+        }
+        b.append("\n  ]\n}\n");
+        out.write(b.toString());
+    }
+
+    private static String jsonNumber(float value) {
+        return Float.isNaN(value) || Float.isInfinite(value) ? "null" : Float.toString(value);
+    }
+
+    /**
+     * @return The bytes allocated by the current thread so far, or -1 if not known.
+     */
+    private static long allocatedBytes() {
+        if (sThreadBean == null)
+            return -1;
+        try {
+            return (Long) sAllocatedBytesMethod.invoke(sThreadBean, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        AnalyzerShootout shootout = new AnalyzerShootout(SignalProfile.DEFAULT);
+        List<Result> results = shootout.run(Runtime.getRuntime().availableProcessors());
+        printTable(results, System.out);
+
+        if (args.length > 0) {
+            Writer writer = new FileWriter(args[0]);
+            try {
+                shootout.writeJson(results, writer);
+            } finally {
+                writer.close();
+            }
+        }
+    }
+}
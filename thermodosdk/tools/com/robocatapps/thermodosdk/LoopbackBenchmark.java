@@ -0,0 +1,235 @@
+package com.robocatapps.thermodosdk;
+
+import com.robocatapps.thermodosdk.model.AnalyzerResult;
+
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the audio pipeline end to end on the {@link LoopbackAudioBackend} and reports how long its
+ * stages take, so the figures quoted for the pipeline can be reproduced on a plain JVM:
+ * {@code java com.robocatapps.thermodosdk.LoopbackBenchmark [scenario...]}. It is a developer
+ * tool in the tools source set, which isn't packaged into the SDK.
+ * <p/>
+ * The scenarios are:
+ * <ul>
+ * <li>cycle: a Thermodo is plugged in, checked by the {@link DeviceDetector} and measured on the
+ * same capture, in real time. {@link ThermodoImpl} itself needs an Android context, audio manager
+ * and main thread handler, so its hand-over from the check to the measurement is mirrored here
+ * rather than run,</li>
+ * <li>calibrate: a {@link Calibrator} run against a simulated volume control, without pacing,</li>
+ * <li>overdrive: a probe recorded three times too loud under the {@link OutputLevelController},
+ * without pacing.</li>
+ * </ul>
+ * All of them run when none is given.
+ */
+public class LoopbackBenchmark {
+
+    private static final float TEMPERATURE = 37f;
+    private static final float NOISE = 30f;
+    private static final int SAMPLE_RATE = 48000;
+    private static final int CHUNK_SIZE = 480;
+
+    /**
+     * Readings taken by the scenarios which measure.
+     */
+    private static final int READINGS = 3;
+
+    private static final long TIMEOUT_SECONDS = 30;
+
+    /**
+     * Audio discarded after the sweep is started, as in ThermodoImpl, in milliseconds.
+     */
+    private static final long MEASUREMENT_START_SETTLE_MILLIS = 200;
+
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final SignalProfile mProfile;
+    private final PrintStream mOut;
+
+    public LoopbackBenchmark(SignalProfile profile, PrintStream out) {
+        mProfile = profile;
+        mOut = out;
+    }
+
+    /**
+     * Plugs in a Thermodo, checks it and takes readings on the capture of the check, reporting
+     * when the check and each reading finished after the plug.
+     */
+    public void runCycle() throws InterruptedException {
+        final LoopbackAudioBackend backend = new LoopbackAudioBackend(SAMPLE_RATE, CHUNK_SIZE,
+                LoopbackAudioBackend.probe(TEMPERATURE, 0.8f, NOISE), 1);
+        final DefaultSignalAnalyzer analyzer = new DefaultSignalAnalyzer(mProfile);
+        final Sound sweep = SoundGenerator.generateSweepSignal(mProfile);
+        final CountDownLatch readings = new CountDownLatch(READINGS);
+        final long startNanos = System.nanoTime();
+
+        final AudioRecorder.OnBufferFilledListener measurement =
+                new AudioRecorder.OnBufferFilledListener() {
+            @Override
+            public void onRecordingStarted(int sampleRate) {
+                analyzer.setSampleRate(sampleRate);
+            }
+
+            @Override
+            public void onBufferFilled(short[] data) {
+                AnalyzerResult result = analyzer.resultFromAnalyzingData(data);
+                mOut.println(String.format(Locale.US, "cycle: reading %.2f at %d ms",
+                        result.temperature, millisSince(startNanos)));
+                readings.countDown();
+            }
+
+            @Override
+            public void onRecorderError(int what) {
+                mOut.println("cycle: recorder error " + what);
+            }
+        };
+        final AudioRecorder recorder = new AudioRecorder(measurement, mProfile, backend);
+
+        DeviceDetector detector = new DeviceDetector(
+                new DeviceDetector.OnDetectionResultListener() {
+            @Override
+            public void onDetectionResult(boolean thermodoDetected) {
+                mOut.println("cycle: detected " + thermodoDetected + " at "
+                        + millisSince(startNanos) + " ms");
+                if (!thermodoDetected) {
+                    while (readings.getCount() > 0)
+                        readings.countDown();
+                    return;
+                }
+
+                // Hand the capture of the check over to the measurement, as ThermodoImpl does:
+                // from where the sweep has settled, with a single frame in the first buffer
+                sweep.play(backend, -1);
+                long startPosition = recorder.getCapturePosition()
+                        + SAMPLE_RATE * MEASUREMENT_START_SETTLE_MILLIS / 1000;
+                recorder.setListener(measurement, mProfile.seconds, startPosition,
+                        mProfile.samplesPerCell(SAMPLE_RATE) * (2 * mProfile.numberOfCells + 2));
+                recorder.startRecording();
+            }
+        }, mProfile, recorder, backend, DIRECT_EXECUTOR);
+
+        detector.startDetection();
+        boolean finished = readings.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        recorder.release();
+        sweep.release();
+        detector.release();
+        mOut.println("cycle: " + (finished ? "finished" : "timed out") + " at "
+                + millisSince(startNanos) + " ms");
+    }
+
+    /**
+     * Calibrates against a volume control which scales the recorded signal by 3 dB per step.
+     */
+    public void runCalibrate() {
+        final LoopbackAudioBackend backend = new LoopbackAudioBackend(SAMPLE_RATE, CHUNK_SIZE,
+                LoopbackAudioBackend.probe(TEMPERATURE, 1f, NOISE), 0);
+        Calibrator.VolumeControl volumeControl = new Calibrator.VolumeControl() {
+
+            private static final int MAX_VOLUME = 15;
+            private int mVolume = 7;
+
+            @Override
+            public int getMaxVolume() {
+                return MAX_VOLUME;
+            }
+
+            @Override
+            public int getVolume() {
+                return mVolume;
+            }
+
+            @Override
+            public void setVolume(int volume) {
+                mVolume = volume;
+                float gain = (float) Math.pow(10, (volume - MAX_VOLUME) * 3 / 20.0) * 1.6f;
+                backend.setTransferFunction(LoopbackAudioBackend.probe(TEMPERATURE, gain,
+                        NOISE));
+            }
+        };
+
+        long startNanos = System.nanoTime();
+        Calibrator calibrator = new Calibrator(backend, volumeControl, mProfile);
+        CalibrationProfile profile = calibrator.calibrate("loopback");
+        calibrator.restoreSettings();
+        mOut.println("calibrate: " + profile + " in " + millisSince(startNanos) + " ms");
+    }
+
+    /**
+     * Measures a probe recorded three times too loud, reporting the gain and whether each buffer
+     * clipped until a reading is valid.
+     */
+    public void runOverdrive() throws InterruptedException {
+        LoopbackAudioBackend backend = new LoopbackAudioBackend(SAMPLE_RATE, CHUNK_SIZE,
+                LoopbackAudioBackend.probe(TEMPERATURE, 3f, NOISE), 0);
+        final DefaultSignalAnalyzer analyzer = new DefaultSignalAnalyzer(mProfile);
+        final OutputLevelController controller = new OutputLevelController();
+        final Sound sweep = SoundGenerator.generateSweepSignal(mProfile);
+        final CountDownLatch readings = new CountDownLatch(READINGS);
+        final int[] buffers = new int[1];
+
+        AudioRecorder recorder = new AudioRecorder(new AudioRecorder.OnBufferFilledListener() {
+            @Override
+            public void onRecordingStarted(int sampleRate) {
+                analyzer.setSampleRate(sampleRate);
+            }
+
+            @Override
+            public void onBufferFilled(short[] data) {
+                if (readings.getCount() == 0)
+                    return;
+
+                AnalyzerResult result = analyzer.resultFromAnalyzingData(data);
+                if (controller.update(result))
+                    sweep.setGain(controller.getGain());
+                buffers[0]++;
+                mOut.println(String.format(Locale.US,
+                        "overdrive: buffer %d, temperature %.2f, clipped %b, gain %.3f",
+                        buffers[0], result.temperature, result.clipped, controller.getGain()));
+                if (result.numberOfFrames > 0 && !Float.isNaN(result.temperature))
+                    readings.countDown();
+            }
+
+            @Override
+            public void onRecorderError(int what) {
+                mOut.println("overdrive: recorder error " + what);
+            }
+        }, mProfile, backend);
+
+        sweep.play(backend, -1);
+        recorder.startRecording();
+        readings.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        recorder.release();
+        sweep.release();
+        mOut.println(String.format(Locale.US, "overdrive: %d buffers, %.0f%% discarded",
+                buffers[0], controller.getDiscardedFraction() * 100));
+    }
+
+    private static long millisSince(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1000000;
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoopbackBenchmark benchmark = new LoopbackBenchmark(SignalProfile.DEFAULT, System.out);
+        String[] scenarios = args.length > 0 ? args
+                : new String[]{"cycle", "calibrate", "overdrive"};
+        for (String scenario : scenarios) {
+            if ("cycle".equals(scenario))
+                benchmark.runCycle();
+            else if ("calibrate".equals(scenario))
+                benchmark.runCalibrate();
+            else if ("overdrive".equals(scenario))
+                benchmark.runOverdrive();
+            else
+                System.err.println("Unknown scenario " + scenario);
+        }
+    }
+}